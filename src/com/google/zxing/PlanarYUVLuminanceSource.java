@@ -16,7 +16,7 @@
 
 package com.google.zxing;
 
-import android.graphics.Bitmap;
+import se.droidgiro.scanner.raster.IntPixelBuffer;
 
 /**
  * This object extends LuminanceSource around an array of YUV data returned from
@@ -106,6 +106,96 @@ public final class PlanarYUVLuminanceSource extends LuminanceSource {
 		return true;
 	}
 
+	@Override
+	public PlanarYUVLuminanceSource crop(int left, int top, int width,
+			int height) {
+		return new PlanarYUVLuminanceSource(yuvData, dataWidth, dataHeight,
+				this.left + left, this.top + top, width, height);
+	}
+
+	@Override
+	public boolean isRotateSupported() {
+		return true;
+	}
+
+	/**
+	 * Returns a new object with the cropped region rotated 90 degrees
+	 * counter-clockwise. Only the crop is transposed, the rest of the frame is
+	 * never touched, so the cost is proportional to the framing rectangle and
+	 * not to the preview size.
+	 * 
+	 * @return A rotated version of this object.
+	 */
+	@Override
+	public LuminanceSource rotateCounterClockwise() {
+		return rotate(false);
+	}
+
+	/**
+	 * Returns a new object with the cropped region rotated 90 degrees
+	 * clockwise. This is what a portrait preview needs, since the camera
+	 * sensor delivers landscape frames which are displayed rotated 90 degrees
+	 * clockwise.
+	 * 
+	 * @return A rotated version of this object.
+	 */
+	public PlanarYUVLuminanceSource rotateClockwise() {
+		return rotate(true);
+	}
+
+	private PlanarYUVLuminanceSource rotate(boolean clockwise) {
+		int width = getWidth();
+		int height = getHeight();
+		byte[] rotated = new byte[width * height];
+		byte[] yuv = yuvData;
+		int inputOffset = top * dataWidth + left;
+
+		// Read the crop one row at a time and write each row out as a column
+		// of the rotated image. The rotated image is exactly the size of the
+		// crop, which lets getMatrix() hand it out without copying.
+		int step = clockwise ? height : -height;
+		for (int y = 0; y < height; y++) {
+			int outputOffset = clockwise ? height - 1 - y : (width - 1)
+					* height + y;
+			for (int x = 0; x < width; x++) {
+				rotated[outputOffset] = yuv[inputOffset + x];
+				outputOffset += step;
+			}
+			inputOffset += dataWidth;
+		}
+		return new PlanarYUVLuminanceSource(rotated, height, width, 0, 0,
+				height, width);
+	}
+
+	/**
+	 * Counts the luminance values of the cropped region into a 256 bucket
+	 * histogram. Reads straight from the Y plane without copying.
+	 * 
+	 * @param histogram
+	 *            An array of at least 256 elements, cleared before use.
+	 * @param step
+	 *            Only every step:th pixel of every step:th row is counted.
+	 * @return The number of pixels counted.
+	 */
+	public int getHistogram(int[] histogram, int step) {
+		int width = getWidth();
+		int height = getHeight();
+		for (int i = 0; i < 256; i++) {
+			histogram[i] = 0;
+		}
+		byte[] yuv = yuvData;
+		int count = 0;
+		for (int y = 0; y < height; y += step) {
+			int offset = (y + top) * dataWidth + left;
+			int end = offset + width;
+			for (int i = offset; i < end; i += step) {
+				histogram[yuv[i] & 0xff]++;
+				count++;
+			}
+		}
+		return count;
+	}
+
 	public int getDataWidth() {
 		return dataWidth;
 	}
@@ -114,7 +204,7 @@ public final class PlanarYUVLuminanceSource extends LuminanceSource {
 		return dataHeight;
 	}
 
-	public Bitmap renderCroppedGreyscaleBitmap() {
+	public IntPixelBuffer renderCroppedGreyscale() {
 		int width = getWidth();
 		int height = getHeight();
 		int[] pixels = new int[width * height];
@@ -130,9 +220,6 @@ public final class PlanarYUVLuminanceSource extends LuminanceSource {
 			inputOffset += dataWidth;
 		}
 
-		Bitmap bitmap = Bitmap.createBitmap(width, height,
-				Bitmap.Config.RGB_565);
-		bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-		return bitmap;
+		return new IntPixelBuffer(pixels, width, height);
 	}
 }
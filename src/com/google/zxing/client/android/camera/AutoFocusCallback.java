@@ -16,6 +16,7 @@
 
 package com.google.zxing.client.android.camera;
 
+import se.droidgiro.scanner.TraceRecorder;
 import android.hardware.Camera;
 import android.os.Handler;
 import android.os.Message;
@@ -36,6 +37,8 @@ public final class AutoFocusCallback implements Camera.AutoFocusCallback {
 	}
 
 	public void onAutoFocus(boolean success, Camera camera) {
+		if (TraceRecorder.enabled)
+			TraceRecorder.endAsync(TraceRecorder.AUTO_FOCUS);
 		if (autoFocusHandler != null) {
 			Message message = autoFocusHandler.obtainMessage(autoFocusMessage,
 					success);
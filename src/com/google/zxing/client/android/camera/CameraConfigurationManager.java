@@ -16,6 +16,8 @@
 
 package com.google.zxing.client.android.camera;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.regex.Pattern;
 
 import se.droidgiro.scanner.camera.CameraManager;
@@ -42,6 +44,8 @@ public final class CameraConfigurationManager {
 	private Point cameraResolution;
 	private int previewFormat;
 	private String previewFormatString;
+	private int previewFrameRate;
+	private boolean portrait;
 
 	public CameraConfigurationManager(Context context) {
 		this.context = context;
@@ -56,12 +60,19 @@ public final class CameraConfigurationManager {
 		previewFormatString = parameters.get("preview-format");
 		Log.d(TAG, "Default preview format: " + previewFormat + '/'
 				+ previewFormatString);
+		previewFrameRate = parameters.getPreviewFrameRate();
+		Log.d(TAG, "Preview frame rate: " + previewFrameRate);
 		WindowManager manager = (WindowManager) context
 				.getSystemService(Context.WINDOW_SERVICE);
 		Display display = manager.getDefaultDisplay();
 		screenResolution = new Point(display.getWidth(), display.getHeight());
 		Log.d(TAG, "Screen resolution: " + screenResolution);
-		cameraResolution = getCameraResolution(parameters, screenResolution);
+		// The sensor always delivers landscape frames, so match the preview
+		// sizes against the screen as it would be held in landscape.
+		Point screenResolutionForCamera = portrait ? new Point(
+				screenResolution.y, screenResolution.x) : screenResolution;
+		cameraResolution = getCameraResolution(parameters,
+				screenResolutionForCamera);
 		Log.d(TAG, "Camera resolution: " + screenResolution);
 	}
 
@@ -79,7 +90,25 @@ public final class CameraConfigurationManager {
 		setFlash(parameters);
 		setZoom(parameters);
 		// setSharpness(parameters);
+		if (portrait) {
+			// Pre-Froyo devices only understand this hint.
+			parameters.set("orientation", "portrait");
+		}
 		camera.setParameters(parameters);
+		setDisplayOrientation(camera, portrait ? 90 : 0);
+	}
+
+	/**
+	 * @param portrait
+	 *            True if the preview is shown with the device held upright.
+	 *            Takes effect the next time the camera parameters are read.
+	 */
+	public void setPortrait(boolean portrait) {
+		this.portrait = portrait;
+	}
+
+	public boolean isPortrait() {
+		return portrait;
 	}
 
 	public Point getCameraResolution() {
@@ -98,6 +127,10 @@ public final class CameraConfigurationManager {
 		return previewFormatString;
 	}
 
+	public int getPreviewFrameRate() {
+		return previewFrameRate;
+	}
+
 	private static Point getCameraResolution(Camera.Parameters parameters,
 			Point screenResolution) {
 
@@ -190,6 +223,25 @@ public final class CameraConfigurationManager {
 		return tenBestValue;
 	}
 
+	/*
+	 * Camera.setDisplayOrientation() only exists from Froyo and on, so it has
+	 * to be looked up by reflection.
+	 */
+	private static void setDisplayOrientation(Camera camera, int degrees) {
+		try {
+			Method method = camera.getClass().getMethod(
+					"setDisplayOrientation", int.class);
+			method.invoke(camera, degrees);
+		} catch (NoSuchMethodException nsme) {
+			// OK, the "orientation" parameter will have to do
+		} catch (IllegalAccessException e) {
+			Log.w(TAG, "Unexpected error while setting display orientation", e);
+		} catch (InvocationTargetException e) {
+			Log.w(TAG, "Unexpected error while setting display orientation", e
+					.getCause());
+		}
+	}
+
 	private void setFlash(Camera.Parameters parameters) {
 		// FIXME: This is a hack to turn the flash off on the Samsung Galaxy.
 		// And this is a hack-hack to work around a different value on the
@@ -209,6 +261,34 @@ public final class CameraConfigurationManager {
 		parameters.set("flash-mode", "off");
 	}
 
+	/**
+	 * Sets exposure compensation and torch through the string parameters, as
+	 * the typed accessors are not available on all supported versions.
+	 * 
+	 * @return False if the device has no "torch" flash mode, in which case the
+	 *         caller has to find another way to light the torch.
+	 */
+	public boolean setIllumination(Camera.Parameters parameters,
+			boolean raiseExposure, boolean torch) {
+		String maxExposureString = parameters.get("max-exposure-compensation");
+		if (maxExposureString != null) {
+			try {
+				int maxExposure = Integer.parseInt(maxExposureString);
+				parameters.set("exposure-compensation", raiseExposure
+						? maxExposure : 0);
+			} catch (NumberFormatException nfe) {
+				Log.w(TAG, "Bad max-exposure-compensation: "
+						+ maxExposureString);
+			}
+		}
+		String flashModes = parameters.get("flash-mode-values");
+		if (flashModes != null && flashModes.contains("torch")) {
+			parameters.set("flash-mode", torch ? "torch" : "off");
+			return true;
+		}
+		return false;
+	}
+
 	private void setZoom(Camera.Parameters parameters) {
 
 		String zoomSupportedString = parameters.get("zoom-supported");
@@ -134,7 +134,7 @@ public final class FlashlightManager {
 		}
 	}
 
-	static void enableFlashlight() {
+	public static void enableFlashlight() {
 		setFlashlight(true);
 	}
 
@@ -16,6 +16,7 @@
 
 package com.google.zxing.client.android.camera;
 
+import se.droidgiro.scanner.TraceRecorder;
 import android.graphics.Point;
 import android.hardware.Camera;
 import android.os.Handler;
@@ -43,6 +44,11 @@ public final class PreviewCallback implements Camera.PreviewCallback {
 	}
 
 	public void onPreviewFrame(byte[] data, Camera camera) {
+		boolean traced = TraceRecorder.enabled;
+		if (traced) {
+			TraceRecorder.endAsync(TraceRecorder.WAIT_FOR_FRAME);
+			TraceRecorder.begin(TraceRecorder.PREVIEW_FRAME);
+		}
 		Point cameraResolution = configManager.getCameraResolution();
 		if (!useOneShotPreviewCallback) {
 			camera.setPreviewCallback(null);
@@ -55,6 +61,8 @@ public final class PreviewCallback implements Camera.PreviewCallback {
 		} else {
 			Log.d(TAG, "Got preview callback, but no handler for it");
 		}
+		if (traced)
+			TraceRecorder.end(TraceRecorder.PREVIEW_FRAME);
 	}
 
 }
@@ -14,6 +14,16 @@ public final class PreferencesActivity extends PreferenceActivity implements
 	public static final String KEY_PLAY_BEEP = "preferences_play_beep";
 	public static final String KEY_VIBRATE = "preferences_vibrate";
 
+	public static final String KEY_PORTRAIT = "preferences_portrait";
+	public static final String KEY_AUTO_ILLUMINATION = "preferences_auto_illumination";
+	public static final String KEY_FRAME_FUSION = "preferences_frame_fusion";
+	public static final String KEY_CONFIRMATION_POLICY = "preferences_confirmation_policy";
+	public static final String KEY_CONFIRMATION_FRAMES = "preferences_confirmation_frames";
+	public static final String KEY_EVENT_LOG_LEVEL = "preferences_event_log_level";
+	public static final String KEY_PERFORMANCE_HUD = "preferences_performance_hud";
+	public static final String KEY_TRACE = "preferences_trace";
+	public static final String KEY_RECORD_FRAMES = "preferences_record_frames";
+
 	@Override
 	protected void onCreate(Bundle icicle) {
 		super.onCreate(icicle);
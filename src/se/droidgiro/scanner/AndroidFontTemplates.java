@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import se.droidgiro.scanner.raster.PixelBuffer;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+
+/**
+ * Draws the reference characters with a typeface, see {@link FontTemplates}.
+ */
+final class AndroidFontTemplates extends FontTemplates {
+
+	private static final int MARGIN = 2;
+
+	private final Paint paint = new Paint();
+	private final Rect bounds = new Rect();
+
+	AndroidFontTemplates(Typeface typeface) {
+		paint.setTypeface(typeface);
+		paint.setAntiAlias(true);
+		paint.setColor(Color.BLACK);
+	}
+
+	@Override
+	protected PixelBuffer renderCharacter(char c, int textSize) {
+		String text = String.valueOf(c);
+		paint.setTextSize(textSize);
+		paint.getTextBounds(text, 0, 1, bounds);
+		if (bounds.isEmpty()) {
+			return null;
+		}
+		Bitmap bitmap = Bitmap.createBitmap(bounds.width() + 2 * MARGIN,
+				bounds.height() + 2 * MARGIN, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(bitmap);
+		canvas.drawColor(Color.WHITE);
+		canvas.drawText(text, MARGIN - bounds.left, MARGIN - bounds.top, paint);
+		PixelBuffer drawn = AndroidRasters.fromBitmap(bitmap);
+		bitmap.recycle();
+		return drawn;
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import se.droidgiro.scanner.raster.IntPixelBuffer;
+import se.droidgiro.scanner.raster.PixelBuffer;
+import se.droidgiro.scanner.raster.PixelRect;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Converts between the pixel buffers of the scanner and the bitmaps and
+ * rectangles of Android.
+ */
+final class AndroidRasters {
+
+	private AndroidRasters() {
+	}
+
+	static IntPixelBuffer fromBitmap(Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int[] pixels = new int[width * height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		return new IntPixelBuffer(pixels, width, height);
+	}
+
+	static Bitmap toBitmap(PixelBuffer buffer) {
+		int width = buffer.getWidth();
+		int height = buffer.getHeight();
+		int[] pixels = new int[width * height];
+		buffer.getPixels(pixels, 0, width, 0, 0, width, height);
+		Bitmap bitmap = Bitmap.createBitmap(width, height,
+				Bitmap.Config.RGB_565);
+		bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+		return bitmap;
+	}
+
+	static Rect toRect(PixelRect rect) {
+		return new Rect(rect.left, rect.top, rect.right, rect.bottom);
+	}
+
+}
@@ -21,9 +21,11 @@
 
 package se.droidgiro.scanner;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
@@ -38,6 +40,7 @@ import android.app.ListActivity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ActivityInfo;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
@@ -45,6 +48,7 @@ import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
@@ -80,13 +84,25 @@ public final class CaptureActivity extends ListActivity implements
 	private MediaPlayer mediaPlayer;
 	private ResultListHandler resultListHandler;
 	private ViewfinderView viewfinderView;
+	private PerformanceHud performanceHud;
 
 	private boolean hasSurface;
 	private boolean paused = false;
+	private boolean portrait;
 	private boolean playBeep;
 	private boolean vibrate;
 
-	private static Invoice currentInvoice = new Invoice();
+	/**
+	 * The fields read so far. Only replaced on the UI thread, but read by the
+	 * decode thread.
+	 */
+	private final AtomicReference<InvoiceSnapshot> currentInvoice = new AtomicReference<InvoiceSnapshot>(
+			InvoiceSnapshot.EMPTY);
+	/**
+	 * Decides when a scanned field value is read reliably enough to be put in
+	 * currentInvoice.
+	 */
+	private final FieldConsensus consensus = new FieldConsensus();
 
 	private Button eraseButton;
 	private Button scanButton;
@@ -110,20 +126,22 @@ public final class CaptureActivity extends ListActivity implements
 
 	@Override
 	protected void onListItemClick(ListView l, View v, int position, long id) {
-		if (currentInvoice != null) {
-			super.onListItemClick(l, v, position, id);
-			if (position == 0) {
-				resultListHandler.setReference(null);
-				currentInvoice.initReference();
-			} else if (position == 1) {
-				resultListHandler.setAmount(null);
-				currentInvoice.initAmount();
-			} else {
-				resultListHandler.setAccount(null);
-				currentInvoice.initGiroAccount();
-			}
-			onContentChanged();
+		super.onListItemClick(l, v, position, id);
+		InvoiceSnapshot current = currentInvoice.get();
+		int field;
+		if (position == 0) {
+			resultListHandler.setReference(null);
+			field = Invoice.REFERENCE_FIELD;
+		} else if (position == 1) {
+			resultListHandler.setAmount(null);
+			field = Invoice.AMOUNT_FIELD;
+		} else {
+			resultListHandler.setAccount(null);
+			field = Invoice.GIRO_ACCOUNT_FIELD;
 		}
+		currentInvoice.set(current.without(field));
+		consensus.clear(field);
+		onContentChanged();
 	}
 
 	ViewfinderView getViewfinderView() {
@@ -134,14 +152,27 @@ public final class CaptureActivity extends ListActivity implements
 		return handler;
 	}
 
+	/**
+	 * @return The invoice fields already read, as a combination of the Invoice
+	 *         field constants.
+	 */
+	int getConfirmedFields() {
+		return currentInvoice.get().getDefinedFields();
+	}
+
 	@Override
 	public void onCreate(Bundle icicle) {
 		super.onCreate(icicle);
-		currentInvoice = new Invoice();
+		currentInvoice.set(InvoiceSnapshot.EMPTY);
 		channel = getIntent().getStringExtra("channel");
 		if (channel == null)
 			finish();
 
+		portrait = PreferenceManager.getDefaultSharedPreferences(this)
+				.getBoolean(PreferencesActivity.KEY_PORTRAIT, false);
+		setRequestedOrientation(portrait ? ActivityInfo.SCREEN_ORIENTATION_PORTRAIT
+				: ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
+
 		Window window = getWindow();
 		window.addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 		setContentView(R.layout.capture);
@@ -149,16 +180,16 @@ public final class CaptureActivity extends ListActivity implements
 		this.eraseButton = (Button) this.findViewById(R.id.send_erase);
 		this.eraseButton.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
-				if (currentInvoice != null)
-					sendInvoice(CaptureActivity.this, currentInvoice);
+				sendInvoice(CaptureActivity.this, currentInvoice.get());
 
 				// if (currentInvoice != null && currentInvoice.isComplete()) {
 				scanButton.setText(getString(R.string.scan_state_scan));
 				handler.sendEmptyMessage(R.id.pause);
 				paused = true;
 				// }
-				if (currentInvoice != null)
-					currentInvoice.initFields();
+				currentInvoice.set(InvoiceSnapshot.EMPTY);
+				consensus.clear(Invoice.REFERENCE_FIELD | Invoice.AMOUNT_FIELD
+						| Invoice.GIRO_ACCOUNT_FIELD);
 				resultListHandler.clear();
 //				handler.sendEmptyMessage(R.id.new_invoice);
 				onContentChanged();
@@ -189,7 +220,9 @@ public final class CaptureActivity extends ListActivity implements
 		setListAdapter(adapter);
 
 		CameraManager.init(getApplication());
+		CameraManager.get().setPortrait(portrait);
 		viewfinderView = (ViewfinderView) findViewById(R.id.viewfinder_view);
+		performanceHud = (PerformanceHud) findViewById(R.id.performance_hud);
 		handler = null;
 		hasSurface = false;
 	}
@@ -197,6 +230,15 @@ public final class CaptureActivity extends ListActivity implements
 	@Override
 	protected void onResume() {
 		super.onResume();
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(this);
+		if (prefs.getBoolean(PreferencesActivity.KEY_PORTRAIT, false) != portrait) {
+			// The orientation was changed in the preferences, start over so
+			// the layout and the camera are set up for the new orientation.
+			finish();
+			startActivity(getIntent());
+			return;
+		}
 		resetStatusView();
 
 		SurfaceView surfaceView = (SurfaceView) findViewById(R.id.preview_view);
@@ -212,8 +254,6 @@ public final class CaptureActivity extends ListActivity implements
 			surfaceHolder.addCallback(this);
 			surfaceHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
 		}
-		SharedPreferences prefs = PreferenceManager
-				.getDefaultSharedPreferences(this);
 		playBeep = prefs.getBoolean(PreferencesActivity.KEY_PLAY_BEEP, true);
 		if (playBeep) {
 			// See if sound settings overrides this
@@ -223,12 +263,28 @@ public final class CaptureActivity extends ListActivity implements
 			}
 		}
 		vibrate = prefs.getBoolean(PreferencesActivity.KEY_VIBRATE, false);
+		EventLog.level = Integer.parseInt(prefs.getString(
+				PreferencesActivity.KEY_EVENT_LOG_LEVEL, String
+						.valueOf(EventLog.OFF)));
+		TraceRecorder.enabled = prefs.getBoolean(PreferencesActivity.KEY_TRACE,
+				false);
+		consensus.setPolicy(prefs.getString(
+				PreferencesActivity.KEY_CONFIRMATION_POLICY,
+				FieldConsensus.POLICY_COUNT_OR_CONFIDENCE), Integer
+				.parseInt(prefs.getString(
+						PreferencesActivity.KEY_CONFIRMATION_FRAMES, "3")));
+		CameraManager.get().getIlluminationController().setEnabled(
+				prefs.getBoolean(PreferencesActivity.KEY_AUTO_ILLUMINATION,
+						true));
+		performanceHud.setActive(prefs.getBoolean(
+				PreferencesActivity.KEY_PERFORMANCE_HUD, false));
 		initBeepSound();
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
+		performanceHud.setActive(false);
 		if (handler != null) {
 			handler.quitSynchronously();
 			handler = null;
@@ -262,6 +318,14 @@ public final class CaptureActivity extends ListActivity implements
 			startActivity(intent);
 			break;
 		}
+		case R.id.dump_log: {
+			Log.i(TAG, PipelineMetrics.get().snapshot().toString());
+			if (EventLog.level != EventLog.OFF)
+				logLines(EventLog.dump());
+			if (TraceRecorder.enabled)
+				exportTrace();
+			break;
+		}
 		case R.id.settings: {
 			Intent intent = new Intent(Intent.ACTION_VIEW);
 			intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
@@ -273,6 +337,22 @@ public final class CaptureActivity extends ListActivity implements
 		return super.onOptionsItemSelected(item);
 	}
 
+	/**
+	 * Writes text to the system log a line at a time, since long messages are
+	 * truncated.
+	 */
+	private static void logLines(String text) {
+		int start = 0;
+		while (start < text.length()) {
+			int end = text.indexOf('\n', start);
+			if (end < 0) {
+				end = text.length();
+			}
+			Log.i(TAG, text.substring(start, end));
+			start = end + 1;
+		}
+	}
+
 	public void surfaceCreated(SurfaceHolder holder) {
 		if (!hasSurface) {
 			hasSurface = true;
@@ -292,8 +372,8 @@ public final class CaptureActivity extends ListActivity implements
 			int height) {
 	}
 
-	public void handleDecode(final Invoice invoice, int fieldsFound,
-			Bitmap debugBmp) {
+	public void handleDecode(final InvoiceSnapshot invoice, int fieldsFound,
+			float confidence, Bitmap debugBmp) {
 		SharedPreferences prefs = PreferenceManager
 				.getDefaultSharedPreferences(this);
 		ImageView debugImageView = (ImageView) findViewById(R.id.debug_image_view);
@@ -304,67 +384,36 @@ public final class CaptureActivity extends ListActivity implements
 		} else if (debugImageView.getVisibility() != View.GONE) {
 			debugImageView.setVisibility(View.GONE);
 		}
-		int fieldsScanned = invoice.getLastFieldsDecoded();
-		if (fieldsScanned > 0) {
-			boolean scanContainsNewData = false;
-
+		InvoiceSnapshot current = currentInvoice.get();
+		if (invoice.getLastFieldsDecoded() > 0) {
 			/*
-			 * The following segment will copy data from scanned invoice object
-			 * into our currentInvoice and keep track of new data read.
-			 * Beep/Vibrate will only occur if scan contains new data.
+			 * Merge the confirmed fields of the scanned invoice into a new
+			 * currentInvoice. Beep/Vibrate will only occur if scan contains
+			 * new confirmed data, and only confirmed data can be sent.
 			 */
-			
-			if ((fieldsScanned & Invoice.AMOUNT_FIELD) == Invoice.AMOUNT_FIELD) {
-				if (!(currentInvoice.getAmount() == invoice.getAmount() && currentInvoice
-						.getAmountFractional() == invoice.getAmountFractional())) {
-					currentInvoice.setAmount(invoice.getAmount(), invoice
-							.getAmountFractional());
-					scanContainsNewData = true;
-				}
-			}
-
-			if ((fieldsScanned & Invoice.DOCUMENT_TYPE_FIELD) == Invoice.DOCUMENT_TYPE_FIELD) {
-				if (currentInvoice.getInternalDocumentType() != invoice
-						.getInternalDocumentType()) {
-					currentInvoice.setDocumentType(invoice
-							.getInternalDocumentType());
-					scanContainsNewData = true;
-				}
-			}
-
-			if ((fieldsScanned & Invoice.GIRO_ACCOUNT_FIELD) == Invoice.GIRO_ACCOUNT_FIELD) {
-				Log.v(TAG, "Giro accout scanned. Current account = " + currentInvoice.getGiroAccount() + ". New invoice giro account = " + invoice.getGiroAccount());
-				if (!invoice.getGiroAccount().equals(currentInvoice.getGiroAccount())) {
-					currentInvoice.setRawGiroAccount(invoice.getRawGiroAccount());
-					Log.v(TAG, "Copied giro account = " + invoice.getGiroAccount());
-					scanContainsNewData = true;
-				}
-			}
-
-			if ((fieldsScanned & Invoice.REFERENCE_FIELD) == Invoice.REFERENCE_FIELD) {
-				if (!invoice.getReference().equals(currentInvoice.getReference())) {
-					currentInvoice.setReference(invoice.getReference());
-					scanContainsNewData = true;
-				}
-			}
-			
-			if(scanContainsNewData)
+			InvoiceSnapshot merged = current.merge(consensus.offer(invoice,
+					confidence));
+			boolean changed = merged != current;
+			if (changed) {
+				current = merged;
+				currentInvoice.set(merged);
 				playBeepSoundAndVibrate();
-
+			}
+			if (EventLog.isLoggable(EventLog.INVOICE_MERGED))
+				EventLog.log(EventLog.INVOICE_MERGED, invoice
+						.getLastFieldsDecoded(), (int) confidence, current
+						.getDefinedFields(), changed ? 1 : 0);
 		}
-		Log.v(TAG, "CurrentInvoice = " + currentInvoice);
-		if (currentInvoice.isReferenceDefined())
-			resultListHandler.setReference(currentInvoice.getReference());
-		if (currentInvoice.isAmountDefined())
-			resultListHandler.setAmount(currentInvoice.getCompleteAmount());
-		if (currentInvoice.isGiroAccountDefined())
-			resultListHandler.setAccount(currentInvoice.getGiroAccount());
+		if (current.isReferenceDefined())
+			resultListHandler.setReference(current.getReference());
+		if (current.isAmountDefined())
+			resultListHandler.setAmount(current.getCompleteAmount());
+		if (current.isGiroAccountDefined())
+			resultListHandler.setAccount(current.getGiroAccount());
 		if (resultListHandler.hasNewData()) {
 			resultListHandler.setNewData(false);
 		}
 
-		Log.v(TAG, "Got invoice " + invoice);
-
 		/* If scan on every hit */
 
 		// int fieldsScanned = invoice.getLastFieldsDecoded();
@@ -402,7 +451,8 @@ public final class CaptureActivity extends ListActivity implements
 		onContentChanged();
 	}
 
-	private void sendInvoice(final Context context, final Invoice invoice) {
+	private void sendInvoice(final Context context,
+			final InvoiceSnapshot invoice) {
 		List<NameValuePair> fields = new ArrayList<NameValuePair>();
 		if (invoice.isAmountDefined())
 			fields.add(new BasicNameValuePair("amount", invoice
@@ -449,6 +499,34 @@ public final class CaptureActivity extends ListActivity implements
 		}).start();
 	}
 
+	/**
+	 * Writes the recorded trace to external storage on a background thread.
+	 */
+	private void exportTrace() {
+		final File file = new File(Environment.getExternalStorageDirectory(),
+				"droidgiro-trace-" + System.currentTimeMillis() + ".json");
+		new Thread(new Runnable() {
+			public void run() {
+				String msg;
+				try {
+					int events = TraceRecorder.export(file);
+					Log.i(TAG, "Wrote " + events + " trace events to " + file);
+					msg = getString(R.string.trace_saved, file.getPath());
+				} catch (IOException e) {
+					Log.e(TAG, "Could not write trace to " + file, e);
+					msg = getString(R.string.trace_failed);
+				}
+				final String result = msg;
+				runOnUiThread(new Runnable() {
+					public void run() {
+						Toast.makeText(CaptureActivity.this, result,
+								Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}).start();
+	}
+
 	/**
 	 * Creates the beep MediaPlayer in advance so that the sound can be
 	 * triggered with the least latency possible.
@@ -26,7 +26,6 @@ import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.util.Log;
 
 /**
  * This class handles all the messaging which comprises the state machine for
@@ -64,6 +63,31 @@ public final class CaptureActivityHandler extends Handler {
 
 	@Override
 	public void handleMessage(Message message) {
+		int traceName = traceName(message.what);
+		boolean traced = TraceRecorder.enabled;
+		if (traced)
+			TraceRecorder.begin(traceName, message.what);
+		handle(message);
+		if (traced)
+			TraceRecorder.end(traceName);
+	}
+
+	private static int traceName(int what) {
+		switch (what) {
+		case R.id.auto_focus:
+			return TraceRecorder.AUTO_FOCUS_MESSAGE;
+		case R.id.restart_preview:
+			return TraceRecorder.RESTART_PREVIEW_MESSAGE;
+		case R.id.decode_succeeded:
+			return TraceRecorder.DECODE_SUCCEEDED_MESSAGE;
+		case R.id.decode_failed:
+			return TraceRecorder.DECODE_FAILED_MESSAGE;
+		default:
+			return TraceRecorder.OTHER_MESSAGE;
+		}
+	}
+
+	private void handle(Message message) {
 		switch (message.what) {
 		case R.id.auto_focus:
 			// Log.d(TAG, "Got auto-focus message");
@@ -76,11 +100,11 @@ public final class CaptureActivityHandler extends Handler {
 			}
 			break;
 		case R.id.restart_preview:
-			Log.d(TAG, "Got restart preview message");
+			if (EventLog.isLoggable(EventLog.RESTART_PREVIEW))
+				EventLog.log(EventLog.RESTART_PREVIEW);
 			restartPreviewAndDecode();
 			break;
 		case R.id.decode_succeeded:
-			Log.d(TAG, "Got decode succeeded message");
 			if (state != State.PAUSED) {
 				state = State.SUCCESS;
 			}
@@ -89,7 +113,12 @@ public final class CaptureActivityHandler extends Handler {
 					.getParcelable(DecodeThread.DEBUG_BITMAP);
 			int fieldsFound = bundle == null ? 0 : bundle.getInt(
 					Invoice.FIELDS_FOUND, 0);
-			activity.handleDecode((Invoice) message.obj, fieldsFound, debugBmp);
+			float confidence = bundle == null ? 0 : bundle.getFloat(
+					Invoice.CONFIDENCE, 0);
+			if (EventLog.isLoggable(EventLog.DECODE_SUCCEEDED))
+				EventLog.log(EventLog.DECODE_SUCCEEDED, fieldsFound);
+			activity.handleDecode((InvoiceSnapshot) message.obj, fieldsFound,
+					confidence, debugBmp);
 			break;
 		case R.id.decode_failed:
 			if (state != State.PAUSED) {
@@ -44,7 +44,7 @@ public class CloudClient {
 	public static Registration register(String pin) throws Exception {
 		DefaultHttpClient client = new DefaultHttpClient();
 		URI uri = new URI(REGISTER_URL);
-		Log.e(TAG, "" + uri.toString());
+		Log.d(TAG, "Registering at " + uri);
 		HttpPost post = new HttpPost(uri);
 		List<NameValuePair> params = new ArrayList<NameValuePair>();
 		params.add(new BasicNameValuePair("pin", pin));
@@ -79,11 +79,23 @@ public class CloudClient {
 
 		DefaultHttpClient client = new DefaultHttpClient();
 		URI uri = new URI(INVOICES_URL);
-		Log.e(TAG, "" + uri.toString());
+		Log.d(TAG, "Posting fields to " + uri);
 		HttpPost post = new HttpPost(uri);
 		UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
 		post.setEntity(entity);
-		HttpResponse res = client.execute(post);
-		return (res.getStatusLine().getStatusCode() == 201 ? true : false);
+		boolean traced = TraceRecorder.enabled;
+		if (traced)
+			TraceRecorder.begin(TraceRecorder.POST_FIELDS, fields.size());
+		HttpResponse res;
+		try {
+			res = client.execute(post);
+		} finally {
+			if (traced)
+				TraceRecorder.end(TraceRecorder.POST_FIELDS);
+		}
+		int status = res.getStatusLine().getStatusCode();
+		if (EventLog.isLoggable(EventLog.CLOUD_POST))
+			EventLog.log(EventLog.CLOUD_POST, fields.size(), status);
+		return (status == 201 ? true : false);
 	}
 }
@@ -18,12 +18,21 @@
 
 package se.droidgiro.scanner;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
 import se.droidgiro.PreferencesActivity;
 import se.droidgiro.R;
 import se.droidgiro.scanner.camera.CameraManager;
+import se.droidgiro.scanner.camera.IlluminationController;
+import se.droidgiro.scanner.raster.PixelBuffer;
+import se.droidgiro.scanner.raster.PixelRect;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -36,10 +45,24 @@ final class DecodeHandler extends Handler {
 
 	private static final String TAG = "DroidGiro.DecodeHandler";
 
+	private static final String RECORDING_NAME = "droidgiro-frames.rec";
+	/**
+	 * Size limit of the frame recording, about 140 frames of 640x480.
+	 */
+	private static final long RECORDING_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * The scanner parameters, see {@link ScannerProfile}.
+	 */
+	private static final String PROFILE_ASSET = "scanner.properties";
+
 	private final CaptureActivity activity;
 	private ScanResources scanResources;
 	private SharedPreferences prefs;
 	private Invoice invoice;
+	private final FrameFusion frameFusion = new FrameFusion();
+	private final RoiTracker roiTracker = new RoiTracker();
+	private FrameRecorder frameRecorder;
 
 	private Scanner scanner;
 
@@ -47,26 +70,67 @@ final class DecodeHandler extends Handler {
 		this.activity = activity;
 		invoice = new Invoice();
 		scanResources = new ScanResources(activity);
-		scanner = new Scanner(scanResources);
+		scanner = new Scanner(scanResources.getCharMap());
+		scanner.setFontTemplates(scanResources.getFontTemplates());
+		loadProfile();
 		prefs = PreferenceManager.getDefaultSharedPreferences(activity);
 	}
 
+	/**
+	 * Applies the scanner parameters in assets/scanner.properties, if there
+	 * is such a file.
+	 */
+	private void loadProfile() {
+		InputStream in;
+		try {
+			in = activity.getAssets().open(PROFILE_ASSET);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			ScannerProfile profile = new ScannerProfile();
+			profile.load(in);
+			profile.applyTo(scanner);
+			Log.i(TAG, "Scanner profile: " + profile);
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to load " + PROFILE_ASSET, e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
 	@Override
 	public void handleMessage(Message message) {
 		switch (message.what) {
 		case R.id.decode:
-			decode((byte[]) message.obj, message.arg1, message.arg2);
+			traceDecode(message);
 			break;
 		case R.id.new_invoice:
 			invoice = new Invoice();
-			decode((byte[]) message.obj, message.arg1, message.arg2);
+			traceDecode(message);
 			break;
 		case R.id.quit:
+			stopRecording();
 			Looper.myLooper().quit();
 			break;
 		}
 	}
 
+	/**
+	 * Decodes the frame of a decode message within a trace slice.
+	 */
+	private void traceDecode(Message message) {
+		boolean traced = TraceRecorder.enabled;
+		if (traced)
+			TraceRecorder.begin(TraceRecorder.DECODE);
+		decode((byte[]) message.obj, message.arg1, message.arg2);
+		if (traced)
+			TraceRecorder.end(TraceRecorder.DECODE);
+	}
+
 	/**
 	 * Decode the data within the viewfinder rectangle, and time how long it
 	 * took.
@@ -79,32 +143,97 @@ final class DecodeHandler extends Handler {
 	 *            The height of the preview frame.
 	 */
 	private void decode(byte[] data, int width, int height) {
+		if (prefs.getBoolean(PreferencesActivity.KEY_RECORD_FRAMES, false)) {
+			record(data, width, height);
+		} else {
+			stopRecording();
+		}
 		long start = System.currentTimeMillis();
 		String resultString = null;
+		long sourceStart = System.nanoTime();
 		PlanarYUVLuminanceSource source = CameraManager.get()
 				.buildLuminanceSource(data, width, height);
-		Bitmap bmp = source.renderCroppedGreyscaleBitmap();
-		scanner.setTargetBitmap(bmp);
+		long illuminationStart = System.nanoTime();
+		long sourceTime = illuminationStart - sourceStart;
+		IlluminationController illumination = CameraManager.get()
+				.getIlluminationController();
+		illumination.onFrame(source);
+		long fusionStart = System.nanoTime();
+		frameFusion.setEnabled(prefs.getBoolean(
+				PreferencesActivity.KEY_FRAME_FUSION, true));
+		source = frameFusion.process(source);
+		long cropStart = System.nanoTime();
+		int frameWidth = source.getWidth();
+		int frameHeight = source.getHeight();
+		Rect roi = roiTracker.getRegionOfInterest(frameWidth, frameHeight);
+		if (roi != null) {
+			source = source.crop(roi.left, roi.top, roi.width(), roi
+					.height());
+		}
+		PixelBuffer bmp = source.renderCroppedGreyscale();
+		PipelineMetrics metrics = PipelineMetrics.get();
+		metrics.record(PipelineMetrics.CROP, sourceTime + System.nanoTime()
+				- cropStart);
+		metrics.record(PipelineMetrics.ILLUMINATION, fusionStart
+				- illuminationStart);
+		metrics.record(PipelineMetrics.FUSION, cropStart - fusionStart);
+		scanner.setTargetBitmap(bmp, frameWidth, frameHeight);
+		scanner.setSkippedFields(activity.getConfirmedFields());
+		boolean traced = TraceRecorder.enabled;
+		if (traced)
+			TraceRecorder.begin(TraceRecorder.SCAN);
 		scanner.scan();
+		if (traced)
+			TraceRecorder.end(TraceRecorder.SCAN);
 		resultString = scanner.getResultString();
 
 		if (resultString != null) {
-			invoice.initFields();
-			int fieldsFound = invoice.parse(resultString);
-			long end = System.currentTimeMillis();
-			Log.d(TAG, "Found result (" + (end - start) + " ms):\n"
-					+ resultString);
+			/*
+			 * The invoice keeps the fields of earlier frames, so that a line
+			 * read again is parsed without allocating. The fields found are
+			 * those of this line, changed or not.
+			 */
+			long parseStart = System.nanoTime();
+			invoice.parse(resultString);
+			int fieldsFound = invoice.getLastFieldsDecoded();
+			long end = System.nanoTime();
+			if (frameRecorder != null) {
+				frameRecorder.setFieldsFound(fieldsFound);
+			}
+			metrics.record(PipelineMetrics.PARSE, end - parseStart);
+			metrics.record(PipelineMetrics.TOTAL, end - sourceStart);
+			metrics.countFrame(true, fieldsFound);
+			illumination.onDecodeResult(fieldsFound != 0);
+			frameFusion.onDecodeResult(fieldsFound != 0);
+			Rect bounds = null;
+			if (fieldsFound != 0) {
+				PixelRect characterBounds = scanner.getCharacterBounds();
+				if (characterBounds != null) {
+					bounds = AndroidRasters.toRect(characterBounds);
+					if (roi != null) {
+						bounds.offset(roi.left, roi.top);
+					}
+				}
+			}
+			roiTracker.update(bounds);
+			if (EventLog.isLoggable(EventLog.DECODE))
+				EventLog.log(EventLog.DECODE, (int) (System
+						.currentTimeMillis() - start),
+						(int) (sourceTime / 1000), scanner
+								.getTemplateComparisons(), fieldsFound);
 			if (fieldsFound != 0) {
 				Message message = Message.obtain(activity.getHandler(),
-						R.id.decode_succeeded, invoice);
+						R.id.decode_succeeded, invoice.snapshot());
 				Bitmap debugBmp = null;
 				if (prefs
 						.getBoolean(PreferencesActivity.KEY_DEBUG_IMAGE, false)) {
-					debugBmp = scanner.getDebugBitmap();
+					debugBmp = AndroidRasters.toBitmap(scanner
+							.getDebugBitmap());
 				}
 				Bundle bundle = new Bundle();
 				bundle.putParcelable(DecodeThread.DEBUG_BITMAP, debugBmp);
 				bundle.putInt(Invoice.FIELDS_FOUND, fieldsFound);
+				bundle.putFloat(Invoice.CONFIDENCE, scanner.getConfidence());
 				message.setData(bundle);
 				// Log.d(TAG, "Sending decode succeeded message...");
 				message.sendToTarget();
@@ -114,10 +243,49 @@ final class DecodeHandler extends Handler {
 				message.sendToTarget();
 			}
 		} else {
+			metrics.record(PipelineMetrics.TOTAL, System.nanoTime()
+					- sourceStart);
+			metrics.countFrame(false, 0);
+			if (EventLog.isLoggable(EventLog.DECODE_NOTHING))
+				EventLog.log(EventLog.DECODE_NOTHING, (int) (System
+						.currentTimeMillis() - start));
+			illumination.onDecodeResult(false);
+			frameFusion.onDecodeResult(false);
+			roiTracker.update(null);
 			Message message = Message.obtain(activity.getHandler(),
 					R.id.decode_failed);
 			message.sendToTarget();
 		}
 	}
 
+	private void record(byte[] data, int width, int height) {
+		if (frameRecorder == null) {
+			frameRecorder = new FrameRecorder(new File(Environment
+					.getExternalStorageDirectory(), RECORDING_NAME),
+					RECORDING_SIZE);
+		}
+		CameraManager cameraManager = CameraManager.get();
+		Rect rect = cameraManager.getFramingRectInPreview();
+		try {
+			frameRecorder.record(data, width, height, rect.left, rect.top,
+					rect.right, rect.bottom,
+					cameraManager.isPortrait() ? FrameRecording.FLAG_PORTRAIT
+							: 0);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not record frame", e);
+			stopRecording();
+		}
+	}
+
+	private void stopRecording() {
+		if (frameRecorder != null) {
+			try {
+				frameRecorder.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Could not close frame recording", e);
+			}
+			frameRecorder = null;
+		}
+	}
+
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+/**
+ * A low overhead log for events on the decode path, which happen for every
+ * frame.
+ *
+ * An event is a fixed size record of a type and four integer arguments,
+ * stored in preallocated arrays used as a ring buffer, so the newest
+ * {@link #CAPACITY} events are kept. Nothing is formatted until the log is
+ * dumped, when each record is turned into text using the format of its type.
+ *
+ * Each event type has a level, by how often it happens: VERBOSE for every
+ * frame, DEBUG for every line read, INFO for the fields and invoices found.
+ * Only the types at or above {@link #level} are recorded, so the per frame
+ * events can be left out while the rare ones are kept. Call sites check
+ * {@link #isLoggable(int)} before logging, so when a type is off the cost is
+ * reading two fields:
+ *
+ * <pre>
+ * if (EventLog.isLoggable(EventLog.DECODE))
+ * 	EventLog.log(EventLog.DECODE, ms, us, comparisons, fields);
+ * </pre>
+ */
+public final class EventLog {
+
+	/**
+	 * Number of events kept.
+	 */
+	public static final int CAPACITY = 1024;
+
+	private static final int ARGS = 4;
+
+	/*
+	 * Levels, from the most frequent events to none.
+	 */
+	public static final int VERBOSE = 0;
+	public static final int DEBUG = 1;
+	public static final int INFO = 2;
+	public static final int OFF = 3;
+
+	/*
+	 * Event types, used as indexes into FORMATS.
+	 */
+	public static final int DECODE = 0;
+	public static final int DECODE_NOTHING = 1;
+	public static final int AMOUNT_CHECK_FAILED = 2;
+	public static final int DECODE_SUCCEEDED = 3;
+	public static final int RESTART_PREVIEW = 4;
+	public static final int FIELD_CONFIRMED = 5;
+	public static final int INVOICE_MERGED = 6;
+	public static final int CLOUD_POST = 7;
+
+	/**
+	 * The format of each event type. {n} is replaced by argument n.
+	 */
+	private static final String[] FORMATS = {
+			"Decoded in {0} ms, {1} us building the luminance source, {2} template comparisons, fields {3}",
+			"Decoded nothing in {0} ms",
+			"Amount check digit invalid",
+			"Decode succeeded message, fields {0}",
+			"Restart preview message",
+			"Confirmed fields {0} after {1} frames, confidence {2}",
+			"Merged fields {0} with confidence {1}, current fields {2}, changed {3}",
+			"Posted {0} fields, status {1}" };
+
+	/**
+	 * The level of each event type.
+	 */
+	private static final int[] LEVELS = { VERBOSE, VERBOSE, INFO, DEBUG,
+			DEBUG, INFO, INFO, INFO };
+
+	/**
+	 * The lowest level of the events recorded, or OFF to record none.
+	 */
+	public static volatile int level = OFF;
+
+	private static final long[] times = new long[CAPACITY];
+	private static final int[] types = new int[CAPACITY];
+	private static final int[] args = new int[CAPACITY * ARGS];
+	private static int next;
+	private static int count;
+
+	private EventLog() {
+	}
+
+	/**
+	 * @param type
+	 *            one of the event type constants.
+	 * @return whether events of the type are recorded.
+	 */
+	public static boolean isLoggable(int type) {
+		return LEVELS[type] >= level;
+	}
+
+	public static void log(int type) {
+		log(type, 0, 0, 0, 0);
+	}
+
+	public static void log(int type, int a) {
+		log(type, a, 0, 0, 0);
+	}
+
+	public static void log(int type, int a, int b) {
+		log(type, a, b, 0, 0);
+	}
+
+	public static void log(int type, int a, int b, int c) {
+		log(type, a, b, c, 0);
+	}
+
+	/**
+	 * Records an event.
+	 *
+	 * @param type
+	 *            one of the event type constants.
+	 */
+	public static synchronized void log(int type, int a, int b, int c, int d) {
+		int i = next;
+		times[i] = System.nanoTime() / 1000000;
+		types[i] = type;
+		int offset = i * ARGS;
+		args[offset] = a;
+		args[offset + 1] = b;
+		args[offset + 2] = c;
+		args[offset + 3] = d;
+		next = (i + 1) % CAPACITY;
+		if (count < CAPACITY) {
+			count++;
+		}
+	}
+
+	/**
+	 * Forgets all events.
+	 */
+	public static synchronized void clear() {
+		next = 0;
+		count = 0;
+	}
+
+	/**
+	 * Formats the recorded events, oldest first, one per line. Each line
+	 * starts with the time of the event in milliseconds, from an arbitrary
+	 * origin that is the same for all events.
+	 */
+	public static synchronized String dump() {
+		StringBuilder sb = new StringBuilder(count * 64);
+		int first = (next - count + CAPACITY) % CAPACITY;
+		for (int n = 0; n < count; n++) {
+			int i = (first + n) % CAPACITY;
+			sb.append(times[i]).append(' ');
+			String format = FORMATS[types[i]];
+			for (int c = 0; c < format.length(); c++) {
+				char ch = format.charAt(c);
+				if (ch == '{' && c + 2 < format.length()
+						&& format.charAt(c + 2) == '}') {
+					sb.append(args[i * ARGS + format.charAt(c + 1) - '0']);
+					c += 2;
+				} else {
+					sb.append(ch);
+				}
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+}
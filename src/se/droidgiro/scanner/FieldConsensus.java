@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the values read for each invoice field over several frames, and only
+ * lets a value through once enough frames agree on it. A misread that happens
+ * to pass the check digit is rarely read the same way twice, so it no longer
+ * replaces a correct value.
+ *
+ * A field value is confirmed according to the policy:
+ * <ul>
+ * <li>{@link #POLICY_IMMEDIATE} - on the first frame it is read in</li>
+ * <li>{@link #POLICY_COUNT} - when it has been read in K frames</li>
+ * <li>{@link #POLICY_COUNT_OR_CONFIDENCE} - when it has been read in K frames
+ * or in one frame where every character matched its reference well</li>
+ * </ul>
+ * Once a field is confirmed, another value only replaces it when it has been
+ * read in more frames.
+ *
+ * Only used from the UI thread.
+ */
+final class FieldConsensus {
+
+	static final String POLICY_IMMEDIATE = "immediate";
+	static final String POLICY_COUNT = "count";
+	static final String POLICY_COUNT_OR_CONFIDENCE = "count_or_confidence";
+
+	/**
+	 * Lowest confidence, see {@link Scanner#getConfidence()}, for a single
+	 * frame to confirm its fields.
+	 */
+	private static final float HIGH_CONFIDENCE = 85f;
+
+	/**
+	 * The fields voted on. The document type is read with the account, so
+	 * they are voted on together.
+	 */
+	private static final int[] FIELDS = { Invoice.REFERENCE_FIELD,
+			Invoice.AMOUNT_FIELD,
+			Invoice.GIRO_ACCOUNT_FIELD | Invoice.DOCUMENT_TYPE_FIELD };
+
+	private static final class Votes {
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		String confirmed;
+		int confirmedCount;
+	}
+
+	private final Votes[] votes = new Votes[FIELDS.length];
+	private String policy = POLICY_COUNT_OR_CONFIDENCE;
+	private int frames = 3;
+
+	FieldConsensus() {
+		for (int i = 0; i < FIELDS.length; i++) {
+			votes[i] = new Votes();
+		}
+	}
+
+	/**
+	 * @param policy
+	 *            one of the POLICY constants.
+	 * @param frames
+	 *            the number of agreeing frames, K, needed to confirm a value.
+	 */
+	void setPolicy(String policy, int frames) {
+		this.policy = policy;
+		this.frames = frames;
+	}
+
+	/**
+	 * Counts the fields of a scanned invoice.
+	 *
+	 * @param scanned
+	 *            a snapshot published by the decoder.
+	 * @param confidence
+	 *            the confidence of the scan.
+	 * @return a snapshot of the fields of the scan that are confirmed.
+	 */
+	InvoiceSnapshot offer(InvoiceSnapshot scanned, float confidence) {
+		int confirmedFields = 0;
+		boolean confident = POLICY_COUNT_OR_CONFIDENCE.equals(policy)
+				&& confidence >= HIGH_CONFIDENCE;
+		for (int i = 0; i < FIELDS.length; i++) {
+			int field = FIELDS[i];
+			if ((scanned.getLastFieldsDecoded() & field) == 0) {
+				continue;
+			}
+			Votes fieldVotes = votes[i];
+			String value = valueOf(field, scanned);
+			Integer previous = fieldVotes.counts.get(value);
+			int count = previous == null ? 1 : previous + 1;
+			fieldVotes.counts.put(value, count);
+			if (value.equals(fieldVotes.confirmed)) {
+				fieldVotes.confirmedCount = count;
+				confirmedFields |= field;
+			} else if ((POLICY_IMMEDIATE.equals(policy) || confident
+					|| count >= frames)
+					&& (fieldVotes.confirmed == null
+							|| count > fieldVotes.confirmedCount)) {
+				if (EventLog.isLoggable(EventLog.FIELD_CONFIRMED))
+					EventLog.log(EventLog.FIELD_CONFIRMED, field, count,
+							(int) confidence);
+				fieldVotes.confirmed = value;
+				fieldVotes.confirmedCount = count;
+				confirmedFields |= field;
+			}
+		}
+		return scanned.retain(confirmedFields);
+	}
+
+	/**
+	 * Forgets the values counted for some fields, for example when the user
+	 * has cleared them.
+	 *
+	 * @param fields
+	 *            a combination of the Invoice field constants.
+	 */
+	void clear(int fields) {
+		for (int i = 0; i < FIELDS.length; i++) {
+			if ((fields & FIELDS[i]) != 0) {
+				votes[i].counts.clear();
+				votes[i].confirmed = null;
+				votes[i].confirmedCount = 0;
+			}
+		}
+	}
+
+	private static String valueOf(int field, InvoiceSnapshot invoice) {
+		switch (field) {
+		case Invoice.REFERENCE_FIELD:
+			return invoice.getReference();
+		case Invoice.AMOUNT_FIELD:
+			return invoice.getCompleteAmount() + " "
+					+ invoice.getCheckDigitAmount();
+		default:
+			return invoice.getRawGiroAccount() + "#"
+					+ invoice.getInternalDocumentType();
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.droidgiro.scanner.raster.IntPixelBuffer;
+import se.droidgiro.scanner.raster.PixelBuffer;
+import se.droidgiro.scanner.raster.PixelRect;
+import se.droidgiro.scanner.raster.Rasters;
+
+/**
+ * Makes reference bitmaps from a font, at the size of the glyphs found in a
+ * frame, so that glyphs are compared at about the size they were seen at
+ * rather than scaled to the size of fixed references.
+ *
+ * Like the bundled reference PNGs, each reference is the ink of its
+ * character, cropped to its bounds and stretched to the reference size, in
+ * black and white. Characters are drawn at twice that size and scaled down,
+ * which smooths their edges before they are thresholded. The references of
+ * the last few sizes asked for are kept.
+ *
+ * Subclasses draw characters with the font machinery of their platform.
+ */
+public abstract class FontTemplates {
+
+	/**
+	 * The characters of the OCR line.
+	 */
+	public static final String CHARACTERS = "#0123456789>";
+
+	/**
+	 * Reference heights are rounded to a multiple of this, so that small
+	 * changes in the size of the glyphs from frame to frame do not change the
+	 * references.
+	 */
+	public static final int HEIGHT_STEP = 4;
+	public static final int MIN_HEIGHT = 12;
+	public static final int MAX_HEIGHT = 48;
+
+	/**
+	 * The most sizes whose references are kept.
+	 */
+	static final int SIZES_KEPT = 4;
+
+	private static final int BLACK = 0xff000000;
+	private static final int WHITE = 0xffffffff;
+
+	private final Map<Integer, Map<Character, PixelBuffer>> sizes = new LinkedHashMap<Integer, Map<Character, PixelBuffer>>(
+			SIZES_KEPT * 2, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<Integer, Map<Character, PixelBuffer>> eldest) {
+			return size() > SIZES_KEPT;
+		}
+	};
+
+	/**
+	 * @return The reference height for glyphs of a height, a multiple of
+	 *         {@link #HEIGHT_STEP} within the limits.
+	 */
+	public static int fitHeight(int glyphHeight) {
+		int height = (glyphHeight + HEIGHT_STEP / 2) / HEIGHT_STEP
+				* HEIGHT_STEP;
+		return Math.max(MIN_HEIGHT, Math.min(MAX_HEIGHT, height));
+	}
+
+	/**
+	 * @return The reference width for a reference height, in the proportions
+	 *         of the bundled 16x24 references.
+	 */
+	public static int widthFor(int height) {
+		return height * 2 / 3;
+	}
+
+	/**
+	 * @param height
+	 *            The reference height, see {@link #fitHeight(int)}.
+	 * @return The references of the characters of the OCR line, in a map
+	 *         like {@link ScanResources#getCharMap()}. Characters the font
+	 *         has no ink for are left out.
+	 */
+	public synchronized Map<Character, PixelBuffer> getCharMap(int height) {
+		Integer key = Integer.valueOf(height);
+		Map<Character, PixelBuffer> charMap = sizes.get(key);
+		if (charMap == null) {
+			charMap = new HashMap<Character, PixelBuffer>();
+			int width = widthFor(height);
+			for (int i = 0; i < CHARACTERS.length(); i++) {
+				char c = CHARACTERS.charAt(i);
+				PixelBuffer reference = makeReference(renderCharacter(c,
+						2 * height), width, height);
+				if (reference != null) {
+					charMap.put(c, reference);
+				}
+			}
+			sizes.put(key, charMap);
+		}
+		return charMap;
+	}
+
+	/**
+	 * Draws a character in black on white.
+	 *
+	 * @param textSize
+	 *            The size of the font in pixels. The character is about this
+	 *            high or less.
+	 * @return The character, with any margin around it, or null if the font
+	 *         has no such character.
+	 */
+	protected abstract PixelBuffer renderCharacter(char c, int textSize);
+
+	/**
+	 * @return The ink of a drawn character cropped, scaled and thresholded,
+	 *         or null if there is no ink.
+	 */
+	private static PixelBuffer makeReference(PixelBuffer drawn, int width,
+			int height) {
+		if (drawn == null) {
+			return null;
+		}
+		int left = drawn.getWidth();
+		int top = drawn.getHeight();
+		int right = -1;
+		int bottom = -1;
+		for (int y = 0; y < drawn.getHeight(); y++) {
+			for (int x = 0; x < drawn.getWidth(); x++) {
+				if (isDark(drawn.getPixel(x, y))) {
+					left = Math.min(left, x);
+					right = Math.max(right, x);
+					top = Math.min(top, y);
+					bottom = Math.max(bottom, y);
+				}
+			}
+		}
+		if (right == -1) {
+			return null;
+		}
+		IntPixelBuffer reference = Rasters.scale(Rasters.crop(drawn,
+				new PixelRect(left, top, right + 1, bottom + 1)), width,
+				height);
+		int[] pixels = reference.getData();
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = isDark(pixels[i]) ? BLACK : WHITE;
+		}
+		return reference;
+	}
+
+	/**
+	 * @return Whether the mean of the channels of a color is below half.
+	 */
+	private static boolean isDark(int color) {
+		int sum = (color >> 16 & 0xff) + (color >> 8 & 0xff) + (color & 0xff);
+		return sum < 3 * 128;
+	}
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import android.util.Log;
+
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Averages the last few framing rect crops into one less noisy crop. Meant for
+ * low light, where every single frame is too noisy to be binarized but the
+ * invoice itself does not move.
+ *
+ * The crops are aligned to the newest one by an integer translation, found by
+ * correlating their row and column luminance profiles. Crops that do not
+ * correlate well enough, because the phone moved too much, are left out.
+ *
+ * Fusion is only switched on when the hit rate of single frames has dropped.
+ * While fusing, every PROBE_INTERVAL:th frame is still decoded on its own so
+ * the single frame hit rate can tell when to switch back.
+ */
+final class FrameFusion {
+
+	private static final String TAG = "DroidGiro.FrameFusion";
+
+	/**
+	 * Number of crops averaged.
+	 */
+	private static final int FRAMES = 4;
+	/**
+	 * Largest translation in pixels searched for when aligning crops.
+	 */
+	private static final int MAX_SHIFT = 6;
+	/**
+	 * Lowest profile correlation accepted for a crop to be fused.
+	 */
+	private static final float MIN_CORRELATION = 0.8f;
+	/**
+	 * Number of single frame results the hit rate is calculated over.
+	 */
+	private static final int WINDOW = 16;
+	/**
+	 * Start fusing when fewer single frames than this in the window hit.
+	 */
+	private static final int START_HITS = 2;
+	/**
+	 * Stop fusing when at least this many single frames in the window hit.
+	 */
+	private static final int STOP_HITS = 6;
+	/**
+	 * While fusing, decode every PROBE_INTERVAL:th frame on its own.
+	 */
+	private static final int PROBE_INTERVAL = 4;
+
+	private final boolean[] window = new boolean[WINDOW];
+	private int windowCount;
+	private int windowHits;
+	private int windowPos;
+
+	private byte[][] crops;
+	private int[][] rowProfiles;
+	private int[][] colProfiles;
+	private int[] sums;
+	private byte[] counts;
+	private int cropWidth;
+	private int cropHeight;
+	private int cropCount;
+	private int newest;
+
+	private boolean enabled = true;
+	private boolean active;
+	private boolean fusedLast;
+	private int framesSinceProbe;
+	private int fusedFrames;
+	private int fusedHits;
+
+	/**
+	 * @param enabled
+	 *            False to always decode single frames.
+	 */
+	void setEnabled(boolean enabled) {
+		if (!enabled && active) {
+			stop();
+		}
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return True if fused crops are currently being decoded.
+	 */
+	boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Adds a new frame and returns what should be decoded, either the frame
+	 * itself or the fusion of it with the previous ones.
+	 *
+	 * @param source
+	 *            The framing rect of the newest frame.
+	 * @return The source to decode.
+	 */
+	PlanarYUVLuminanceSource process(PlanarYUVLuminanceSource source) {
+		fusedLast = false;
+		if (!active) {
+			return source;
+		}
+		add(source);
+		if (++framesSinceProbe >= PROBE_INTERVAL) {
+			framesSinceProbe = 0;
+			return source;
+		}
+		if (cropCount < 2) {
+			return source;
+		}
+		fusedLast = true;
+		return fuse();
+	}
+
+	/**
+	 * Records the outcome of decoding what {@link #process} returned, and
+	 * switches fusion on or off.
+	 *
+	 * @param success
+	 *            True if any invoice fields were found.
+	 */
+	void onDecodeResult(boolean success) {
+		if (fusedLast) {
+			fusedFrames++;
+			if (success) {
+				fusedHits++;
+			}
+			return;
+		}
+		if (window[windowPos]) {
+			windowHits--;
+		}
+		window[windowPos] = success;
+		if (success) {
+			windowHits++;
+		}
+		windowPos = (windowPos + 1) % WINDOW;
+		if (windowCount < WINDOW) {
+			windowCount++;
+		}
+		if (!active && enabled && windowCount == WINDOW
+				&& windowHits < START_HITS) {
+			Log.d(TAG, "Starting fusion, " + windowHits + "/" + WINDOW
+					+ " single frames hit");
+			active = true;
+			cropCount = 0;
+			framesSinceProbe = 0;
+			clearWindow();
+		} else if (active && windowHits >= STOP_HITS) {
+			stop();
+		}
+	}
+
+	private void stop() {
+		Log.d(TAG, "Stopping fusion, " + fusedHits + "/" + fusedFrames
+				+ " fused frames hit");
+		active = false;
+		fusedFrames = 0;
+		fusedHits = 0;
+		clearWindow();
+	}
+
+	private void clearWindow() {
+		for (int i = 0; i < WINDOW; i++) {
+			window[i] = false;
+		}
+		windowCount = 0;
+		windowHits = 0;
+		windowPos = 0;
+	}
+
+	private void add(PlanarYUVLuminanceSource source) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		if (crops == null || width != cropWidth || height != cropHeight) {
+			cropWidth = width;
+			cropHeight = height;
+			crops = new byte[FRAMES][width * height];
+			rowProfiles = new int[FRAMES][height];
+			colProfiles = new int[FRAMES][width];
+			sums = new int[width * height];
+			counts = new byte[width * height];
+			cropCount = 0;
+		}
+		newest = (newest + 1) % FRAMES;
+		if (cropCount < FRAMES) {
+			cropCount++;
+		}
+		byte[] crop = crops[newest];
+		int[] rowProfile = rowProfiles[newest];
+		int[] colProfile = colProfiles[newest];
+		byte[] row = null;
+		for (int x = 0; x < width; x++) {
+			colProfile[x] = 0;
+		}
+		for (int y = 0; y < height; y++) {
+			row = source.getRow(y, row);
+			System.arraycopy(row, 0, crop, y * width, width);
+			int rowSum = 0;
+			for (int x = 0; x < width; x++) {
+				int luminance = row[x] & 0xff;
+				rowSum += luminance;
+				colProfile[x] += luminance;
+			}
+			rowProfile[y] = rowSum;
+		}
+	}
+
+	private PlanarYUVLuminanceSource fuse() {
+		int width = cropWidth;
+		int height = cropHeight;
+		byte[] reference = crops[newest];
+		for (int i = 0; i < sums.length; i++) {
+			sums[i] = reference[i] & 0xff;
+			counts[i] = 1;
+		}
+		for (int k = 1; k < cropCount; k++) {
+			int slot = (newest - k + FRAMES) % FRAMES;
+			int dx = bestShift(colProfiles[newest], colProfiles[slot], width);
+			int dy = bestShift(rowProfiles[newest], rowProfiles[slot], height);
+			if (dx == Integer.MIN_VALUE || dy == Integer.MIN_VALUE) {
+				continue;
+			}
+			byte[] crop = crops[slot];
+			int xStart = Math.max(0, -dx);
+			int xEnd = Math.min(width, width - dx);
+			int yStart = Math.max(0, -dy);
+			int yEnd = Math.min(height, height - dy);
+			for (int y = yStart; y < yEnd; y++) {
+				int offset = y * width;
+				int shiftedOffset = (y + dy) * width + dx;
+				for (int x = xStart; x < xEnd; x++) {
+					sums[offset + x] += crop[shiftedOffset + x] & 0xff;
+					counts[offset + x]++;
+				}
+			}
+		}
+		byte[] fused = new byte[width * height];
+		for (int i = 0; i < fused.length; i++) {
+			fused[i] = (byte) (sums[i] / counts[i]);
+		}
+		return new PlanarYUVLuminanceSource(fused, width, height, 0, 0,
+				width, height);
+	}
+
+	/**
+	 * Finds the shift d for which other[i + d] best matches reference[i], by
+	 * the correlation of the mean removed profiles.
+	 *
+	 * @return The shift, or Integer.MIN_VALUE if no shift correlates well
+	 *         enough.
+	 */
+	private static int bestShift(int[] reference, int[] other, int length) {
+		int bestShift = Integer.MIN_VALUE;
+		double bestCorrelation = MIN_CORRELATION;
+		for (int d = -MAX_SHIFT; d <= MAX_SHIFT; d++) {
+			int start = Math.max(0, -d);
+			int end = Math.min(length, length - d);
+			int n = end - start;
+			if (n <= 1) {
+				continue;
+			}
+			double sumA = 0;
+			double sumB = 0;
+			for (int i = start; i < end; i++) {
+				sumA += reference[i];
+				sumB += other[i + d];
+			}
+			double meanA = sumA / n;
+			double meanB = sumB / n;
+			double covariance = 0;
+			double varianceA = 0;
+			double varianceB = 0;
+			for (int i = start; i < end; i++) {
+				double a = reference[i] - meanA;
+				double b = other[i + d] - meanB;
+				covariance += a * b;
+				varianceA += a * a;
+				varianceB += b * b;
+			}
+			if (varianceA == 0 || varianceB == 0) {
+				continue;
+			}
+			double correlation = covariance / Math.sqrt(varianceA * varianceB);
+			if (correlation > bestCorrelation) {
+				bestCorrelation = correlation;
+				bestShift = d;
+			}
+		}
+		return bestShift;
+	}
+
+}
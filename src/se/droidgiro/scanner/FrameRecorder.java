@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps the latest raw preview frames in a memory mapped file, so frames that
+ * failed to decode on a device can be replayed off it. The file format is
+ * described in {@link FrameRecording}, which reads it.
+ *
+ * The file is sized on the first frame to hold as many frames of that size as
+ * fit in the size limit, and then the oldest frame is overwritten by each new
+ * one. Writing a frame is a copy into the mapping; the system writes it to
+ * the file in the background. If a frame is larger than the first, the
+ * recording starts over.
+ *
+ * Only used from the decode thread.
+ */
+final class FrameRecorder {
+
+	private final File file;
+	private final long maxSize;
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+	private int slotSize;
+	private int slotCount;
+	private int next;
+	private int count;
+	private long sequence;
+	private int lastSlot = -1;
+
+	/**
+	 * @param file
+	 *            the file to record to. An existing recording is replaced.
+	 * @param maxSize
+	 *            the largest size of the file in bytes.
+	 */
+	FrameRecorder(File file, long maxSize) {
+		this.file = file;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Records a frame.
+	 *
+	 * @param data
+	 *            the NV21 preview frame.
+	 * @param width
+	 *            the width of the frame.
+	 * @param height
+	 *            the height of the frame.
+	 * @param left
+	 *            the framing rectangle in the frame, or all 0 if unknown.
+	 * @param flags
+	 *            a combination of the FrameRecording flag constants.
+	 */
+	void record(byte[] data, int width, int height, int left, int top,
+			int right, int bottom, int flags) throws IOException {
+		int length = width * height * 3 / 2;
+		if (length > data.length) {
+			length = data.length;
+		}
+		int frameSize = FrameRecording.FRAME_HEADER_SIZE + length;
+		if (buffer == null || frameSize > slotSize) {
+			open(frameSize);
+		}
+		int slot = next;
+		buffer.position(FrameRecording.HEADER_SIZE + slot * slotSize);
+		buffer.putLong(sequence);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.putInt(width);
+		buffer.putInt(height);
+		buffer.putInt(left);
+		buffer.putInt(top);
+		buffer.putInt(right);
+		buffer.putInt(bottom);
+		buffer.putInt(flags);
+		buffer.putInt(0);
+		buffer.putInt(length);
+		buffer.put(data, 0, length);
+		sequence++;
+		next = (slot + 1) % slotCount;
+		if (count < slotCount) {
+			count++;
+		}
+		lastSlot = slot;
+		buffer.putInt(FrameRecording.NEXT_OFFSET, next);
+		buffer.putInt(FrameRecording.COUNT_OFFSET, count);
+		buffer.putLong(FrameRecording.SEQUENCE_OFFSET, sequence);
+	}
+
+	/**
+	 * Stores what was found in the last frame recorded.
+	 *
+	 * @param fields
+	 *            the fields found, as a combination of the Invoice field
+	 *            constants.
+	 */
+	void setFieldsFound(int fields) {
+		if (lastSlot != -1) {
+			buffer.putInt(FrameRecording.HEADER_SIZE + lastSlot * slotSize
+					+ FrameRecording.FIELDS_OFFSET, fields);
+		}
+	}
+
+	/**
+	 * Writes the recorded frames to the file and closes it.
+	 */
+	void close() throws IOException {
+		if (buffer != null) {
+			buffer.force();
+			buffer = null;
+		}
+		if (raf != null) {
+			raf.close();
+			raf = null;
+		}
+		lastSlot = -1;
+	}
+
+	private void open(int slotSize) throws IOException {
+		close();
+		int slotCount = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+				(maxSize - FrameRecording.HEADER_SIZE) / slotSize));
+		long size = FrameRecording.HEADER_SIZE + (long) slotSize * slotCount;
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(size);
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		this.slotSize = slotSize;
+		this.slotCount = slotCount;
+		next = 0;
+		count = 0;
+		buffer.putInt(0, FrameRecording.MAGIC);
+		buffer.putInt(4, FrameRecording.VERSION);
+		buffer.putInt(FrameRecording.SLOT_SIZE_OFFSET, slotSize);
+		buffer.putInt(FrameRecording.SLOT_COUNT_OFFSET, slotCount);
+		buffer.putInt(FrameRecording.NEXT_OFFSET, 0);
+		buffer.putInt(FrameRecording.COUNT_OFFSET, 0);
+		buffer.putLong(FrameRecording.SEQUENCE_OFFSET, sequence);
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file of preview frames written by {@link FrameRecorder}. Only uses
+ * the Java class library, so recordings can be read off the device.
+ *
+ * The file starts with a header, followed by a fixed number of equally sized
+ * slots used as a ring buffer:
+ *
+ * <pre>
+ * header: magic, version, slot size, slot count, next slot, frames, next sequence
+ * slot:   sequence, time, width, height, framing rect left, top, right, bottom,
+ *         flags, fields found, data length, NV21 data
+ * </pre>
+ *
+ * All values are big endian ints, except the sequence numbers and the time,
+ * which are longs.
+ */
+public final class FrameRecording {
+
+	static final int MAGIC = 0x44474652; // "DGFR"
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 32;
+	static final int SLOT_SIZE_OFFSET = 8;
+	static final int SLOT_COUNT_OFFSET = 12;
+	static final int NEXT_OFFSET = 16;
+	static final int COUNT_OFFSET = 20;
+	static final int SEQUENCE_OFFSET = 24;
+
+	static final int FRAME_HEADER_SIZE = 52;
+	static final int FIELDS_OFFSET = 44;
+
+	/**
+	 * Frame flag set when the frame was scanned in portrait mode, with the
+	 * framing rectangle rotated clockwise before scanning.
+	 */
+	public static final int FLAG_PORTRAIT = 1;
+
+	/**
+	 * A recorded frame.
+	 */
+	public static final class Frame {
+		public long sequence;
+		/**
+		 * When the frame was recorded, in milliseconds since the epoch.
+		 */
+		public long time;
+		public int width;
+		public int height;
+		/**
+		 * The framing rectangle in the frame when it was recorded.
+		 */
+		public int left;
+		public int top;
+		public int right;
+		public int bottom;
+		/**
+		 * A combination of the FLAG constants.
+		 */
+		public int flags;
+		/**
+		 * The fields the device found in the frame, as a combination of the
+		 * Invoice field constants.
+		 */
+		public int fields;
+		public byte[] data = new byte[0];
+		public int length;
+	}
+
+	private final MappedByteBuffer buffer;
+	private final int slotSize;
+	private final int slotCount;
+	private final int first;
+	private final int count;
+
+	/**
+	 * Opens a recording.
+	 *
+	 * @throws IOException
+	 *             if the file can not be read or is not a recording.
+	 */
+	public FrameRecording(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+					.size());
+		} finally {
+			raf.close();
+		}
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException(file + " is not a frame recording");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException(file + " has unknown version "
+					+ buffer.getInt(4));
+		}
+		slotSize = buffer.getInt(SLOT_SIZE_OFFSET);
+		slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+		if (slotCount <= 0) {
+			throw new IOException(file + " has no frames");
+		}
+		count = buffer.getInt(COUNT_OFFSET);
+		first = (buffer.getInt(NEXT_OFFSET) - count + slotCount) % slotCount;
+		if ((long) HEADER_SIZE + (long) slotSize * slotCount > buffer
+				.capacity()) {
+			throw new IOException(file + " is truncated");
+		}
+	}
+
+	/**
+	 * @return the number of frames in the recording.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Reads a frame.
+	 *
+	 * @param index
+	 *            the index of the frame, 0 being the oldest.
+	 * @param frame
+	 *            the frame to read into. Its data array is reused if it is
+	 *            large enough.
+	 * @return the frame.
+	 */
+	public Frame read(int index, Frame frame) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Frame " + index + " of "
+					+ count);
+		}
+		if (frame == null) {
+			frame = new Frame();
+		}
+		int offset = HEADER_SIZE + ((first + index) % slotCount) * slotSize;
+		ByteBuffer slot = buffer.duplicate();
+		slot.position(offset);
+		frame.sequence = slot.getLong();
+		frame.time = slot.getLong();
+		frame.width = slot.getInt();
+		frame.height = slot.getInt();
+		frame.left = slot.getInt();
+		frame.top = slot.getInt();
+		frame.right = slot.getInt();
+		frame.bottom = slot.getInt();
+		frame.flags = slot.getInt();
+		frame.fields = slot.getInt();
+		frame.length = slot.getInt();
+		if (frame.data.length < frame.length) {
+			frame.data = new byte[frame.length];
+		}
+		slot.get(frame.data, 0, frame.length);
+		return frame;
+	}
+
+}
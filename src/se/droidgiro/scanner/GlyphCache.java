@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.droidgiro.scanner.raster.PixelBuffer;
+
+/**
+ * Remembers the match percents of recently seen glyphs against the reference
+ * bitmaps, so that a glyph seen again in a later frame is classified without
+ * comparing it again.
+ *
+ * A glyph is identified by its signature: for each pixel the scanner
+ * compares, which of the colors the references have there the glyph has, if
+ * any. A comparison only counts the pixels where a glyph and a reference are
+ * equal, so glyphs with the same signature get the same percent from every
+ * comparison, and a percent found for one holds for all. The least recently
+ * used glyphs are dropped when more than the capacity are held, which keeps
+ * the memory used flat.
+ *
+ * A cache belongs to one scanner, and holds for as long as its references
+ * and the pixels compared do not change, at the match tolerance it was made
+ * for.
+ */
+final class GlyphCache {
+
+	/**
+	 * A glyph signature and the percents found for it.
+	 */
+	static final class Glyph {
+
+		private long[] bits;
+		private int hash;
+		/**
+		 * The percent found against each reference, NaN if not compared.
+		 */
+		private final float[] scores;
+		/**
+		 * The threshold each percent was found with. A percent below it is
+		 * only known to be below it, since the comparison may have been
+		 * abandoned.
+		 */
+		private final float[] thresholds;
+
+		private Glyph(int references) {
+			scores = new float[references];
+			thresholds = new float[references];
+			Arrays.fill(scores, Float.NaN);
+		}
+
+		private void setBits(long[] bits) {
+			this.bits = bits;
+			hash = Arrays.hashCode(bits);
+		}
+
+		/**
+		 * @return the percent against a reference, or NaN if it has to be
+		 *         compared.
+		 */
+		float score(int reference, float threshold) {
+			float score = scores[reference];
+			if (score >= thresholds[reference]
+					|| threshold >= thresholds[reference]) {
+				return score;
+			}
+			return Float.NaN;
+		}
+
+		void setScore(int reference, float threshold, float score) {
+			scores[reference] = score;
+			thresholds[reference] = threshold;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Glyph && Arrays.equals(bits, ((Glyph) o).bits);
+		}
+	}
+
+	private final Map<Glyph, Glyph> glyphs;
+	private final Map<PixelBuffer, Integer> references = new IdentityHashMap<PixelBuffer, Integer>();
+	private final Glyph probe = new Glyph(0);
+
+	/**
+	 * The match tolerance the percents are found with, in pixels.
+	 */
+	final int tolerancePixels;
+
+	/**
+	 * Glyphs looked up and found since the counts were last reset.
+	 */
+	int lookups;
+	int hits;
+
+	/**
+	 * @param capacity
+	 *            The most glyphs held.
+	 * @param referenceBitmaps
+	 *            The reference bitmaps the glyphs are compared with.
+	 * @param tolerancePixels
+	 *            The match tolerance the percents are found with.
+	 */
+	GlyphCache(final int capacity, Iterable<PixelBuffer> referenceBitmaps,
+			int tolerancePixels) {
+		this.tolerancePixels = tolerancePixels;
+		glyphs = new LinkedHashMap<Glyph, Glyph>(capacity * 4 / 3 + 1, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Glyph, Glyph> eldest) {
+				return size() > capacity;
+			}
+		};
+		for (PixelBuffer bmp : referenceBitmaps) {
+			references.put(bmp, references.size());
+		}
+	}
+
+	/**
+	 * @return the index of a reference bitmap, or -1 if it is not one of
+	 *         those the cache was made for.
+	 */
+	int indexOf(PixelBuffer referenceBitmap) {
+		Integer index = references.get(referenceBitmap);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Finds the glyph with a signature, or adds it with nothing compared.
+	 *
+	 * @param bits
+	 *            The signature, which is copied if added.
+	 */
+	Glyph lookup(long[] bits) {
+		lookups++;
+		probe.setBits(bits);
+		Glyph glyph = glyphs.get(probe);
+		probe.bits = null;
+		if (glyph != null) {
+			hits++;
+			return glyph;
+		}
+		glyph = new Glyph(references.size());
+		glyph.setBits(bits.clone());
+		glyphs.put(glyph, glyph);
+		return glyph;
+	}
+
+	void resetCounts() {
+		lookups = 0;
+		hits = 0;
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import se.droidgiro.scanner.raster.PixelBuffer;
+
+/**
+ * Cheap features of a glyph or reference bitmap, counted over the pixels the
+ * scanner compares: the black pixels in all, in each row and in each column.
+ *
+ * Every black pixel that one bitmap has and another lacks in a row is a pixel
+ * where they differ, so the difference in the ink, and the sums of the
+ * differences of the row and column counts, are each a lower bound of the
+ * pixels a comparison of the two finds differing. The bounds grow tighter in
+ * that order and cost more to find.
+ */
+final class GlyphFeatures {
+
+	private int ink;
+	private final int[] rows;
+	private final int[] columns;
+
+	/**
+	 * Counts the black pixels of a bitmap.
+	 *
+	 * @param pixels
+	 *            The pixels counted, packed as x in the high and y in the
+	 *            low 16 bits.
+	 * @param white
+	 *            The color of white pixels, all others are black.
+	 */
+	GlyphFeatures(PixelBuffer bmp, int[] pixels, int white) {
+		rows = new int[bmp.getHeight()];
+		columns = new int[bmp.getWidth()];
+		for (int i = 0; i < pixels.length; i++) {
+			int x = pixels[i] >>> 16;
+			int y = pixels[i] & 0xffff;
+			if (bmp.getPixel(x, y) != white) {
+				ink++;
+				rows[y]++;
+				columns[x]++;
+			}
+		}
+	}
+
+	/**
+	 * Tries the bounds in turn, cheapest first, until one exceeds a limit.
+	 *
+	 * @param other
+	 *            Features of a bitmap of the same size, counted over the
+	 *            same pixels.
+	 * @param limit
+	 *            The most differing pixels of interest.
+	 * @return A lower bound of the pixels where the bitmaps differ, above the
+	 *         limit if any bound is.
+	 */
+	int minDifferingPixels(GlyphFeatures other, float limit) {
+		int bound = Math.abs(ink - other.ink);
+		if (bound > limit) {
+			return bound;
+		}
+		bound = distance(rows, other.rows);
+		if (bound > limit) {
+			return bound;
+		}
+		return Math.max(bound, distance(columns, other.columns));
+	}
+
+	private static int distance(int[] a, int[] b) {
+		int sum = 0;
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			sum += Math.abs(a[i] - b[i]);
+		}
+		return sum;
+	}
+
+}
@@ -16,11 +16,6 @@
 
 package se.droidgiro.scanner;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import android.util.Log;
-
 /**
  * An invoice object represents all information needed to register a payment for
  * the same. A complete invoice contains:
@@ -44,10 +39,10 @@ import android.util.Log;
  */
 public class Invoice {
 
-	private final String TAG = "DroidGiro.Invoice";
-
 	public static final String FIELDS_FOUND = "Invoice.fieldsFound";
 
+	public static final String CONFIDENCE = "Invoice.confidence";
+
 	public static final int REFERENCE_FIELD = 1;
 
 	public static final int AMOUNT_FIELD = 2;
@@ -67,7 +62,7 @@ public class Invoice {
 	 * /g445_allman_beskrivning_inbetalningservice.pdf
 	 */
 
-	/**
+	/*
 	 * OCR PATTERN
 	 * <ul>
 	 * <li>Start of string</li>
@@ -91,11 +86,11 @@ public class Invoice {
 	 * <li>group 2 - Complete OCR number (including OCR check digit)</li>
 	 * <li>group 3 - OCR check digit</li>
 	 * </ul>
+	 * Found by {@link InvoiceTokenizer}, equivalent to the pattern
+	 * <code>^(H\s+#|#?\s+)(\d{1,24}(\d))\s{1,3}#\s+(?!\d{2}#)</code>
 	 */
-	private static final Pattern OCR_PATTERN = Pattern
-			.compile("^(H\\s+#|#?\\s+)(\\d{1,24}(\\d))\\s{1,3}#\\s+(?!\\d{2}#)");
 
-	/**
+	/*
 	 * AMOUNT PATTERN
 	 * <ul>
 	 * <li>Start of string and zero or more spaces OR</li>
@@ -116,11 +111,11 @@ public class Invoice {
 	 * <li>group 3 - Amount in re (fractional part)</li>
 	 * <li>group 4 - Amount check digit</li>
 	 * </ul>
+	 * Found by {@link InvoiceTokenizer}, equivalent to the pattern
+	 * <code>(^\s*|#\s+)(\d{1,8})\s+(\d{2})\s{1,3}(\d)\s&gt;</code>
 	 */
-	private static final Pattern AMOUNT_PATTERN = Pattern
-			.compile("(^\\s*|#\\s+)(\\d{1,8})\\s+(\\d{2})\\s{1,3}(\\d)\\s>");
 
-	/**
+	/*
 	 * BG/PG NUMBER PATTERN<br/>
 	 * <ul>
 	 * <li>Start of string and zero or more spaces OR</li>
@@ -142,9 +137,18 @@ public class Invoice {
 	 * <li>group 2 - BG/PG number</li>
 	 * <li>group 3 - Internal document type</li>
 	 * </ul>
+	 * Found by {@link InvoiceTokenizer}, equivalent to the pattern
+	 * <code>(^\s*|&gt;\s+)(\d{7,8})\s?#(\d{2})#\s*$</code>
+	 */
+
+	/**
+	 * The value each digit adds to the mod 10 sum, for digits in even and odd
+	 * positions counted from the check digit.
 	 */
-	private static final Pattern ACCOUNT_PATTERN = Pattern
-			.compile("(^\\s*|>\\s+)(\\d{7,8})\\s?#(\\d{2})#\\s*$");
+	private static final int[][] LUHN_TABLE = {
+			{ 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, { 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 } };
+
+	private final InvoiceTokenizer tokenizer = new InvoiceTokenizer();
 
 	private String reference;
 
@@ -184,6 +188,10 @@ public class Invoice {
 	}
 
 	public String getCompleteAmount() {
+		return formatAmount(amount, amountFractional);
+	}
+
+	static String formatAmount(int amount, short amountFractional) {
 		if (amount != -1 && amountFractional != -1) {
 			return Integer.toString(amount)
 					+ ","
@@ -211,6 +219,10 @@ public class Invoice {
 	 *         41 or 42 otherwise "PG"
 	 */
 	public String getType() {
+		return getType(internalDocumentType);
+	}
+
+	static String getType(short internalDocumentType) {
 		if (internalDocumentType == -1)
 			return null;
 		if (internalDocumentType == 41 || internalDocumentType == 42)
@@ -220,10 +232,15 @@ public class Invoice {
 	}
 
 	public String getGiroAccount() {
+		return formatGiroAccount(giroAccount, internalDocumentType);
+	}
+
+	static String formatGiroAccount(String giroAccount,
+			short internalDocumentType) {
 		if (giroAccount == null)
 			return null;
 
-		String type = getType();
+		String type = getType(internalDocumentType);
 		if ("BG".equals(type)) {
 			if (giroAccount.length() == 8)
 				return giroAccount.substring(0, 4) + "-"
@@ -292,7 +309,18 @@ public class Invoice {
 	}
 
 	/**
-	 * Returns all fields found in last decode.
+	 * @return an immutable copy of this invoice, safe to hand to another
+	 *         thread.
+	 */
+	public InvoiceSnapshot snapshot() {
+		return new InvoiceSnapshot(reference, amount, amountFractional,
+				checkDigitAmount, giroAccount, internalDocumentType,
+				lastFieldsDecoded);
+	}
+
+	/**
+	 * Returns all fields found in last decode, whether their values had
+	 * already been read or not.
 	 * 
 	 * @return all fields found in last decode.
 	 */
@@ -309,59 +337,105 @@ public class Invoice {
 	 *         considered "found" if its value has already been read.
 	 */
 	public int parse(String input) {
-		Log.v(TAG, "Parsing " + input);
 		int fieldsDecoded = 0;
+		int fieldsFound = 0;
+		tokenizer.tokenize(input);
 		/* Look for reference number */
-		Matcher m = OCR_PATTERN.matcher(input);
-		if (m.find()) {
-			if (isValidCC(m.group(2))) {
-				if (!m.group(2).equals(reference)) {
-					reference = m.group(2);
+		if (tokenizer.findReference()) {
+			int start = tokenizer.referenceStart;
+			int end = tokenizer.referenceEnd;
+			if (checksum(input, start, end, 0) % 10 == 0) {
+				fieldsFound += REFERENCE_FIELD;
+				if (!(reference != null && reference.length() == end - start && input
+						.regionMatches(start, reference, 0, end - start))) {
+					reference = input.substring(start, end);
 					fieldsDecoded += REFERENCE_FIELD;
 				}
 			}
 		}
 
 		/* Look for amount */
-		m = AMOUNT_PATTERN.matcher(input);
-		if (m.find()) {
-			if (isValidCC(m.group(2) + m.group(3) + m.group(4))) {
-				Log.v(TAG, "Got amount. Check digit valid.");
-				if (!(Integer.parseInt(m.group(2)) == amount
-						&& Short.parseShort(m.group(3)) == amountFractional && m
-						.group(4).equals(checkDigitAmount))) {
-					amount = Integer.parseInt(m.group(2));
-					amountFractional = Short.parseShort(m.group(3));
-					checkDigitAmount = m.group(4);
+		if (tokenizer.findAmount()) {
+			int start = tokenizer.amountStart;
+			int end = tokenizer.amountEnd;
+			int fractionalStart = tokenizer.fractionalStart;
+			int check = tokenizer.checkDigitAmount;
+			/* The check digit covers the whole SEK followed by the fractional part. */
+			int sum = checksum(input, check, check + 1, 0)
+					+ checksum(input, fractionalStart, fractionalStart + 2, 1)
+					+ checksum(input, start, end, 3);
+			if (sum % 10 == 0) {
+				fieldsFound += AMOUNT_FIELD;
+				int newAmount = parseDigits(input, start, end);
+				short newFractional = (short) parseDigits(input,
+						fractionalStart, fractionalStart + 2);
+				if (!(newAmount == amount
+						&& newFractional == amountFractional
+						&& checkDigitAmount != null && checkDigitAmount
+						.charAt(0) == input.charAt(check))) {
+					amount = newAmount;
+					amountFractional = newFractional;
+					checkDigitAmount = input.substring(check, check + 1);
 					fieldsDecoded += AMOUNT_FIELD;
 				}
 			} else
-				Log.e(TAG, "Got amount. Check digit invalid.");
+				if (EventLog.isLoggable(EventLog.AMOUNT_CHECK_FAILED))
+					EventLog.log(EventLog.AMOUNT_CHECK_FAILED);
 		}
 
 		/* Look for BG/PG number */
-		m = ACCOUNT_PATTERN.matcher(input);
-		if (m.find()) {
-			if (!(m.group(2).equals(giroAccount) && Short
-					.parseShort(m.group(3)) == internalDocumentType)) {
-				giroAccount = m.group(2);
-				internalDocumentType = Short.parseShort(m.group(3));
+		if (tokenizer.findAccount()) {
+			int start = tokenizer.accountStart;
+			int end = tokenizer.accountEnd;
+			short documentType = (short) parseDigits(input,
+					tokenizer.documentTypeStart,
+					tokenizer.documentTypeStart + 2);
+			fieldsFound += GIRO_ACCOUNT_FIELD + DOCUMENT_TYPE_FIELD;
+			if (!(giroAccount != null
+					&& giroAccount.length() == end - start
+					&& input.regionMatches(start, giroAccount, 0, end - start) && documentType == internalDocumentType)) {
+				giroAccount = input.substring(start, end);
+				internalDocumentType = documentType;
 				fieldsDecoded += GIRO_ACCOUNT_FIELD + DOCUMENT_TYPE_FIELD;
 			}
 		}
-		lastFieldsDecoded = fieldsDecoded;
+		lastFieldsDecoded = fieldsFound;
 		return fieldsDecoded;
 	}
 
-	private static boolean isValidCC(String num) {
-
-		final int[][] sumTable = { { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
-				{ 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 } };
-		int sum = 0, flip = 0;
+	/**
+	 * Calculates the mod 10 (Luhn) sum of a range of digits. A number is
+	 * valid if the sum of all its digits, including the check digit, is
+	 * divisible by 10. A number split in several ranges is summed range by
+	 * range.
+	 * 
+	 * @param num
+	 *            the characters holding the digits.
+	 * @param start
+	 *            the offset of the first digit of the range.
+	 * @param end
+	 *            the offset after the last digit of the range.
+	 * @param position
+	 *            the number of digits of the number to the right of this
+	 *            range, 0 if the range ends with the check digit.
+	 * @return the Luhn sum of the range.
+	 */
+	private static int checksum(CharSequence num, int start, int end,
+			int position) {
+		int sum = 0;
+		for (int i = end - 1; i >= start; i--)
+			sum += LUHN_TABLE[position++ & 0x1][num.charAt(i) - '0'];
+		return sum;
+	}
 
-		for (int i = num.length() - 1; i >= 0; i--)
-			sum += sumTable[flip++ & 0x1][Character.digit(num.charAt(i), 10)];
-		return sum % 10 == 0;
+	/**
+	 * @return the value of a range of digits.
+	 */
+	private static int parseDigits(CharSequence num, int start, int end) {
+		int value = 0;
+		for (int i = start; i < end; i++)
+			value = value * 10 + num.charAt(i) - '0';
+		return value;
 	}
 
 	public String toString() {
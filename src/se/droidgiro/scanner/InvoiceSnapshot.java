@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+/**
+ * An immutable copy of the fields of an {@link Invoice}. The decode thread
+ * publishes snapshots of what it has read, and the UI thread keeps the fields
+ * read so far as a snapshot that is replaced, never modified, so either
+ * thread can read a snapshot without locking.
+ */
+public final class InvoiceSnapshot {
+
+	/**
+	 * A snapshot with no fields defined.
+	 */
+	public static final InvoiceSnapshot EMPTY = new InvoiceSnapshot(null, -1,
+			(short) -1, null, null, (short) -1, 0);
+
+	private final String reference;
+
+	private final int amount;
+
+	private final short amountFractional;
+
+	private final String checkDigitAmount;
+
+	private final String giroAccount;
+
+	private final short internalDocumentType;
+
+	private final int lastFieldsDecoded;
+
+	InvoiceSnapshot(String reference, int amount, short amountFractional,
+			String checkDigitAmount, String giroAccount,
+			short internalDocumentType, int lastFieldsDecoded) {
+		this.reference = reference;
+		this.amount = amount;
+		this.amountFractional = amountFractional;
+		this.checkDigitAmount = checkDigitAmount;
+		this.giroAccount = giroAccount;
+		this.internalDocumentType = internalDocumentType;
+		this.lastFieldsDecoded = lastFieldsDecoded;
+	}
+
+	public String getReference() {
+		return reference;
+	}
+
+	public int getAmount() {
+		return amount;
+	}
+
+	public short getAmountFractional() {
+		return amountFractional;
+	}
+
+	public String getCompleteAmount() {
+		return Invoice.formatAmount(amount, amountFractional);
+	}
+
+	public String getCheckDigitAmount() {
+		return checkDigitAmount;
+	}
+
+	/**
+	 * @see Invoice#getType()
+	 */
+	public String getType() {
+		return Invoice.getType(internalDocumentType);
+	}
+
+	public String getGiroAccount() {
+		return Invoice.formatGiroAccount(giroAccount, internalDocumentType);
+	}
+
+	public String getRawGiroAccount() {
+		return giroAccount;
+	}
+
+	public short getInternalDocumentType() {
+		return internalDocumentType;
+	}
+
+	public boolean isReferenceDefined() {
+		return reference != null;
+	}
+
+	public boolean isAmountDefined() {
+		return amount != -1 && amountFractional != -1;
+	}
+
+	public boolean isGiroAccountDefined() {
+		return giroAccount != null;
+	}
+
+	public boolean isDocumentTypeDefined() {
+		return internalDocumentType != -1;
+	}
+
+	/**
+	 * @see Invoice#isComplete()
+	 */
+	public boolean isComplete() {
+		return reference != null && amount != -1 && amountFractional != -1
+				&& checkDigitAmount != null && giroAccount != null;
+	}
+
+	/**
+	 * @return the fields found in the decode this snapshot was taken after.
+	 */
+	public int getLastFieldsDecoded() {
+		return lastFieldsDecoded;
+	}
+
+	/**
+	 * @return the defined fields, as a combination of the Invoice field
+	 *         constants.
+	 */
+	public int getDefinedFields() {
+		int fields = 0;
+		if (isReferenceDefined())
+			fields |= Invoice.REFERENCE_FIELD;
+		if (isAmountDefined())
+			fields |= Invoice.AMOUNT_FIELD;
+		if (isGiroAccountDefined())
+			fields |= Invoice.GIRO_ACCOUNT_FIELD;
+		if (isDocumentTypeDefined())
+			fields |= Invoice.DOCUMENT_TYPE_FIELD;
+		return fields;
+	}
+
+	/**
+	 * Copies the fields found in the last decode of a scanned snapshot into
+	 * a copy of this one.
+	 *
+	 * @param scanned
+	 *            a snapshot published by the decoder.
+	 * @return the merged snapshot, or this snapshot if the scanned one did not
+	 *         contain any new data.
+	 */
+	public InvoiceSnapshot merge(InvoiceSnapshot scanned) {
+		int fields = scanned.lastFieldsDecoded;
+		String reference = this.reference;
+		int amount = this.amount;
+		short amountFractional = this.amountFractional;
+		String checkDigitAmount = this.checkDigitAmount;
+		String giroAccount = this.giroAccount;
+		short internalDocumentType = this.internalDocumentType;
+		boolean changed = false;
+
+		if ((fields & Invoice.AMOUNT_FIELD) == Invoice.AMOUNT_FIELD) {
+			if (!(amount == scanned.amount && amountFractional == scanned.amountFractional)) {
+				amount = scanned.amount;
+				amountFractional = scanned.amountFractional;
+				checkDigitAmount = scanned.checkDigitAmount;
+				changed = true;
+			}
+		}
+
+		if ((fields & Invoice.DOCUMENT_TYPE_FIELD) == Invoice.DOCUMENT_TYPE_FIELD) {
+			if (internalDocumentType != scanned.internalDocumentType) {
+				internalDocumentType = scanned.internalDocumentType;
+				changed = true;
+			}
+		}
+
+		if ((fields & Invoice.GIRO_ACCOUNT_FIELD) == Invoice.GIRO_ACCOUNT_FIELD) {
+			if (!scanned.giroAccount.equals(giroAccount)) {
+				giroAccount = scanned.giroAccount;
+				changed = true;
+			}
+		}
+
+		if ((fields & Invoice.REFERENCE_FIELD) == Invoice.REFERENCE_FIELD) {
+			if (!scanned.reference.equals(reference)) {
+				reference = scanned.reference;
+				changed = true;
+			}
+		}
+
+		if (!changed)
+			return this;
+		return new InvoiceSnapshot(reference, amount, amountFractional,
+				checkDigitAmount, giroAccount, internalDocumentType, fields);
+	}
+
+	/**
+	 * @param fields
+	 *            the fields to clear, as a combination of the Invoice field
+	 *            constants.
+	 * @return a copy of this snapshot without the given fields.
+	 */
+	public InvoiceSnapshot without(int fields) {
+		boolean reference = (fields & Invoice.REFERENCE_FIELD) != 0;
+		boolean amount = (fields & Invoice.AMOUNT_FIELD) != 0;
+		boolean giroAccount = (fields & Invoice.GIRO_ACCOUNT_FIELD) != 0;
+		boolean documentType = (fields & Invoice.DOCUMENT_TYPE_FIELD) != 0;
+		return new InvoiceSnapshot(reference ? null : this.reference,
+				amount ? -1 : this.amount, amount ? -1
+						: this.amountFractional, amount ? null
+						: this.checkDigitAmount, giroAccount ? null
+						: this.giroAccount, documentType ? -1
+						: this.internalDocumentType, lastFieldsDecoded);
+	}
+
+	/**
+	 * @param fields
+	 *            the fields to keep, as a combination of the Invoice field
+	 *            constants.
+	 * @return a copy of this snapshot with only the given fields, and only
+	 *         those of them found in the last decode.
+	 */
+	public InvoiceSnapshot retain(int fields) {
+		InvoiceSnapshot retained = without(~fields);
+		return new InvoiceSnapshot(retained.reference, retained.amount,
+				retained.amountFractional, retained.checkDigitAmount,
+				retained.giroAccount, retained.internalDocumentType,
+				lastFieldsDecoded & fields);
+	}
+
+	public String toString() {
+		return "Snapshot of fields " + getDefinedFields() + ": reference "
+				+ reference + ", amount " + getCompleteAmount() + " ("
+				+ checkDigitAmount + "), account " + getGiroAccount() + " ("
+				+ getType() + ")";
+	}
+
+}
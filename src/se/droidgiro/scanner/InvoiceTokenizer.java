@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+/**
+ * Finds the invoice fields of a scanned OCR line in a single pass over its
+ * characters, without regular expressions.
+ *
+ * The line is first split into tokens: runs of digits, runs of whitespace and
+ * single other characters. Since a digit run can never end in whitespace and
+ * vice versa, the patterns the fields used to be found with never backtrack
+ * into a run, so each of them becomes a check of a few consecutive tokens. The
+ * fields are reported as offsets into the line; no Strings are created.
+ *
+ * The accepted lines are exactly those accepted by the patterns documented in
+ * {@link Invoice}:
+ *
+ * <pre>
+ * reference: ^(H\s+#|#?\s+)(\d{1,24}(\d))\s{1,3}#\s+(?!\d{2}#)
+ * amount:    (^\s*|#\s+)(\d{1,8})\s+(\d{2})\s{1,3}(\d)\s&gt;
+ * account:   (^\s*|&gt;\s+)(\d{7,8})\s?#(\d{2})#\s*$
+ * </pre>
+ */
+final class InvoiceTokenizer {
+
+	/**
+	 * Token type of a run of digits.
+	 */
+	private static final char DIGITS = '0';
+	/**
+	 * Token type of a run of whitespace. Any other token is a single
+	 * character, and its type is that character.
+	 */
+	private static final char SPACES = ' ';
+
+	private int count;
+	private char[] types = new char[0];
+	private int[] starts = new int[0];
+	private int[] lengths = new int[0];
+
+	int referenceStart;
+	int referenceEnd;
+	int amountStart;
+	int amountEnd;
+	int fractionalStart;
+	int checkDigitAmount;
+	int accountStart;
+	int accountEnd;
+	int documentTypeStart;
+
+	/**
+	 * Splits the line into tokens. Must be called before looking for fields.
+	 *
+	 * @param input
+	 *            the scanned OCR line.
+	 */
+	void tokenize(CharSequence input) {
+		int length = input.length();
+		if (types.length < length) {
+			/* Only grows, so that parsing lines does not allocate. */
+			types = new char[length];
+			starts = new int[length];
+			lengths = new int[length];
+		}
+		count = 0;
+		for (int i = 0; i < length; i++) {
+			char c = input.charAt(i);
+			char type;
+			if (c >= '0' && c <= '9') {
+				type = DIGITS;
+			} else if (isWhitespace(c)) {
+				type = SPACES;
+			} else {
+				type = c;
+			}
+			if (count > 0 && type == types[count - 1]
+					&& (type == DIGITS || type == SPACES)) {
+				lengths[count - 1]++;
+			} else {
+				types[count] = type;
+				starts[count] = i;
+				lengths[count] = 1;
+				count++;
+			}
+		}
+	}
+
+	/**
+	 * Looks for the reference number at the start of the line. On success
+	 * the reference, including its check digit, is found between
+	 * referenceStart and referenceEnd.
+	 *
+	 * @return true if a reference number was found.
+	 */
+	boolean findReference() {
+		int t;
+		if (is(0, 'H')) {
+			if (!is(1, SPACES) || !is(2, '#')) {
+				return false;
+			}
+			t = 3;
+		} else {
+			t = is(0, '#') ? 1 : 0;
+			if (!is(t, SPACES)) {
+				return false;
+			}
+			t++;
+		}
+		if (!is(t, DIGITS, 2, 25) || !is(t + 1, SPACES, 1, 3)
+				|| !is(t + 2, '#') || !is(t + 3, SPACES)) {
+			return false;
+		}
+		/*
+		 * The whitespace after the # may not be followed by two digits and a
+		 * #, since that is the account number. A longer run of whitespace can
+		 * be matched one short though.
+		 */
+		if (lengths[t + 3] == 1 && is(t + 4, DIGITS, 2, 2) && is(t + 5, '#')) {
+			return false;
+		}
+		referenceStart = starts[t];
+		referenceEnd = referenceStart + lengths[t];
+		return true;
+	}
+
+	/**
+	 * Looks for the first amount in the line, either at its start or after a
+	 * #. On success the whole SEK are found between amountStart and
+	 * amountEnd, followed by the two fractional digits at fractionalStart and
+	 * the check digit at checkDigitAmount.
+	 *
+	 * @return true if an amount was found.
+	 */
+	boolean findAmount() {
+		if (!is(0, '#') && matchAmount(is(0, SPACES) ? 1 : 0)) {
+			return true;
+		}
+		for (int t = 0; t < count; t++) {
+			if (types[t] == '#' && is(t + 1, SPACES) && matchAmount(t + 2)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matchAmount(int t) {
+		if (!is(t, DIGITS, 1, 8) || !is(t + 1, SPACES)
+				|| !is(t + 2, DIGITS, 2, 2) || !is(t + 3, SPACES, 1, 3)
+				|| !is(t + 4, DIGITS, 1, 1) || !is(t + 5, SPACES, 1, 1)
+				|| !is(t + 6, '>')) {
+			return false;
+		}
+		amountStart = starts[t];
+		amountEnd = amountStart + lengths[t];
+		fractionalStart = starts[t + 2];
+		checkDigitAmount = starts[t + 4];
+		return true;
+	}
+
+	/**
+	 * Looks for the first account number in the line, either at its start or
+	 * after a &gt;, that ends the line. On success the account number is found
+	 * between accountStart and accountEnd, and the two digits of the document
+	 * type at documentTypeStart.
+	 *
+	 * @return true if an account number was found.
+	 */
+	boolean findAccount() {
+		if (!is(0, '>') && matchAccount(is(0, SPACES) ? 1 : 0)) {
+			return true;
+		}
+		for (int t = 0; t < count; t++) {
+			if (types[t] == '>' && is(t + 1, SPACES) && matchAccount(t + 2)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matchAccount(int t) {
+		if (!is(t, DIGITS, 7, 8)) {
+			return false;
+		}
+		int hash = is(t + 1, SPACES, 1, 1) ? t + 2 : t + 1;
+		if (!is(hash, '#') || !is(hash + 1, DIGITS, 2, 2)
+				|| !is(hash + 2, '#')) {
+			return false;
+		}
+		int end = is(hash + 3, SPACES) ? hash + 4 : hash + 3;
+		/* The end of the line, or a final line terminator. */
+		if (end < count
+				&& !(end == count - 1 && isLineTerminator(types[end]))) {
+			return false;
+		}
+		accountStart = starts[t];
+		accountEnd = accountStart + lengths[t];
+		documentTypeStart = starts[hash + 1];
+		return true;
+	}
+
+	private boolean is(int t, char type) {
+		return t < count && types[t] == type;
+	}
+
+	private boolean is(int t, char type, int minLength, int maxLength) {
+		return t < count && types[t] == type && lengths[t] >= minLength
+				&& lengths[t] <= maxLength;
+	}
+
+	/**
+	 * @return true for the characters matched by \s.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+				|| c == '\f' || c == '\r';
+	}
+
+	/**
+	 * @return true for the line terminators $ may precede which are not
+	 *         whitespace.
+	 */
+	private static boolean isLineTerminator(char c) {
+		return c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+/**
+ * Decodes the glyphs of an OCR line as a whole, choosing the highest scoring
+ * sequence of characters that fits the grammar of the payment line, instead
+ * of classifying each glyph on its own.
+ *
+ * Leaving out whitespace, the line is a sequence of segments:
+ *
+ * <pre>
+ * # reference # amount fraction check &gt; account # type #
+ * </pre>
+ *
+ * where the reference is 2-25 digits, amount, fraction and check digit
+ * together 4-11 digits, the account 7-8 digits and the document type 2
+ * digits. The segments are compiled into an automaton with one state per
+ * segment and number of glyphs read in it, and a Viterbi search finds the
+ * best path through it. Since the camera may only see part of the line, a
+ * path may start and end in any segment, and the length limits are not
+ * enforced on a segment cut off by the start or end of the line.
+ *
+ * The digit chosen for a glyph does not affect the state, so each glyph is
+ * scored once per character class: the best digit, '#' and '&gt;'. A class is
+ * only scored when some live path can read it at that glyph, so for example
+ * the '&gt;' reference is not compared with glyphs that can only be part of
+ * the reference number or the account.
+ */
+final class LineDecoder {
+
+	/**
+	 * Scores a glyph against a reference character.
+	 */
+	interface GlyphScorer {
+		/**
+		 * @param glyph
+		 *            the index of the glyph in the line.
+		 * @param symbol
+		 *            the reference character.
+		 * @param threshold
+		 *            the comparison may be abandoned below this score.
+		 * @return the match percent.
+		 */
+		float score(int glyph, char symbol, float threshold);
+	}
+
+	private static final int DIGIT = 0;
+	private static final int HASH = 1;
+	private static final int GT = 2;
+	private static final int CLASSES = 3;
+
+	private static final char[] DIGITS = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9' };
+
+	private static final int[] SEGMENT_CLASS = { HASH, DIGIT, HASH, DIGIT, GT,
+			DIGIT, HASH, DIGIT, HASH };
+	private static final int[] SEGMENT_MIN = { 1, 2, 1, 4, 1, 7, 1, 2, 1 };
+	private static final int[] SEGMENT_MAX = { 1, 25, 1, 11, 1, 8, 1, 2, 1 };
+	private static final int SEGMENTS = SEGMENT_CLASS.length;
+
+	/**
+	 * First state of each segment. A state is a segment and a number of
+	 * glyphs read in it, and comes in two variants depending on whether the
+	 * segment started at the first glyph.
+	 */
+	private static final int[] SEGMENT_STATE = new int[SEGMENTS];
+	private static final int STATES;
+	static {
+		int states = 0;
+		for (int i = 0; i < SEGMENTS; i++) {
+			SEGMENT_STATE[i] = states;
+			states += SEGMENT_MAX[i];
+		}
+		STATES = states * 2;
+	}
+
+	private static final float DEAD = -1f;
+	/**
+	 * Paths scoring more than this below the best path are dropped, so
+	 * that classes only they could read are not scored.
+	 */
+	private static final float BEAM = 100f;
+
+	private float minScore;
+
+	private float[] scores = new float[STATES];
+	private float[] nextScores = new float[STATES];
+	private int[][] backPointers = new int[0][];
+	private float[][] classScores = new float[0][CLASSES];
+	private char[][] classSymbols = new char[0][CLASSES];
+	private int[] stateSegment = new int[STATES];
+	private int[] stateCount = new int[STATES];
+
+	LineDecoder() {
+		for (int segment = 0; segment < SEGMENTS; segment++) {
+			for (int count = 1; count <= SEGMENT_MAX[segment]; count++) {
+				for (int partial = 0; partial < 2; partial++) {
+					int state = state(segment, count, partial == 1);
+					stateSegment[state] = segment;
+					stateCount[state] = count;
+				}
+			}
+		}
+	}
+
+	private static int state(int segment, int count, boolean partial) {
+		return (SEGMENT_STATE[segment] + count - 1) * 2 + (partial ? 1 : 0);
+	}
+
+	/**
+	 * Decodes a line of glyphs.
+	 *
+	 * @param glyphs
+	 *            the number of glyphs in the line.
+	 * @param minScore
+	 *            the lowest match percent accepted for a glyph.
+	 * @param scorer
+	 *            scores the glyphs.
+	 * @param result
+	 *            receives the decoded characters, at least glyphs long.
+	 * @param resultScores
+	 *            receives the match percent of each decoded character, at
+	 *            least glyphs long.
+	 * @return false if no sequence of characters scoring at least the minimum
+	 *         for every glyph fits the grammar.
+	 */
+	boolean decode(int glyphs, float minScore, GlyphScorer scorer,
+			char[] result, float[] resultScores) {
+		if (glyphs == 0) {
+			return false;
+		}
+		this.minScore = minScore;
+		ensureCapacity(glyphs);
+		for (int g = 0; g < glyphs; g++) {
+			for (int c = 0; c < CLASSES; c++) {
+				classScores[g][c] = Float.NaN;
+			}
+		}
+		/* A path may start anywhere in the grammar. */
+		for (int s = 0; s < STATES; s++) {
+			scores[s] = DEAD;
+		}
+		boolean started = false;
+		for (int segment = 0; segment < SEGMENTS; segment++) {
+			float score = classScore(scorer, 0, SEGMENT_CLASS[segment]);
+			if (score != DEAD) {
+				scores[state(segment, 1, true)] = score;
+				started = true;
+			}
+		}
+		if (!started) {
+			return false;
+		}
+		for (int g = 1; g < glyphs; g++) {
+			int[] back = backPointers[g];
+			boolean alive = false;
+			for (int s = 0; s < STATES; s++) {
+				nextScores[s] = DEAD;
+			}
+			for (int s = 0; s < STATES; s++) {
+				if (scores[s] == DEAD) {
+					continue;
+				}
+				int segment = stateSegment[s];
+				int count = stateCount[s];
+				boolean partial = (s & 1) == 1;
+				if (count < SEGMENT_MAX[segment]) {
+					alive |= relax(scorer, g, s, state(segment, count + 1,
+							partial), SEGMENT_CLASS[segment], back);
+				}
+				if (segment + 1 < SEGMENTS
+						&& (partial || count >= SEGMENT_MIN[segment])) {
+					alive |= relax(scorer, g, s, state(segment + 1, 1, false),
+							SEGMENT_CLASS[segment + 1], back);
+				}
+			}
+			if (!alive) {
+				return false;
+			}
+			prune(nextScores);
+			float[] swap = scores;
+			scores = nextScores;
+			nextScores = swap;
+		}
+		/* A path may end anywhere in the grammar. */
+		int best = -1;
+		for (int s = 0; s < STATES; s++) {
+			if (scores[s] != DEAD && (best == -1 || scores[s] > scores[best])) {
+				best = s;
+			}
+		}
+		for (int g = glyphs - 1; g >= 0; g--) {
+			int symbolClass = SEGMENT_CLASS[stateSegment[best]];
+			result[g] = classSymbols[g][symbolClass];
+			resultScores[g] = classScores[g][symbolClass];
+			if (g > 0) {
+				best = backPointers[g][best];
+			}
+		}
+		return true;
+	}
+
+	private static void prune(float[] scores) {
+		float best = DEAD;
+		for (int s = 0; s < STATES; s++) {
+			if (scores[s] > best) {
+				best = scores[s];
+			}
+		}
+		for (int s = 0; s < STATES; s++) {
+			if (scores[s] < best - BEAM) {
+				scores[s] = DEAD;
+			}
+		}
+	}
+
+	private boolean relax(GlyphScorer scorer, int g, int from, int to,
+			int symbolClass, int[] back) {
+		float score = classScore(scorer, g, symbolClass);
+		if (score == DEAD) {
+			return false;
+		}
+		score += scores[from];
+		if (score > nextScores[to]) {
+			nextScores[to] = score;
+			back[to] = from;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the best score of a glyph within a character class, or DEAD if
+	 *         no character in the class scores above the minimum.
+	 */
+	private float classScore(GlyphScorer scorer, int g, int symbolClass) {
+		float score = classScores[g][symbolClass];
+		if (score == score) {
+			return score;
+		}
+		float best = minScore;
+		char bestSymbol = 0;
+		if (symbolClass == DIGIT) {
+			for (int i = 0; i < DIGITS.length; i++) {
+				float percent = scorer.score(g, DIGITS[i], best);
+				if (percent > best) {
+					best = percent;
+					bestSymbol = DIGITS[i];
+				}
+			}
+		} else {
+			char symbol = symbolClass == HASH ? '#' : '>';
+			float percent = scorer.score(g, symbol, best);
+			if (percent > best) {
+				best = percent;
+				bestSymbol = symbol;
+			}
+		}
+		score = bestSymbol == 0 ? DEAD : best;
+		classScores[g][symbolClass] = score;
+		classSymbols[g][symbolClass] = bestSymbol;
+		return score;
+	}
+
+	private void ensureCapacity(int glyphs) {
+		if (backPointers.length < glyphs) {
+			backPointers = new int[glyphs][STATES];
+			classScores = new float[glyphs][CLASSES];
+			classSymbols = new char[glyphs][CLASSES];
+		}
+	}
+
+}
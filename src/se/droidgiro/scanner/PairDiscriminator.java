@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.droidgiro.scanner.raster.PixelBuffer;
+
+/**
+ * Tells apart the pairs of characters most often read as each other, for
+ * glyphs that match both about equally well.
+ *
+ * For each pair the pixels where the two references differ are found once,
+ * every pixel of the bitmap rather than the sample the scanner compares. A
+ * glyph is taken as the character of the pair it agrees with in more of
+ * those pixels, so the decision rests only on the strokes that set the two
+ * apart.
+ */
+final class PairDiscriminator {
+
+	/**
+	 * The pairs of characters that are confused.
+	 */
+	static final String[] CONFUSABLE_PAIRS = { "38", "17", "56", "08", "#8" };
+
+	/**
+	 * Two characters and the pixels where their references differ.
+	 */
+	static final class Pair {
+
+		final char first;
+		final char second;
+		final PixelBuffer firstBmp;
+		final PixelBuffer secondBmp;
+		/**
+		 * Packed as x in the high and y in the low 16 bits.
+		 */
+		private final int[] pixels;
+
+		private Pair(char first, char second, PixelBuffer firstBmp,
+				PixelBuffer secondBmp) {
+			this.first = first;
+			this.second = second;
+			this.firstBmp = firstBmp;
+			this.secondBmp = secondBmp;
+			int width = Math.min(firstBmp.getWidth(), secondBmp.getWidth());
+			int height = Math.min(firstBmp.getHeight(), secondBmp.getHeight());
+			int[] differing = new int[width * height];
+			int n = 0;
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (firstBmp.getPixel(x, y) != secondBmp.getPixel(x, y)) {
+						differing[n++] = x << 16 | y;
+					}
+				}
+			}
+			pixels = new int[n];
+			System.arraycopy(differing, 0, pixels, 0, n);
+		}
+
+		char other(char c) {
+			return c == first ? second : first;
+		}
+
+		PixelBuffer reference(char c) {
+			return c == first ? firstBmp : secondBmp;
+		}
+
+		/**
+		 * @return the character of the pair a glyph agrees with in more of
+		 *         the pixels where they differ, or the first on a tie.
+		 */
+		char decide(PixelBuffer bmp) {
+			int votes = 0;
+			for (int i = 0; i < pixels.length; i++) {
+				int x = pixels[i] >>> 16;
+				int y = pixels[i] & 0xffff;
+				if (bmp.getPixel(x, y) == firstBmp.getPixel(x, y)) {
+					votes++;
+				} else {
+					votes--;
+				}
+			}
+			return votes >= 0 ? first : second;
+		}
+	}
+
+	private final Map<Character, List<Pair>> pairs = new HashMap<Character, List<Pair>>();
+
+	/**
+	 * Prepares the pairs whose characters both have references.
+	 */
+	PairDiscriminator(Map<Character, PixelBuffer> charMap) {
+		for (String chars : CONFUSABLE_PAIRS) {
+			char first = chars.charAt(0);
+			char second = chars.charAt(1);
+			PixelBuffer firstBmp = charMap.get(first);
+			PixelBuffer secondBmp = charMap.get(second);
+			if (firstBmp != null && secondBmp != null) {
+				Pair pair = new Pair(first, second, firstBmp, secondBmp);
+				add(first, pair);
+				add(second, pair);
+			}
+		}
+	}
+
+	private void add(char c, Pair pair) {
+		List<Pair> list = pairs.get(c);
+		if (list == null) {
+			list = new ArrayList<Pair>();
+			pairs.put(c, list);
+		}
+		list.add(pair);
+	}
+
+	/**
+	 * @return the pairs a character is part of, or null if none.
+	 */
+	List<Pair> pairsOf(char c) {
+		return pairs.get(c);
+	}
+
+}
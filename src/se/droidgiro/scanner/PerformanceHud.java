@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import se.droidgiro.scanner.camera.CameraManager;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * An overlay showing how the decoding performs on this device: decode frame
+ * rate, the share of camera frames not decoded, garbage collections, how often
+ * fields are found and the mean time of each pipeline stage.
+ *
+ * The figures are taken from {@link PipelineMetrics} twice a second and cover
+ * the time since the previous update. Between updates the view only redraws
+ * the text it already has. The text is formatted into preallocated char
+ * arrays, so drawing does not allocate. The last line shows the mean time of
+ * drawing the overlay itself.
+ */
+public final class PerformanceHud extends View {
+
+	private static final long UPDATE_INTERVAL = 500L;
+
+	private static final int LINES = 6;
+	private static final int LINE_LENGTH = 48;
+
+	private static final String[] STAGE_LABELS = { "crop ", "light ",
+			"fuse ", "contrast ", "segment ", "scale ", "match ", "parse ",
+			"total " };
+
+	private final Paint textPaint;
+	private final Paint backgroundPaint;
+	private final float lineHeight;
+	private final float padding;
+
+	private final char[][] lines = new char[LINES][LINE_LENGTH];
+	private final int[] lineLengths = new int[LINES];
+	private int line;
+
+	private final PipelineMetrics.Snapshot previous = new PipelineMetrics.Snapshot();
+	private final PipelineMetrics.Snapshot current = new PipelineMetrics.Snapshot();
+	private long lastUpdate;
+	private int lastGcCount;
+	private long drawNanos;
+	private int draws;
+
+	// This constructor is used when the class is built from an XML resource.
+	public PerformanceHud(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		float density = getResources().getDisplayMetrics().density;
+		textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		textPaint.setColor(0xffffffff);
+		textPaint.setTypeface(Typeface.MONOSPACE);
+		textPaint.setTextSize(11 * density);
+		backgroundPaint = new Paint();
+		backgroundPaint.setColor(0xa0000000);
+		lineHeight = 13 * density;
+		padding = 4 * density;
+	}
+
+	/**
+	 * Shows or hides the overlay. GCs are only counted while it is shown,
+	 * since counting them makes every allocation a little slower.
+	 */
+	public void setActive(boolean active) {
+		if (active) {
+			Debug.startAllocCounting();
+			lastGcCount = Debug.getGlobalGcInvocationCount();
+			PipelineMetrics.get().snapshot(previous);
+			lastUpdate = SystemClock.uptimeMillis();
+			line = 0;
+			lineLengths[0] = 0;
+			setVisibility(VISIBLE);
+			invalidate();
+		} else {
+			setVisibility(GONE);
+			Debug.stopAllocCounting();
+		}
+	}
+
+	@Override
+	public void onDraw(Canvas canvas) {
+		long start = System.nanoTime();
+		long now = SystemClock.uptimeMillis();
+		if (now - lastUpdate >= UPDATE_INTERVAL) {
+			update(now);
+		}
+		Rect frame = CameraManager.get().getFramingRect();
+		float top = frame == null || frame.bottom + padding + LINES
+				* lineHeight > getHeight() ? 0 : frame.bottom + padding;
+		int left = frame == null ? 0 : frame.left;
+		canvas.drawRect(left, top, getWidth() - left, top + 2 * padding + line
+				* lineHeight, backgroundPaint);
+		for (int i = 0; i < line; i++) {
+			canvas.drawText(lines[i], 0, lineLengths[i], left + padding, top
+					+ padding + (i + 1) * lineHeight - textPaint.descent(),
+					textPaint);
+		}
+		drawNanos += System.nanoTime() - start;
+		draws++;
+		postInvalidateDelayed(UPDATE_INTERVAL);
+	}
+
+	private void update(long now) {
+		PipelineMetrics.get().snapshot(current);
+		float seconds = (now - lastUpdate) / 1000f;
+		int frames = current.frames - previous.frames;
+		int successes = current.successes - previous.successes;
+		int fields = current.fieldsFound - previous.fieldsFound;
+		float frameRate = frames / seconds;
+		int previewFrameRate = CameraManager.get().getPreviewFrameRate();
+		int gcCount = Debug.getGlobalGcInvocationCount();
+
+		line = 0;
+		startLine();
+		appendFixed(frameRate, 1);
+		append(" fps  drop ");
+		if (previewFrameRate > 0) {
+			appendFixed(Math.max(0f, 100f - 100f * frameRate
+					/ previewFrameRate), 0);
+			append('%');
+		} else {
+			append('-');
+		}
+		append("  gc ");
+		appendInt(gcCount - lastGcCount);
+		endLine();
+
+		startLine();
+		append("found ");
+		appendFixed(frames == 0 ? 0 : 100f * successes / frames, 0);
+		append("%  fields/frame ");
+		appendFixed(frames == 0 ? 0 : (float) fields / frames, 2);
+		append("  cache ");
+		int lookups = current.glyphLookups - previous.glyphLookups;
+		appendFixed(lookups == 0 ? 0 : 100f
+				* (current.glyphHits - previous.glyphHits) / lookups, 0);
+		append('%');
+		endLine();
+
+		int stage = 0;
+		while (stage < PipelineMetrics.STAGES) {
+			startLine();
+			for (int n = 0; n < 3 && stage < PipelineMetrics.STAGES; n++, stage++) {
+				int count = current.counts[stage] - previous.counts[stage];
+				long micros = current.totalMicros[stage]
+						- previous.totalMicros[stage];
+				append(STAGE_LABELS[stage]);
+				appendFixed(count == 0 ? 0 : micros / 1000f / count, 1);
+				append("  ");
+			}
+			endLine();
+		}
+
+		startLine();
+		append("hud ");
+		appendFixed(draws == 0 ? 0 : drawNanos / 1000000f / draws, 2);
+		append(" ms");
+		endLine();
+
+		System.arraycopy(current.counts, 0, previous.counts, 0,
+				PipelineMetrics.STAGES);
+		System.arraycopy(current.totalMicros, 0, previous.totalMicros, 0,
+				PipelineMetrics.STAGES);
+		previous.frames = current.frames;
+		previous.successes = current.successes;
+		previous.fieldsFound = current.fieldsFound;
+		previous.glyphLookups = current.glyphLookups;
+		previous.glyphHits = current.glyphHits;
+		lastGcCount = gcCount;
+		lastUpdate = now;
+		drawNanos = 0;
+		draws = 0;
+	}
+
+	private void startLine() {
+		lineLengths[line] = 0;
+	}
+
+	private void endLine() {
+		line++;
+	}
+
+	private void append(char c) {
+		int length = lineLengths[line];
+		if (length < LINE_LENGTH) {
+			lines[line][length] = c;
+			lineLengths[line] = length + 1;
+		}
+	}
+
+	private void append(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			append(s.charAt(i));
+		}
+	}
+
+	private void appendInt(int value) {
+		if (value < 0) {
+			append('-');
+			value = -value;
+		}
+		int divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
+		}
+		while (divisor > 0) {
+			append((char) ('0' + value / divisor % 10));
+			divisor /= 10;
+		}
+	}
+
+	/**
+	 * Appends a value rounded to a number of decimals.
+	 */
+	private void appendFixed(float value, int decimals) {
+		int scale = 1;
+		for (int i = 0; i < decimals; i++) {
+			scale *= 10;
+		}
+		int scaled = Math.round(value * scale);
+		appendInt(scaled / scale);
+		if (decimals > 0) {
+			append('.');
+			int fraction = Math.abs(scaled % scale);
+			for (int divisor = scale / 10; divisor > 0; divisor /= 10) {
+				append((char) ('0' + fraction / divisor % 10));
+			}
+		}
+	}
+
+}
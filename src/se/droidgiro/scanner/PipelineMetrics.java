@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+/**
+ * Collects timings and counts of the decode pipeline, for every frame whether
+ * anything is found or not.
+ *
+ * The time of each stage goes into a histogram with logarithmic buckets, four
+ * per doubling of the time in microseconds, so recording is an increment of an
+ * int and the percentiles read from it are within 25% of the real ones. That
+ * is cheap enough to always leave on.
+ *
+ * Recording is not synchronized, so each instance must only be recorded into
+ * from one thread. The app records into the shared {@link #get()} from the
+ * decode thread; tools that scan on several threads give each thread its own
+ * and {@link #add(PipelineMetrics)} them up when the threads are done.
+ * {@link #snapshot()} may be called from any thread; it copies the current
+ * values without locking, so a frame being recorded at the same time may be
+ * partly included.
+ */
+public final class PipelineMetrics {
+
+	/*
+	 * The stages, used as indexes.
+	 */
+	/**
+	 * Building the luminance source from the frame, cropping it to the
+	 * region of interest and rendering the bitmap scanned.
+	 */
+	public static final int CROP = 0;
+	/**
+	 * Measuring the brightness of the frame for the torch and exposure.
+	 */
+	public static final int ILLUMINATION = 1;
+	/**
+	 * Aligning and averaging recent frames, when they are fused.
+	 */
+	public static final int FUSION = 2;
+	public static final int CONTRAST = 3;
+	public static final int SEGMENTATION = 4;
+	public static final int SCALING = 5;
+	public static final int MATCHING = 6;
+	public static final int PARSE = 7;
+	/**
+	 * The whole decode of a frame.
+	 */
+	public static final int TOTAL = 8;
+
+	public static final String[] STAGE_NAMES = { "crop", "illumination",
+			"fusion", "contrast", "segmentation", "scaling", "matching",
+			"parse", "total" };
+
+	public static final int STAGES = STAGE_NAMES.length;
+
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = 32 * SUB_BUCKETS;
+
+	private static final PipelineMetrics metrics = new PipelineMetrics();
+
+	private final int[][] histograms = new int[STAGES][BUCKETS];
+	private final long[] stageTotals = new long[STAGES];
+	private volatile long started = System.currentTimeMillis();
+	private int frames;
+	private int successes;
+	private int nulls;
+	private int fieldsFound;
+	private int glyphLookups;
+	private int glyphHits;
+	private int comparisons;
+	private int avoidedComparisons;
+
+	/**
+	 * @return the metrics shared by the app.
+	 */
+	public static PipelineMetrics get() {
+		return metrics;
+	}
+
+	/**
+	 * Makes metrics of their own, for a thread other than the decode thread.
+	 */
+	public PipelineMetrics() {
+	}
+
+	/**
+	 * Records the time a stage took for a frame.
+	 *
+	 * @param stage
+	 *            one of the stage constants.
+	 * @param nanos
+	 *            the time in nanoseconds.
+	 */
+	public void record(int stage, long nanos) {
+		histograms[stage][bucket(nanos / 1000)]++;
+		stageTotals[stage] += nanos;
+	}
+
+	/**
+	 * Counts a decoded frame.
+	 *
+	 * @param scanned
+	 *            false if the scanner did not produce a line at all.
+	 * @param fields
+	 *            the invoice fields found, as a combination of the Invoice
+	 *            field constants.
+	 */
+	public void countFrame(boolean scanned, int fields) {
+		frames++;
+		if (!scanned) {
+			nulls++;
+		} else if (fields != 0) {
+			successes++;
+			fieldsFound += Integer.bitCount(fields);
+		}
+	}
+
+	/**
+	 * Counts the glyphs of a frame looked up in the glyph cache.
+	 *
+	 * @param lookups
+	 *            the glyphs looked up.
+	 * @param hits
+	 *            those found.
+	 */
+	public void countGlyphs(int lookups, int hits) {
+		glyphLookups += lookups;
+		glyphHits += hits;
+	}
+
+	/**
+	 * Counts the comparisons of glyphs with references in a frame.
+	 *
+	 * @param compared
+	 *            the references compared pixel by pixel.
+	 * @param avoided
+	 *            those rejected on their features instead.
+	 */
+	public void countComparisons(int compared, int avoided) {
+		comparisons += compared;
+		avoidedComparisons += avoided;
+	}
+
+	/**
+	 * Adds the values of other metrics to these, which must not be recorded
+	 * into at the same time.
+	 */
+	public void add(PipelineMetrics other) {
+		for (int stage = 0; stage < STAGES; stage++) {
+			for (int i = 0; i < BUCKETS; i++) {
+				histograms[stage][i] += other.histograms[stage][i];
+			}
+			stageTotals[stage] += other.stageTotals[stage];
+		}
+		frames += other.frames;
+		successes += other.successes;
+		nulls += other.nulls;
+		fieldsFound += other.fieldsFound;
+		glyphLookups += other.glyphLookups;
+		glyphHits += other.glyphHits;
+		comparisons += other.comparisons;
+		avoidedComparisons += other.avoidedComparisons;
+		started = Math.min(started, other.started);
+	}
+
+	/**
+	 * Starts over.
+	 */
+	public void reset() {
+		for (int stage = 0; stage < STAGES; stage++) {
+			for (int i = 0; i < BUCKETS; i++) {
+				histograms[stage][i] = 0;
+			}
+			stageTotals[stage] = 0;
+		}
+		frames = 0;
+		successes = 0;
+		nulls = 0;
+		fieldsFound = 0;
+		glyphLookups = 0;
+		glyphHits = 0;
+		comparisons = 0;
+		avoidedComparisons = 0;
+		started = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return a copy of the current values.
+	 */
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot();
+		snapshot(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Copies the current values into an existing snapshot, for callers that
+	 * take snapshots often and should not allocate.
+	 */
+	public void snapshot(Snapshot snapshot) {
+		snapshot.seconds = (System.currentTimeMillis() - started) / 1000f;
+		snapshot.frames = frames;
+		snapshot.successes = successes;
+		snapshot.nulls = nulls;
+		snapshot.fieldsFound = fieldsFound;
+		snapshot.glyphLookups = glyphLookups;
+		snapshot.glyphHits = glyphHits;
+		snapshot.comparisons = comparisons;
+		snapshot.avoidedComparisons = avoidedComparisons;
+		for (int stage = 0; stage < STAGES; stage++) {
+			int[] histogram = histograms[stage];
+			int count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				count += histogram[i];
+			}
+			long totalMicros = stageTotals[stage] / 1000;
+			snapshot.counts[stage] = count;
+			snapshot.totalMicros[stage] = totalMicros;
+			snapshot.meanMicros[stage] = count == 0 ? 0 : totalMicros / count;
+			snapshot.p50Micros[stage] = percentile(histogram, count, 50);
+			snapshot.p95Micros[stage] = percentile(histogram, count, 95);
+			snapshot.p99Micros[stage] = percentile(histogram, count, 99);
+		}
+	}
+
+	/**
+	 * @return the bucket of a time, 0 for times up to 1 us.
+	 */
+	private static int bucket(long micros) {
+		if (micros <= 1) {
+			return 0;
+		}
+		if (micros > Integer.MAX_VALUE) {
+			return BUCKETS - 1;
+		}
+		int value = (int) micros;
+		int log2 = 31 - Integer.numberOfLeadingZeros(value);
+		int sub = log2 >= 2 ? (value >> (log2 - 2)) & (SUB_BUCKETS - 1)
+				: (value << (2 - log2)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, log2 * SUB_BUCKETS + sub);
+	}
+
+	/**
+	 * @return the largest time in a bucket.
+	 */
+	private static long bucketLimit(int bucket) {
+		int log2 = bucket / SUB_BUCKETS;
+		int sub = bucket % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << log2) / SUB_BUCKETS;
+	}
+
+	private static long percentile(int[] histogram, int count, int percent) {
+		if (count == 0) {
+			return 0;
+		}
+		long target = (long) count * percent / 100;
+		long sum = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			sum += histogram[i];
+			if (sum > target) {
+				return bucketLimit(i);
+			}
+		}
+		return bucketLimit(BUCKETS - 1);
+	}
+
+	/**
+	 * The metrics at one point in time. Times are in microseconds.
+	 */
+	public static final class Snapshot {
+		public float seconds;
+		public int frames;
+		public int successes;
+		public int nulls;
+		public int fieldsFound;
+		public int glyphLookups;
+		public int glyphHits;
+		public int comparisons;
+		public int avoidedComparisons;
+		/**
+		 * The number of times each stage was recorded, and their total time,
+		 * from which the mean between two snapshots can be found.
+		 */
+		public final int[] counts = new int[STAGES];
+		public final long[] totalMicros = new long[STAGES];
+		public final long[] meanMicros = new long[STAGES];
+		public final long[] p50Micros = new long[STAGES];
+		public final long[] p95Micros = new long[STAGES];
+		public final long[] p99Micros = new long[STAGES];
+
+		/**
+		 * @return decoded frames per second.
+		 */
+		public float getFrameRate() {
+			return seconds == 0 ? 0 : frames / seconds;
+		}
+
+		/**
+		 * @return the share of frames in which any field was found.
+		 */
+		public float getSuccessRate() {
+			return frames == 0 ? 0 : (float) successes / frames;
+		}
+
+		/**
+		 * @return the average number of fields found per frame.
+		 */
+		public float getFieldsPerFrame() {
+			return frames == 0 ? 0 : (float) fieldsFound / frames;
+		}
+
+		/**
+		 * @return the share of glyphs found in the glyph cache.
+		 */
+		public float getGlyphCacheHitRate() {
+			return glyphLookups == 0 ? 0 : (float) glyphHits / glyphLookups;
+		}
+
+		/**
+		 * @return the share of the comparisons with references that were
+		 *         avoided by rejecting the references on their features.
+		 */
+		public float getAvoidedComparisonRate() {
+			int all = comparisons + avoidedComparisons;
+			return all == 0 ? 0 : (float) avoidedComparisons / all;
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(frames).append(" frames in ").append(seconds).append(
+					" s, ").append(getFrameRate()).append(" fps, ").append(
+					successes).append(" with fields, ").append(nulls).append(
+					" without a line, ").append(getFieldsPerFrame()).append(
+					" fields per frame, ").append(getGlyphCacheHitRate()).append(
+					" glyph cache hit rate, ").append(
+					getAvoidedComparisonRate()).append(
+					" of comparisons avoided\n");
+			for (int stage = 0; stage < STAGES; stage++) {
+				sb.append(STAGE_NAMES[stage]).append(": mean ").append(
+						meanMicros[stage]).append(" us, p50 ").append(
+						p50Micros[stage]).append(" us, p95 ").append(
+						p95Micros[stage]).append(" us, p99 ").append(
+						p99Micros[stage]).append(" us\n");
+			}
+			return sb.toString();
+		}
+	}
+
+}
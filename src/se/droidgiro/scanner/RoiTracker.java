@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * Keeps track of where in the framing rect the OCR line was found, so that
+ * the next frame only has to be scanned around that spot.
+ *
+ * After a successful decode the bounding box of the characters is
+ * remembered. The region of interest for the next frame is that box moved by
+ * the motion between the last two boxes, grown by a margin to allow for the
+ * hand moving. When the line is not found in the region of interest for a
+ * few frames in a row, tracking is given up and the whole framing rect is
+ * scanned again. The whole framing rect is also scanned every now and then
+ * while tracking, so that parts of the line missed by one frame are not lost
+ * for good.
+ */
+final class RoiTracker {
+
+	private static final String TAG = "DroidGiro.RoiTracker";
+
+	/**
+	 * Frames in a row without a result before tracking is given up.
+	 */
+	private static final int LOST_FRAMES = 3;
+	/**
+	 * Scan the whole framing rect every REFRESH_FRAMES:th tracked frame.
+	 */
+	private static final int REFRESH_FRAMES = 10;
+	/**
+	 * Margin added to each side, expressed in character heights.
+	 */
+	private static final float HORIZONTAL_MARGIN = 2f;
+	private static final float VERTICAL_MARGIN = 0.5f;
+
+	private Rect lastBounds;
+	private int dx;
+	private int dy;
+	private int missedFrames;
+	private int trackedFrames;
+	private long trackedPixels;
+	private long fullPixels;
+	private boolean lastWasTracked;
+
+	/**
+	 * Predicts where the OCR line will be in the next frame.
+	 *
+	 * @param width
+	 *            The width of the framing rect.
+	 * @param height
+	 *            The height of the framing rect.
+	 * @return The region to scan, or null if the whole framing rect should be
+	 *         scanned.
+	 */
+	Rect getRegionOfInterest(int width, int height) {
+		lastWasTracked = false;
+		if (lastBounds == null || ++trackedFrames % REFRESH_FRAMES == 0) {
+			return null;
+		}
+		int charHeight = lastBounds.height();
+		int marginX = Math.round(charHeight * HORIZONTAL_MARGIN);
+		int marginY = Math.round(charHeight * VERTICAL_MARGIN);
+		Rect roi = new Rect(Math.max(0, lastBounds.left + dx - marginX), Math
+				.max(0, lastBounds.top + dy - marginY), Math.min(width,
+				lastBounds.right + dx + marginX), Math.min(height,
+				lastBounds.bottom + dy + marginY));
+		if (roi.width() <= 0 || roi.height() <= 0) {
+			lost();
+			return null;
+		}
+		lastWasTracked = true;
+		trackedPixels += roi.width() * roi.height();
+		fullPixels += width * height;
+		return roi;
+	}
+
+	/**
+	 * Updates the tracker with the outcome of scanning the frame.
+	 *
+	 * @param bounds
+	 *            The bounds of the characters found, in framing rect
+	 *            coordinates, or null if the OCR line was not found.
+	 */
+	void update(Rect bounds) {
+		if (bounds == null) {
+			if (lastBounds != null && lastWasTracked
+					&& ++missedFrames >= LOST_FRAMES) {
+				lost();
+			}
+			return;
+		}
+		if (lastBounds != null) {
+			dx = bounds.centerX() - lastBounds.centerX();
+			dy = bounds.centerY() - lastBounds.centerY();
+		} else {
+			dx = 0;
+			dy = 0;
+		}
+		lastBounds = bounds;
+		missedFrames = 0;
+	}
+
+	private void lost() {
+		if (fullPixels > 0) {
+			Log.d(TAG, "Lost track after " + trackedFrames
+					+ " frames, scanned " + (trackedPixels * 100 / fullPixels)
+					+ "% of the pixels in the framing rect");
+		}
+		lastBounds = null;
+		missedFrames = 0;
+		trackedFrames = 0;
+		trackedPixels = 0;
+		fullPixels = 0;
+	}
+
+}
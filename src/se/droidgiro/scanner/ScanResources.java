@@ -16,6 +16,7 @@
 
 package se.droidgiro.scanner;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -25,10 +26,12 @@ import java.util.Map.Entry;
 
 import se.droidgiro.R;
 import se.droidgiro.R.drawable;
+import se.droidgiro.scanner.raster.PixelBuffer;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
+import android.graphics.Typeface;
 import android.util.Log;
 
 /**
@@ -40,7 +43,14 @@ public final class ScanResources {
 
 	private final String TAG = "DroidGiro.ScanResources";
 
-	private Map<Character, Bitmap> charMap;
+	/**
+	 * The OCR-B font in the assets.
+	 */
+	public static final String FONT_ASSET = "fonts/ocrb10.ttf";
+
+	private Map<Character, PixelBuffer> charMap;
+
+	private FontTemplates fontTemplates;
 
 	// TODO: Make this more dynamic
 	private Map<Character, String> charIds = new HashMap<Character, String>() {
@@ -62,6 +72,7 @@ public final class ScanResources {
 
 	public ScanResources(Context context) {
 		loadCharsFromRes(context);
+		loadFont(context);
 	}
 
 	public ScanResources(String path) {
@@ -70,13 +81,26 @@ public final class ScanResources {
 
 	/**
 	 * Loads the the reference bitmaps from an external path into a map, with a
-	 * Character as key and its corresponding Bitmap as value.
+	 * Character as key and its corresponding Bitmap as value. The bitmaps are
+	 * read from PNG files named as the drawable resources.
 	 * 
 	 * @param path
 	 *            The path to the bitmaps.
 	 */
 	public void loadCharsFromExt(String path) {
-		// TODO
+		Options o = new Options();
+		o.inPreferredConfig = Bitmap.Config.RGB_565;
+		o.inScaled = false;
+		charMap = new HashMap<Character, PixelBuffer>();
+		for (Entry<Character, String> me : charIds.entrySet()) {
+			File file = new File(path, me.getValue() + ".png");
+			Bitmap chaBmp = BitmapFactory.decodeFile(file.getPath(), o);
+			if (chaBmp == null) {
+				Log.e(TAG, "Failed to load " + file);
+			} else {
+				charMap.put(me.getKey(), AndroidRasters.fromBitmap(chaBmp));
+			}
+		}
 	}
 
 	/**
@@ -90,7 +114,7 @@ public final class ScanResources {
 		Options o = new Options();
 		o.inPreferredConfig = Bitmap.Config.RGB_565;
 		o.inScaled = false;
-		charMap = new HashMap<Character, Bitmap>();
+		charMap = new HashMap<Character, PixelBuffer>();
 		try {
 			Class<drawable> res = R.drawable.class;
 			Set<Entry<Character, String>> set = charIds.entrySet();
@@ -103,17 +127,41 @@ public final class ScanResources {
 				int drawableId = field.getInt(null);
 				Bitmap chaBmp = BitmapFactory.decodeResource(context
 						.getResources(), drawableId, o);
-				charMap.put(cha, chaBmp);
+				charMap.put(cha, AndroidRasters.fromBitmap(chaBmp));
 			}
 		} catch (Exception e) {
 			Log.e(TAG, "Failed to get character ids.", e);
 		}
 	}
 
+	/**
+	 * Loads the OCR-B font from the assets, to make references of any size
+	 * from.
+	 * 
+	 * @param context
+	 *            The application context.
+	 */
+	public void loadFont(Context context) {
+		try {
+			fontTemplates = new AndroidFontTemplates(Typeface.createFromAsset(
+					context.getAssets(), FONT_ASSET));
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Failed to load " + FONT_ASSET, e);
+		}
+	}
+
+	/**
+	 * @return The references made from the OCR-B font, or null if the font
+	 *         could not be loaded.
+	 */
+	public FontTemplates getFontTemplates() {
+		return fontTemplates;
+	}
+
 	/**
 	 * @return The reference character map to use in the bitmap analysis method.
 	 */
-	public Map<Character, Bitmap> getCharMap() {
+	public Map<Character, PixelBuffer> getCharMap() {
 		return charMap;
 	}
 
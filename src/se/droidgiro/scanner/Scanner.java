@@ -19,20 +19,19 @@ package se.droidgiro.scanner;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Paint;
-import android.graphics.Rect;
-import android.util.Log;
+import se.droidgiro.scanner.raster.PixelBuffer;
+import se.droidgiro.scanner.raster.PixelRect;
+import se.droidgiro.scanner.raster.Rasters;
 
 /**
  * The bitmap analyzer for DroidGiro.
@@ -44,16 +43,14 @@ import android.util.Log;
  */
 public class Scanner {
 
-	private final String TAG = "DroidGiro.Scanner";
-
 	/**
 	 * The width of the bitmap to be scanned.
 	 */
-	protected static int targetBmpWidth;
+	protected int targetBmpWidth;
 	/**
 	 * The height of the bitmap to be scanned.
 	 */
-	protected static int targetBmpHeight;
+	protected int targetBmpHeight;
 	/**
 	 * The width of the reference characters.
 	 */
@@ -199,45 +196,45 @@ public class Scanner {
 	/**
 	 * The bitmap to be analyzed.
 	 */
-	protected Bitmap targetBmp = null;
+	protected PixelBuffer targetBmp = null;
 	/**
 	 * The bitmap that is created from the getDebugBitmap() method. Shows three
 	 * parts of the scan process, the noncontrasted bitmaps, the contrasted
 	 * bitmaps, and the best matching reference bitmaps.
 	 */
-	protected Bitmap debugBmp = null;
+	protected PixelBuffer debugBmp = null;
 	/**
 	 * A bitmap composed of all the reference bitmaps.
 	 */
-	protected Bitmap referenceBmp = null;
+	protected PixelBuffer referenceBmp = null;
 	/**
 	 * A bitmap composed of the best matching reference bitmaps.
 	 */
-	protected Bitmap matchingReferenceBmp = null;
+	protected PixelBuffer matchingReferenceBmp = null;
 	/**
 	 * A bitmap composed of the found black pixel sections with contrast added.
 	 */
-	protected Bitmap contrastedDebugBmp = null;
+	protected PixelBuffer contrastedDebugBmp = null;
 	/**
 	 * A bitmap composed of the original black pixels found.
 	 */
-	protected Bitmap nonContrastedDebugBmp = null;
+	protected PixelBuffer nonContrastedDebugBmp = null;
 	/**
 	 * The target bitmap with contrast added.
 	 */
-	protected Bitmap contrastBmp = null;
+	protected PixelBuffer contrastBmp = null;
 	/**
 	 * A list of the three different bitmaps in debugBmp.
 	 */
-	protected List<Bitmap> debugBmps;
+	protected List<PixelBuffer> debugBmps;
 	/**
 	 * A list of bitmaps with the found black pixel sections, contrast added.
 	 */
-	protected List<Bitmap> foundContrastedBmps;
+	protected List<PixelBuffer> foundContrastedBmps;
 	/**
 	 * A list of bitmaps with the found black pixel sections, no contrast.
 	 */
-	protected List<Bitmap> foundNonContrastedBmps;
+	protected List<PixelBuffer> foundNonContrastedBmps;
 	/**
 	 * A list of Section objects.
 	 */
@@ -245,49 +242,186 @@ public class Scanner {
 	/**
 	 * The reference character bitmaps in a Map.
 	 */
-	protected Map<Character, Bitmap> charMap;
+	protected Map<Character, PixelBuffer> charMap;
 	/**
 	 * The reference character bitmaps in a Set.
 	 */
-	protected Set<Entry<Character, Bitmap>> charSet;
+	protected Set<Entry<Character, PixelBuffer>> charSet;
+	/**
+	 * Null to use the references given to the constructor for all frames.
+	 */
+	protected FontTemplates fontTemplates;
+	/**
+	 * The height of the references fitted from the font templates, or 0
+	 * while the references given to the constructor are used.
+	 */
+	protected int fittedHeight;
+	/**
+	 * What was found from the references of the last few heights fitted, so
+	 * that it is not found again when the glyphs return to a height.
+	 */
+	protected final Map<Integer, ReferenceState> referenceStates = new LinkedHashMap<Integer, ReferenceState>(
+			FontTemplates.SIZES_KEPT * 2, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
 
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<Integer, ReferenceState> eldest) {
+			return size() > FontTemplates.SIZES_KEPT;
+		}
+	};
 	/**
-	 * @param scanResources
-	 *            The resource class for the scanner.
+	 * Where the timings and counts of each scan are recorded, or null.
 	 */
-	public Scanner(ScanResources scanResources) {
-		setupScanResources(scanResources);
+	protected PipelineMetrics metrics = PipelineMetrics.get();
+
+	/**
+	 * @param charMap
+	 *            The reference character bitmaps, see
+	 *            {@link ScanResources#getCharMap()}.
+	 */
+	public Scanner(Map<Character, PixelBuffer> charMap) {
+		setupCharMap(charMap);
 	}
 
 	/**
-	 * @param scanResources
-	 *            The resource class for the scanner.
+	 * @param charMap
+	 *            The reference character bitmaps.
 	 * @param targetBmp
 	 *            Sets the bitmap to be scanned.
 	 */
-	public Scanner(ScanResources scanResources, Bitmap targetBmp) {
-		setupScanResources(scanResources);
+	public Scanner(Map<Character, PixelBuffer> charMap, PixelBuffer targetBmp) {
+		setupCharMap(charMap);
 		this.targetBmp = targetBmp;
 	}
 
 	/**
 	 * Sets up the reference character Set and measures the height of the first
-	 * bitmap.
+	 * bitmap. With no reference characters nothing is ever read.
 	 * 
-	 * @param scanResources
-	 *            The resource class for the scanner.
+	 * @param charMap
+	 *            The reference character bitmaps.
 	 */
-	protected void setupScanResources(ScanResources scanResources) {
-		charMap = scanResources.getCharMap();
+	protected void setupCharMap(Map<Character, PixelBuffer> charMap) {
+		this.charMap = charMap;
+		charSet = charMap.entrySet();
 		if (!charMap.isEmpty()) {
-			charSet = charMap.entrySet();
-			Iterator<Entry<Character, Bitmap>> it = charSet.iterator();
-			Map.Entry<Character, Bitmap> entry = it.next();
-			Bitmap measure = (Bitmap) entry.getValue();
+			Iterator<Entry<Character, PixelBuffer>> it = charSet.iterator();
+			Map.Entry<Character, PixelBuffer> entry = it.next();
+			PixelBuffer measure = (PixelBuffer) entry.getValue();
 			refCharWidth = measure.getWidth();
 			refCharHeight = measure.getHeight();
-		} else {
-			Log.w(TAG, "Reference character map is empty.");
+		}
+		compareOrders = null;
+		glyphCache = null;
+		pairDiscriminator = null;
+	}
+
+	/**
+	 * @param fontTemplates
+	 *            Makes references at the size of the glyphs of each frame,
+	 *            or null to always use the references given to the
+	 *            constructor.
+	 */
+	public void setFontTemplates(FontTemplates fontTemplates) {
+		this.fontTemplates = fontTemplates;
+		fittedHeight = 0;
+		referenceStates.clear();
+	}
+
+	/**
+	 * @param metrics
+	 *            Where the timings and counts of each scan are recorded, the
+	 *            shared {@link PipelineMetrics#get()} by default, or null to
+	 *            record nothing. Scanners used on different threads at the
+	 *            same time must not share one.
+	 */
+	public void setMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Switches to references from the font templates of about the median
+	 * height of the glyphs found, unless they are already used. The glyphs
+	 * are then scaled little, if at all, before they are compared.
+	 * 
+	 * The references fitted are kept until the median is more than half a
+	 * step past the heights they are fitted for, so that glyphs on the border
+	 * between two heights do not switch the references every frame. What was
+	 * found from the references of a height is kept with them.
+	 * 
+	 * @param sectionList
+	 *            The sections found in the frame.
+	 */
+	protected void fitReferences(List<Section> sectionList) {
+		int[] heights = new int[sectionList.size()];
+		int glyphs = 0;
+		for (Section section : sectionList) {
+			if (!section.whitespace && section.valid) {
+				heights[glyphs++] = section.bottom + 1 - section.top;
+			}
+		}
+		if (glyphs == 0) {
+			return;
+		}
+		Arrays.sort(heights, 0, glyphs);
+		int median = heights[glyphs / 2];
+		if (fittedHeight != 0
+				&& Math.abs(median - fittedHeight) < FontTemplates.HEIGHT_STEP) {
+			return;
+		}
+		int height = FontTemplates.fitHeight(median);
+		if (height != fittedHeight) {
+			Map<Character, PixelBuffer> fitted = fontTemplates
+					.getCharMap(height);
+			if (!fitted.isEmpty()) {
+				if (fittedHeight != 0) {
+					referenceStates.put(fittedHeight, new ReferenceState());
+				}
+				setupCharMap(fitted);
+				ReferenceState state = referenceStates.get(height);
+				if (state != null && state.charMap == fitted) {
+					state.restore();
+				}
+				fittedHeight = height;
+			}
+		}
+	}
+
+	/**
+	 * The references in use and what was found from them, which are lost
+	 * when the references are set up.
+	 */
+	protected class ReferenceState {
+
+		final Map<Character, PixelBuffer> charMap;
+		final Map<PixelBuffer, int[]> compareOrders;
+		final int[] fixedCompareOrder;
+		final Map<PixelBuffer, GlyphFeatures> referenceFeatures;
+		final int[][] referenceColors;
+		final int signatureBits;
+		final GlyphCache glyphCache;
+		final PairDiscriminator pairDiscriminator;
+
+		ReferenceState() {
+			charMap = Scanner.this.charMap;
+			compareOrders = Scanner.this.compareOrders;
+			fixedCompareOrder = Scanner.this.fixedCompareOrder;
+			referenceFeatures = Scanner.this.referenceFeatures;
+			referenceColors = Scanner.this.referenceColors;
+			signatureBits = Scanner.this.signatureBits;
+			glyphCache = Scanner.this.glyphCache;
+			pairDiscriminator = Scanner.this.pairDiscriminator;
+		}
+
+		void restore() {
+			Scanner.this.compareOrders = compareOrders;
+			Scanner.this.fixedCompareOrder = fixedCompareOrder;
+			Scanner.this.referenceFeatures = referenceFeatures;
+			Scanner.this.referenceColors = referenceColors;
+			Scanner.this.signatureBits = signatureBits;
+			Scanner.this.glyphCache = glyphCache;
+			Scanner.this.pairDiscriminator = pairDiscriminator;
 		}
 	}
 
@@ -295,8 +429,20 @@ public class Scanner {
 	 * The bitmap scanning and interpreting method.
 	 */
 	public void scan() {
+		PipelineMetrics metrics = this.metrics;
+		long start = System.nanoTime();
 		contrastBmp = setContrast(targetBmp, colorScale, colorScaleTranslate);
+		long contrasted = System.nanoTime();
 		sectionList = getSections(contrastBmp);
+		if (sectionList != null && fontTemplates != null) {
+			fitReferences(sectionList);
+		}
+		long segmented = System.nanoTime();
+		if (metrics != null) {
+			metrics.record(PipelineMetrics.CONTRAST, contrasted - start);
+			metrics.record(PipelineMetrics.SEGMENTATION, segmented
+					- contrasted);
+		}
 		if (sectionList != null) {
 			/*
 			 * It seems best to use the original bitmap for this method and
@@ -307,7 +453,17 @@ public class Scanner {
 			 */
 			sectionList = uniformBitmapList(targetBmp, sectionList,
 					refCharWidth, refCharHeight);
+			long scaled = System.nanoTime();
 			resultString = bitmapSectionComparison(sectionList, charMap);
+			if (metrics != null) {
+				metrics.record(PipelineMetrics.SCALING, scaled - segmented);
+				metrics.record(PipelineMetrics.MATCHING, System.nanoTime()
+						- scaled);
+				metrics.countGlyphs(getGlyphCacheLookups(),
+						getGlyphCacheHits());
+				metrics.countComparisons(templateComparisons,
+						prefilterRejections);
+			}
 		} else {
 			resultString = null;
 		}
@@ -324,7 +480,7 @@ public class Scanner {
 	/**
 	 * @return The target bitmap that was passed to the scanner.
 	 */
-	public Bitmap getTargetBitmap() {
+	public PixelBuffer getTargetBitmap() {
 		return targetBmp;
 	}
 
@@ -332,11 +488,50 @@ public class Scanner {
 	 * @param targetBmp
 	 *            The bitmap to be scanned.
 	 */
-	public void setTargetBitmap(Bitmap targetBmp) {
+	public void setTargetBitmap(PixelBuffer targetBmp) {
+		setTargetBitmap(targetBmp, targetBmp.getWidth(), targetBmp.getHeight());
+	}
+
+	/**
+	 * Sets a bitmap which is a part of a larger frame. The allowed character
+	 * sizes are calculated from the size of the whole frame, so that they do
+	 * not change with the size of the part being scanned.
+	 * 
+	 * @param targetBmp
+	 *            The bitmap to be scanned.
+	 * @param frameWidth
+	 *            The width of the frame the bitmap was cut from.
+	 * @param frameHeight
+	 *            The height of the frame the bitmap was cut from.
+	 */
+	public void setTargetBitmap(PixelBuffer targetBmp, int frameWidth,
+			int frameHeight) {
 		this.targetBmp = targetBmp;
 		targetBmpHeight = targetBmp.getHeight();
 		targetBmpWidth = targetBmp.getWidth();
-		calculateCharSizeLimits(targetBmpWidth, targetBmpHeight);
+		calculateCharSizeLimits(frameWidth, frameHeight);
+	}
+
+	/**
+	 * @return The smallest rectangle containing all characters found by the
+	 *         last scan, in target bitmap coordinates, or null if the scan
+	 *         produced no result.
+	 */
+	public PixelRect getCharacterBounds() {
+		if (resultString == null || sectionList == null) {
+			return null;
+		}
+		PixelRect bounds = null;
+		for (Section section : sectionList) {
+			if (section.valid && !section.whitespace) {
+				if (bounds == null) {
+					bounds = new PixelRect(section.getRect());
+				} else {
+					bounds.union(section.getRect());
+				}
+			}
+		}
+		return bounds;
 	}
 
 	/**
@@ -344,8 +539,8 @@ public class Scanner {
 	 *         the contrasted and the noncontrasted characters found in the
 	 *         scanned bitmap.
 	 */
-	public Bitmap getDebugBitmap() {
-		debugBmps = new ArrayList<Bitmap>();
+	public PixelBuffer getDebugBitmap() {
+		debugBmps = new ArrayList<PixelBuffer>();
 		debugBmps.add(getMatchingReferenceBitmap());
 		debugBmps.add(getContrastedDebugBitmap());
 		debugBmps.add(getNonContrastedDebugBitmap());
@@ -357,8 +552,8 @@ public class Scanner {
 	 * @return A bitmap composed of all the character bitmaps that were found,
 	 *         contrasted.
 	 */
-	public Bitmap getContrastedDebugBitmap() {
-		foundContrastedBmps = new ArrayList<Bitmap>();
+	public PixelBuffer getContrastedDebugBitmap() {
+		foundContrastedBmps = new ArrayList<PixelBuffer>();
 		for (Section section : sectionList) {
 			if (section.valid && !section.whitespace) {
 				foundContrastedBmps.add(section.scaledContrastedBmp);
@@ -371,8 +566,8 @@ public class Scanner {
 	/**
 	 * @return A bitmap composed of all the character reference bitmaps.
 	 */
-	public Bitmap getReferenceBitmap() {
-		List<Bitmap> charList = new ArrayList<Bitmap>(charMap.values());
+	public PixelBuffer getReferenceBitmap() {
+		List<PixelBuffer> charList = new ArrayList<PixelBuffer>(charMap.values());
 		referenceBmp = composeFromBitmapList(charList, false);
 		return referenceBmp;
 	}
@@ -381,8 +576,8 @@ public class Scanner {
 	 * @return A bitmap composed of all the character reference bitmaps ordered
 	 *         to match the resulting string.
 	 */
-	public Bitmap getMatchingReferenceBitmap() {
-		List<Bitmap> matchingBmpList = new ArrayList<Bitmap>();
+	public PixelBuffer getMatchingReferenceBitmap() {
+		List<PixelBuffer> matchingBmpList = new ArrayList<PixelBuffer>();
 		if (resultString != null) {
 			CharacterIterator it = new StringCharacterIterator(resultString);
 			for (char ch = it.first(); ch != CharacterIterator.DONE; ch = it
@@ -400,8 +595,8 @@ public class Scanner {
 	 * @return A bitmap composed of all the character bitmaps that was found,
 	 *         noncontrasted.
 	 */
-	public Bitmap getNonContrastedDebugBitmap() {
-		foundNonContrastedBmps = new ArrayList<Bitmap>();
+	public PixelBuffer getNonContrastedDebugBitmap() {
+		foundNonContrastedBmps = new ArrayList<PixelBuffer>();
 		for (Section section : sectionList) {
 			if (section.valid && !section.whitespace) {
 				foundNonContrastedBmps.add(section.scaledBmp);
@@ -418,7 +613,7 @@ public class Scanner {
 	 * reference comparison.
 	 */
 	public class Section {
-		private Rect position;
+		private PixelRect position;
 		public Boolean whitespace;
 		public Boolean valid = false;
 		public int whitespaceCount = 0;
@@ -428,9 +623,26 @@ public class Scanner {
 		public int bottom = 0;
 		private int height;
 		private int width;
-		public Bitmap scaledBmp;
-		public Bitmap scaledContrastedBmp;
+		public PixelBuffer scaledBmp;
+		public PixelBuffer scaledContrastedBmp;
 		public Character bestChar;
+		/**
+		 * The match percent of bestChar.
+		 */
+		public float bestScore;
+		/**
+		 * The entry of this glyph in the glyph cache, once looked up.
+		 */
+		GlyphCache.Glyph cachedGlyph;
+		/**
+		 * The features of the glyph, once measured.
+		 */
+		GlyphFeatures features;
+		/**
+		 * True if the glyph is in the zone of a field that is not read
+		 * again, see {@link Scanner#markFieldZones}.
+		 */
+		boolean skipped;
 
 		public Section(Boolean whitespace, int left, int right) {
 			this.whitespace = whitespace;
@@ -441,12 +653,12 @@ public class Scanner {
 		// TODO: Not sure why +1 is needed for right and bottom, probably I have
 		// confused bitmap size vs pixel coordinates somewhere. This will do for
 		// now though it seems.
-		public Rect getRect() {
-			position = new Rect(left, top, right+1, bottom+1);
+		public PixelRect getRect() {
+			position = new PixelRect(left, top, right+1, bottom+1);
 			return position;
 		}
 
-		public void setRect(Rect rect) {
+		public void setRect(PixelRect rect) {
 			left = rect.left;
 			top = rect.top;
 			right = rect.right;
@@ -473,10 +685,10 @@ public class Scanner {
 	 *            The bitmap to be scanned.
 	 * @return A list of Section objects or null if no valid sections were found.
 	 */
-	protected List<Section> getSections(Bitmap bmp) {
+	protected List<Section> getSections(PixelBuffer bmp) {
 		/* Scan columns */
 		List<Section> sectionList = new ArrayList<Section>();
-		long fullCol = black * targetBmpHeight;
+		long fullCol = (long) black * targetBmpHeight;
 		long emptyCol = white * targetBmpHeight;
 		int blackSections = 0;
 		int lastWhite = -2;
@@ -543,7 +755,7 @@ public class Scanner {
 			lastTopWhite = -2;
 			lastBottomWhite = -2;
 			if (!section.whitespace) {
-				List<Rect> verticalRects = new ArrayList<Rect>();
+				List<PixelRect> verticalRects = new ArrayList<PixelRect>();
 				int sectionWidth = section.getWidth();
 				int emptyRow = sectionWidth * white;
 				for (int y = 0; y < targetBmpHeight; ++y) {
@@ -561,7 +773,7 @@ public class Scanner {
 						} else if (y == targetBmpHeight - 1 &&
 								lastTopBlack != -2) {
 							lastBottomBlack = y;
-							Rect r = new Rect(section.left, lastTopBlack,
+							PixelRect r = new PixelRect(section.left, lastTopBlack,
 									section.right, lastBottomBlack);
 							verticalRects.add(r);
 						} else if (y - 1 == lastWhite) {
@@ -580,7 +792,7 @@ public class Scanner {
 						} else if (y - 1 == lastBlack) {
 							lastBottomBlack = y -1;
 							lastTopWhite = y;
-							Rect r = new Rect(section.left, lastTopBlack,
+							PixelRect r = new PixelRect(section.left, lastTopBlack,
 									section.right, lastBottomBlack);
 							verticalRects.add(r);
 						}
@@ -588,7 +800,7 @@ public class Scanner {
 				}
 				/* Check if list of rects in nonblank section contains valid */
 				int validRects = 0;
-				for (Rect r : verticalRects) {
+				for (PixelRect r : verticalRects) {
 					if (isValidCharRect(r)) {
 						validRects++;
 						section.valid = true;
@@ -657,10 +869,10 @@ public class Scanner {
 	}
 
 	/**
-	 * Determines whether a Rect has the correct dimensions for a character.
-	 * @param rect The Rect to be validated.
+	 * Determines whether a PixelRect has the correct dimensions for a character.
+	 * @param rect The PixelRect to be validated.
 	 */
-	protected Boolean isValidCharRect(Rect rect) {
+	protected Boolean isValidCharRect(PixelRect rect) {
 		if ((rect.width() > charMinWidth)
 			&& (rect.width() < charMaxWidth)
 			&& (rect.height() > charMinHeight)
@@ -690,22 +902,19 @@ public class Scanner {
 	 *            The target height to scale the bitmaps into.
 	 * @return The list of Section objects with bitmaps added.
 	 */
-	protected List<Section> uniformBitmapList(Bitmap targetBmp,
+	protected List<Section> uniformBitmapList(PixelBuffer targetBmp,
 			List<Section> sectionList, int toWidth, int toHeight) {
 		for (Section section : sectionList) {
 			if (!section.whitespace && section.valid) {
-				Rect targetRect = section.getRect();
-				int[] pixels;
-				pixels = new int[targetRect.height() * targetRect.width()];
-				targetBmp.getPixels(pixels, 0, targetRect.width(), targetRect.left,
-						targetRect.top, targetRect.width(), targetRect.height());
-				Bitmap nonscaledBmp = Bitmap.createBitmap(pixels, 0, targetRect
-						.width(), targetRect.width(), targetRect.height(),
-						Bitmap.Config.RGB_565);
-				Bitmap scaledBmp = Bitmap.createScaledBitmap(nonscaledBmp, toWidth,
-						toHeight, true);
+				PixelRect targetRect = section.getRect();
+				PixelBuffer nonscaledBmp = Rasters.crop(targetBmp, targetRect);
+				PixelBuffer scaledBmp = nonscaledBmp;
+				if (targetRect.width() != toWidth
+						|| targetRect.height() != toHeight) {
+					scaledBmp = Rasters.scale(nonscaledBmp, toWidth, toHeight);
+				}
 				section.scaledBmp = scaledBmp;
-				Bitmap scaledContrastedBmp = setContrast(scaledBmp, colorScale,
+				PixelBuffer scaledContrastedBmp = setContrast(scaledBmp, colorScale,
 						colorScaleTranslate);
 				section.scaledContrastedBmp = scaledContrastedBmp;
 			}
@@ -722,38 +931,9 @@ public class Scanner {
 	 *            True if bitmaps should be appended vertically.
 	 * @return The composed bitmap.
 	 */
-	protected Bitmap composeFromBitmapList(List<Bitmap> bmpList,
+	protected PixelBuffer composeFromBitmapList(List<PixelBuffer> bmpList,
 			boolean vertical) {
-		Bitmap measureBmp = bmpList.get(0);
-		int toWidth = measureBmp.getWidth();
-		int toHeight = measureBmp.getHeight();
-		Bitmap resultBmp;
-		Bitmap.Config config = Bitmap.Config.RGB_565;
-		if (vertical) {
-			resultBmp = Bitmap.createBitmap(toWidth, toHeight * bmpList.size(),
-					config);
-		} else {
-			resultBmp = Bitmap.createBitmap(toWidth * bmpList.size(), toHeight,
-					config);
-		}
-		Canvas canvas = new Canvas(resultBmp);
-		ListIterator<Bitmap> bmpIterator = bmpList.listIterator();
-		int i = 0;
-		while (bmpIterator.hasNext()) {
-			Bitmap bmp = bmpIterator.next();
-			Rect srcRect = new Rect(0, 0, bmp.getWidth(), bmp.getHeight());
-			Rect dstRect = new Rect(srcRect);
-			if (i != 0) {
-				if (vertical) {
-					dstRect.offset(0, i * bmp.getHeight());
-				} else {
-					dstRect.offset(i * bmp.getWidth(), 0);
-				}
-			}
-			i++;
-			canvas.drawBitmap(bmp, srcRect, dstRect, null);
-		}
-		return resultBmp;
+		return Rasters.compose(bmpList, vertical);
 	}
 
 	/**
@@ -779,6 +959,25 @@ public class Scanner {
 	 * Number of columns to skip over when comparing character bitmaps.
 	 */
 	protected int compareColSpacing = 2;
+	/**
+	 * Whether to compare the pixels that best tell the reference bitmaps
+	 * apart first, rather than from the top and bottom rows in.
+	 */
+	protected boolean discriminativeOrder = true;
+	/**
+	 * The pixels to compare with each reference bitmap, see
+	 * {@link #getCompareOrder(PixelBuffer)}. Null until needed after the
+	 * references or the spacing change.
+	 */
+	protected Map<PixelBuffer, int[]> compareOrders;
+	/**
+	 * The pixels to compare in the fixed order.
+	 */
+	protected int[] fixedCompareOrder;
+	/**
+	 * The features of each reference bitmap, found with the compare orders.
+	 */
+	protected Map<PixelBuffer, GlyphFeatures> referenceFeatures;
 
 	/**
 	 * @param compareRowSpacing
@@ -792,6 +991,9 @@ public class Scanner {
 		} else {
 			this.compareRowSpacing = compareRowSpacing + 1;
 		}
+		compareOrders = null;
+		glyphCache = null;
+		referenceStates.clear();
 	}
 
 	/**
@@ -806,6 +1008,23 @@ public class Scanner {
 		} else {
 			this.compareColSpacing = compareColSpacing + 1;
 		}
+		compareOrders = null;
+		glyphCache = null;
+		referenceStates.clear();
+	}
+
+	/**
+	 * @param discriminativeOrder
+	 *            True to compare the pixels that differ between the most
+	 *            reference bitmaps first, so that comparisons with the wrong
+	 *            references are abandoned sooner. False to compare rows from
+	 *            the top and bottom towards the middle.
+	 */
+	public void setDiscriminativeOrder(boolean discriminativeOrder) {
+		this.discriminativeOrder = discriminativeOrder;
+		compareOrders = null;
+		glyphCache = null;
+		referenceStates.clear();
 	}
 
 	/**
@@ -837,11 +1056,213 @@ public class Scanner {
 	 * Calculates the match tolerence rows to pixels.
 	 */
 	protected void calculateMatchTolerencePixels() {
+		int pixels;
 		if (refCharWidth != 0) {
-			matchTolerencePixels = refCharWidth * matchTolerenceRows;
+			pixels = refCharWidth * matchTolerenceRows;
 		} else {
-			matchTolerencePixels = 16 * matchTolerenceRows;
+			pixels = 16 * matchTolerenceRows;
 		}
+		matchTolerencePixels = pixels;
+	}
+
+	/**
+	 * Invoice fields which need not be read again. Glyphs in the zones of the
+	 * OCR line holding these fields are not classified.
+	 */
+	protected int skippedFields = 0;
+	/**
+	 * Minimum match percent for a glyph to be taken as a '#' or '>' separator
+	 * when splitting the line into field zones.
+	 */
+	protected float separatorMatchPercent = 75f;
+	/**
+	 * Number of reference bitmaps compared in the last scan.
+	 */
+	protected int templateComparisons;
+	/**
+	 * Number of pixels compared in the last scan.
+	 */
+	protected int pixelComparisons;
+	/**
+	 * The most glyphs whose match percents are remembered between frames, 0
+	 * to compare every glyph.
+	 */
+	protected int glyphCacheSize = 256;
+	/**
+	 * Null until needed, and again when the references, the pixels compared
+	 * or the match tolerance change.
+	 */
+	protected GlyphCache glyphCache;
+	protected long[] glyphSignature = new long[0];
+	/**
+	 * The colors the references have in each pixel of the fixed compare
+	 * order, and the bits a glyph signature takes per pixel, a power of two
+	 * so that no pixel spans two words. See {@link #signature(PixelBuffer)}.
+	 */
+	protected int[][] referenceColors;
+	protected int signatureBits;
+	/**
+	 * Whether to reject references on the features of the glyphs before
+	 * comparing them, see {@link #boundMatchPercent}.
+	 */
+	protected boolean prefiltering = true;
+	/**
+	 * Number of reference bitmaps rejected without comparing in the last
+	 * scan.
+	 */
+	protected int prefilterRejections;
+	/**
+	 * A glyph whose match percent against a character confused with the
+	 * best is within this of the best is a close call, see
+	 * {@link #resolveConfusablePair}.
+	 */
+	protected float confusableMargin = 5f;
+	/**
+	 * Null until needed.
+	 */
+	protected PairDiscriminator pairDiscriminator;
+	/**
+	 * Number of close calls between confusable characters in the last scan.
+	 */
+	protected int pairTests;
+	/**
+	 * Whether to decode the glyphs as a payment line, see
+	 * {@link LineDecoder}.
+	 */
+	protected boolean grammarDecoding = true;
+	protected final LineDecoder lineDecoder = new LineDecoder();
+	protected final List<Section> glyphSections = new ArrayList<Section>();
+	protected char[] decodedLine = new char[0];
+	protected float[] decodedScores = new float[0];
+	protected final LineDecoder.GlyphScorer glyphScorer = new LineDecoder.GlyphScorer() {
+		public float score(int glyph, char symbol, float threshold) {
+			PixelBuffer refBmp = charMap.get(symbol);
+			if (refBmp == null) {
+				return 0;
+			}
+			return scoreGlyph(glyphSections.get(glyph), refBmp, threshold);
+		}
+	};
+
+	/**
+	 * @param grammarDecoding
+	 *            True to choose the characters of a line that best fit the
+	 *            payment line grammar, false to classify every glyph on its
+	 *            own.
+	 */
+	public void setGrammarDecoding(boolean grammarDecoding) {
+		this.grammarDecoding = grammarDecoding;
+	}
+
+	/**
+	 * @param skippedFields
+	 *            A combination of the Invoice field constants. Glyphs in the
+	 *            zones of the OCR line that hold these fields are skipped, as
+	 *            long as the zones can be told apart by the '#' and '>'
+	 *            separators.
+	 */
+	public void setSkippedFields(int skippedFields) {
+		this.skippedFields = skippedFields;
+	}
+
+	/**
+	 * @return The lowest match percent of the characters read in the last
+	 *         scan, or 0 if none were read. A measure of how confident the
+	 *         reading of the whole line is.
+	 */
+	public float getConfidence() {
+		if (sectionList == null) {
+			return 0;
+		}
+		float confidence = -1;
+		for (Section section : sectionList) {
+			if (!section.whitespace && section.valid
+					&& section.bestChar != null
+					&& (confidence == -1 || section.bestScore < confidence)) {
+				confidence = section.bestScore;
+			}
+		}
+		return confidence == -1 ? 0 : confidence;
+	}
+
+	/**
+	 * @param glyphCacheSize
+	 *            The most glyphs whose match percents against the references
+	 *            are remembered, so that a glyph that looks the same in a
+	 *            later frame is not compared again. 0 to compare every glyph.
+	 */
+	public void setGlyphCacheSize(int glyphCacheSize) {
+		this.glyphCacheSize = glyphCacheSize;
+		glyphCache = null;
+		referenceStates.clear();
+	}
+
+	/**
+	 * @param prefiltering
+	 *            True to reject references whose features, the black pixels
+	 *            in all and per row and column, differ too much from those
+	 *            of a glyph for the glyph to match them, without comparing
+	 *            them pixel by pixel. This never changes what is read.
+	 */
+	public void setPrefiltering(boolean prefiltering) {
+		this.prefiltering = prefiltering;
+	}
+
+	/**
+	 * @param confusableMargin
+	 *            When a glyph matches a character that is often confused
+	 *            with the best matching one, such as 3 and 8, within this
+	 *            many percent, the two are told apart on the pixels where
+	 *            they differ only. 0 to always take the best match.
+	 */
+	public void setConfusableMargin(float confusableMargin) {
+		this.confusableMargin = confusableMargin;
+	}
+
+	/**
+	 * @return The number of close calls between confusable characters in
+	 *         the last scan.
+	 */
+	public int getPairTests() {
+		return pairTests;
+	}
+
+	/**
+	 * @return The number of reference bitmaps rejected on their features,
+	 *         without comparing, in the last scan.
+	 */
+	public int getPrefilterRejections() {
+		return prefilterRejections;
+	}
+
+	/**
+	 * @return The number of glyphs looked up in the glyph cache in the last
+	 *         scan.
+	 */
+	public int getGlyphCacheLookups() {
+		return glyphCache == null ? 0 : glyphCache.lookups;
+	}
+
+	/**
+	 * @return The number of glyphs found in the glyph cache in the last scan.
+	 */
+	public int getGlyphCacheHits() {
+		return glyphCache == null ? 0 : glyphCache.hits;
+	}
+
+	/**
+	 * @return The number of reference bitmaps compared in the last scan.
+	 */
+	public int getTemplateComparisons() {
+		return templateComparisons;
+	}
+
+	/**
+	 * @return The number of pixels compared with the reference bitmaps in the
+	 *         last scan.
+	 */
+	public int getPixelComparisons() {
+		return pixelComparisons;
 	}
 
 	/**
@@ -855,82 +1276,41 @@ public class Scanner {
 	 * @return The resulting string
 	 */
 	protected String bitmapSectionComparison(List<Section> sectionList,
-			Map<Character, Bitmap> charMap) {
+			Map<Character, PixelBuffer> charMap) {
 		calculateMatchTolerencePixels();
-		StringBuffer result = new StringBuffer();
-		Bitmap currentCharBmp;
-		Character currentChar;
-		int midCharRow = refCharHeight/2;
-		/* Iterate over the Section list. */
+		templateComparisons = 0;
+		pixelComparisons = 0;
+		prefilterRejections = 0;
+		pairTests = 0;
+		if (glyphCache != null) {
+			glyphCache.resetCounts();
+		}
 		for (Section section : sectionList) {
-			if (!section.whitespace && section.valid) {
-				Bitmap bmp = section.scaledContrastedBmp;
-				Character bestChar = (char) 88;
-				float bestScore = minInitMatchPercent;
-				Iterator<Entry<Character, Bitmap>> it = charSet.iterator();
-				/* Iterate over the reference bitmap list. */
-				while (it.hasNext()) {
-					int matching = matchTolerencePixels;
-					int nonmatching = 0;
-					float percent = 0;
-					Map.Entry<Character, Bitmap> charSetEntry = it.next();
-					currentChar = (Character) charSetEntry.getKey();
-					currentCharBmp = (Bitmap) charSetEntry.getValue();
-					/* Iterate over pixels in the target section. */
-					currentCharLoop:
-					for (int y = 0; y != -1;) {
-						for (int x = 0; x < refCharWidth; x += compareColSpacing) {
-							int refPixel = currentCharBmp.getPixel(x, y);
-							int foundPixel = bmp.getPixel(x, y);
-							/* Compare pixels between target and reference. */
-							if (refPixel == foundPixel) {
-								matching++;
-							} else {
-								nonmatching++;
-								/*
-								 * If current gets a lower match percent than best
-								 * previous, break the loop even if there are pixels
-								 * left to compare.
-								 */
-								if (nonmatching % 2 == 0) { // check every other
-									percent = ((float) matching / ((float) matching
-											+ (float) nonmatching)) * 100;
-									if (percent < bestScore) {
-										break currentCharLoop;
-									}
-								}
-							}
-						}
-						/* Alternate reading of top/bottom until middle row.
-						TODO: This needs to check so that midCharRow can
-						actually be reached */
-						if (y == midCharRow) {
-							y = -1;
-						} else {
-							if (y < midCharRow) {
-								y += compareRowSpacing;
-								y = refCharHeight - y;
-							} else {
-								y = refCharHeight - y;
-							}
-						}
-					}
-					/*
-					 * If current has a higher match percent than any before, update
-					 * bestScore
-					 */
-					if (percent > bestScore) {
-						bestScore = percent;
-						bestChar = currentChar;
-					}
+			section.cachedGlyph = null;
+			section.features = null;
+			section.skipped = false;
+		}
+		StringBuffer result = new StringBuffer();
+		boolean zoned = skippedFields != 0
+				&& markFieldZones(sectionList, charMap);
+		if (!grammarDecoding || !decodeLine(sectionList)) {
+			/*
+			 * Iterate over the Section list. Glyphs read as separators when
+			 * the line was split into zones are not classified again.
+			 */
+			for (Section section : sectionList) {
+				if (!section.whitespace && section.valid && !section.skipped
+						&& (!zoned || section.bestChar == null)) {
+					classifySection(section);
 				}
-			section.bestChar = bestChar;
 			}
 		}
 		for (Section section : sectionList) {
 			if (section.valid) {
 				if (!section.whitespace) {
-					result.append(section.bestChar);
+					if (section.bestChar != null) {
+						result.append(section.bestChar);
+					}
 				} else {
 					for(int i=0; i < section.whitespaceCount; i++) {
 						result.append((char)32);
@@ -941,6 +1321,558 @@ public class Scanner {
 		return result.toString();
 	}
 
+	/**
+	 * Finds the best matching reference bitmap for a section.
+	 * 
+	 * @param section
+	 *            A valid nonwhitespace section.
+	 */
+	protected void classifySection(Section section) {
+		classifySection(section, (char) 88, minInitMatchPercent);
+	}
+
+	/**
+	 * Finds the best matching reference bitmap for a section, which has to
+	 * match better than one already compared.
+	 * 
+	 * @param section
+	 *            A valid nonwhitespace section.
+	 * @param bestChar
+	 *            The best match so far, not compared again.
+	 * @param bestScore
+	 *            The match percent of bestChar.
+	 */
+	protected void classifySection(Section section, Character bestChar,
+			float bestScore) {
+		Character comparedChar = bestChar;
+		Iterator<Entry<Character, PixelBuffer>> it = charSet.iterator();
+		/* Iterate over the reference bitmap list. */
+		while (it.hasNext()) {
+			Map.Entry<Character, PixelBuffer> charSetEntry = it.next();
+			if (charSetEntry.getKey().equals(comparedChar)) {
+				continue;
+			}
+			float percent = scoreGlyph(section, charSetEntry.getValue(),
+					bestScore);
+			/*
+			 * If current has a higher match percent than any before, update
+			 * bestScore
+			 */
+			if (percent > bestScore) {
+				bestScore = percent;
+				bestChar = charSetEntry.getKey();
+			}
+		}
+		section.bestChar = bestChar;
+		section.bestScore = bestScore;
+		resolveConfusablePair(section, false);
+	}
+
+	/**
+	 * Second stage of the classification of a glyph. If the glyph matches a
+	 * character often confused with its best match almost as well, the two
+	 * are told apart on the pixels where their references differ.
+	 * 
+	 * @param section
+	 *            The glyph, with its best match set.
+	 * @param digitsOnly
+	 *            True to only consider replacing the best match with a digit,
+	 *            when the kind of character has already been chosen.
+	 */
+	protected void resolveConfusablePair(Section section, boolean digitsOnly) {
+		if (confusableMargin <= 0 || section.bestChar == null) {
+			return;
+		}
+		if (pairDiscriminator == null) {
+			pairDiscriminator = new PairDiscriminator(charMap);
+		}
+		char best = section.bestChar;
+		List<PairDiscriminator.Pair> pairs = pairDiscriminator.pairsOf(best);
+		if (pairs == null) {
+			return;
+		}
+		float closeScore = section.bestScore - confusableMargin;
+		for (PairDiscriminator.Pair pair : pairs) {
+			char other = pair.other(best);
+			if (digitsOnly && !Character.isDigit(other)) {
+				continue;
+			}
+			float percent = scoreGlyph(section, pair.reference(other),
+					closeScore);
+			if (percent >= closeScore) {
+				pairTests++;
+				if (pair.decide(section.scaledContrastedBmp) == other) {
+					section.bestChar = other;
+					section.bestScore = percent;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Classifies the glyphs with the {@link LineDecoder}. When some glyphs
+	 * are skipped, each run of glyphs between them is decoded on its own, as
+	 * a part of a line.
+	 * 
+	 * @return False if no reading of a run of glyphs fits the payment line
+	 *         grammar, in which case the glyphs of that run and those after
+	 *         it have not been classified.
+	 */
+	protected boolean decodeLine(List<Section> sectionList) {
+		glyphSections.clear();
+		for (Section section : sectionList) {
+			if (section.whitespace || !section.valid) {
+				continue;
+			}
+			if (!section.skipped) {
+				glyphSections.add(section);
+			} else if (!glyphSections.isEmpty()) {
+				if (!decodeGlyphs()) {
+					return false;
+				}
+				glyphSections.clear();
+			}
+		}
+		return glyphSections.isEmpty() || decodeGlyphs();
+	}
+
+	/**
+	 * Classifies the glyphs of glyphSections with the {@link LineDecoder}.
+	 * 
+	 * @return False if no reading of the glyphs fits the payment line
+	 *         grammar, in which case nothing has been classified.
+	 */
+	protected boolean decodeGlyphs() {
+		int glyphs = glyphSections.size();
+		if (decodedLine.length < glyphs) {
+			decodedLine = new char[glyphs];
+			decodedScores = new float[glyphs];
+		}
+		if (!lineDecoder.decode(glyphs, minInitMatchPercent, glyphScorer,
+				decodedLine, decodedScores)) {
+			return false;
+		}
+		for (int i = 0; i < glyphs; i++) {
+			Section section = glyphSections.get(i);
+			section.bestChar = decodedLine[i];
+			section.bestScore = decodedScores[i];
+			if (Character.isDigit(decodedLine[i])) {
+				resolveConfusablePair(section, true);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Splits the OCR line into field zones at the '#' and '>' separators and
+	 * marks the glyphs in zones whose fields are skipped. The line looks
+	 * like "# reference # amount ore check > account#type#", glyphs after
+	 * the '>' belong to the account, glyphs between the '#' preceding the
+	 * '>' and the '>' to the amount, and glyphs before that to the
+	 * reference. Skipped glyphs get a null bestChar. Of the others, only
+	 * the glyphs that match a separator well have been classified.
+	 * 
+	 * @return False if no '>' separator was found, in which case no glyph is
+	 *         marked.
+	 */
+	protected boolean markFieldZones(List<Section> sectionList,
+			Map<Character, PixelBuffer> charMap) {
+		PixelBuffer hashBmp = charMap.get('#');
+		PixelBuffer gtBmp = charMap.get('>');
+		if (hashBmp == null || gtBmp == null) {
+			return false;
+		}
+		/*
+		 * Find the separators. Glyphs that match neither separator
+		 * reference well are not classified yet. Those that do are
+		 * classified against every reference, since some digits, such as
+		 * 4 against '#', match a separator about as well, and are only
+		 * taken as separators if no digit matches them better.
+		 */
+		int amountEnd = -1;
+		for (int i = 0; i < sectionList.size(); i++) {
+			Section section = sectionList.get(i);
+			section.bestChar = null;
+			if (!section.whitespace && section.valid) {
+				float hashScore = scoreGlyph(section, hashBmp,
+						separatorMatchPercent);
+				float gtScore = scoreGlyph(section, gtBmp,
+						separatorMatchPercent);
+				if (gtScore > separatorMatchPercent && gtScore > hashScore) {
+					classifySection(section, '>', gtScore);
+				} else if (hashScore > separatorMatchPercent) {
+					classifySection(section, '#', hashScore);
+				}
+				Character ch = section.bestChar;
+				if (ch != null && ch == '>' && amountEnd == -1) {
+					amountEnd = i;
+				}
+			}
+		}
+		if (amountEnd == -1) {
+			return false;
+		}
+		int amountStart = 0;
+		for (int i = amountEnd - 1; i >= 0; i--) {
+			Character ch = sectionList.get(i).bestChar;
+			if (ch != null && ch == '#') {
+				amountStart = i;
+				break;
+			}
+		}
+		for (int i = 0; i < sectionList.size(); i++) {
+			Section section = sectionList.get(i);
+			if (section.whitespace || !section.valid || isSeparator(section)) {
+				continue;
+			}
+			int field;
+			if (i > amountEnd) {
+				field = Invoice.GIRO_ACCOUNT_FIELD
+						| Invoice.DOCUMENT_TYPE_FIELD;
+			} else if (i > amountStart) {
+				field = Invoice.AMOUNT_FIELD;
+			} else {
+				field = Invoice.REFERENCE_FIELD;
+			}
+			if ((skippedFields & field) == field) {
+				section.skipped = true;
+				section.bestChar = null;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether a glyph has been read as a '#' or '>' separator.
+	 */
+	protected boolean isSeparator(Section section) {
+		Character ch = section.bestChar;
+		return ch != null && (ch == '#' || ch == '>');
+	}
+
+	/**
+	 * Compares the bitmap of a glyph with a reference bitmap, or takes the
+	 * match percent from the glyph cache if the glyph has been compared with
+	 * the reference before.
+	 * 
+	 * @param section
+	 *            The glyph, with its scaled and contrasted bitmap.
+	 * @param refBmp
+	 *            The reference bitmap.
+	 * @param bestScore
+	 *            The comparison may be abandoned below this match percent.
+	 * @return The match percent.
+	 */
+	protected float scoreGlyph(Section section, PixelBuffer refBmp,
+			float bestScore) {
+		PixelBuffer bmp = section.scaledContrastedBmp;
+		GlyphCache.Glyph glyph = null;
+		int reference = -1;
+		if (glyphCacheSize > 0) {
+			if (glyphCache == null
+					|| glyphCache.tolerancePixels != matchTolerencePixels) {
+				/* The tolerance is part of every cached percent. */
+				glyphCache = new GlyphCache(glyphCacheSize, charMap.values(),
+						matchTolerencePixels);
+			}
+			reference = glyphCache.indexOf(refBmp);
+			if (reference != -1) {
+				if (section.cachedGlyph == null) {
+					section.cachedGlyph = glyphCache.lookup(signature(bmp));
+				}
+				glyph = section.cachedGlyph;
+				float percent = glyph.score(reference, bestScore);
+				if (percent == percent) {
+					return percent;
+				}
+			}
+		}
+		float percent = boundMatchPercent(section, refBmp, bestScore);
+		if (percent != percent) {
+			percent = compareBitmaps(bmp, refBmp, bestScore);
+		}
+		if (glyph != null) {
+			glyph.setScore(reference, bestScore, percent);
+		}
+		return percent;
+	}
+
+	/**
+	 * Tries to reject a reference for a glyph on their features, before
+	 * comparing them pixel by pixel. The features give a lower bound of the
+	 * differing pixels, and so an upper bound of the match percent a
+	 * comparison would find.
+	 * 
+	 * @param section
+	 *            The glyph, with its scaled and contrasted bitmap.
+	 * @param refBmp
+	 *            The reference bitmap.
+	 * @param bestScore
+	 *            The match percent the reference has to beat.
+	 * @return The upper bound of the match percent if it is below bestScore,
+	 *         else NaN, and the bitmaps have to be compared.
+	 */
+	protected float boundMatchPercent(Section section, PixelBuffer refBmp,
+			float bestScore) {
+		if (!prefiltering) {
+			return Float.NaN;
+		}
+		prepareCompareOrders();
+		GlyphFeatures refFeatures = referenceFeatures.get(refBmp);
+		if (refFeatures == null) {
+			return Float.NaN;
+		}
+		if (section.features == null) {
+			section.features = new GlyphFeatures(section.scaledContrastedBmp,
+					fixedCompareOrder, white);
+		}
+		/* Same sums as in compareBitmaps. */
+		int total = matchTolerencePixels + fixedCompareOrder.length;
+		float limit = total * (1 - bestScore / 100);
+		int differing = section.features.minDifferingPixels(refFeatures,
+				limit);
+		if (differing <= limit) {
+			return Float.NaN;
+		}
+		prefilterRejections++;
+		return (float) (total - differing) / total * 100;
+	}
+
+	/**
+	 * {@link #compareBitmaps} only asks whether a pixel of a glyph equals
+	 * that of a reference, so two glyphs get the same percents if they have
+	 * the same of the reference colors, or none of them, in every pixel
+	 * compared.
+	 * 
+	 * @return For each pixel of a glyph bitmap that is compared with the
+	 *         references, 1 plus the index of its color among the reference
+	 *         colors of the pixel, or 0 if it is none of them, packed in
+	 *         signatureBits each. The array is reused.
+	 */
+	protected long[] signature(PixelBuffer bmp) {
+		prepareCompareOrders();
+		int[] pixels = fixedCompareOrder;
+		int bitsPerPixel = signatureBits;
+		int words = (pixels.length * bitsPerPixel + 63) / 64;
+		if (glyphSignature.length != words) {
+			glyphSignature = new long[words];
+		}
+		long[] bits = glyphSignature;
+		Arrays.fill(bits, 0);
+		for (int i = 0; i < pixels.length; i++) {
+			int color = bmp.getPixel(pixels[i] >>> 16, pixels[i] & 0xffff);
+			int[] colors = referenceColors[i];
+			for (int c = 0; c < colors.length; c++) {
+				if (colors[c] == color) {
+					int bit = i * bitsPerPixel;
+					bits[bit >> 6] |= (long) (c + 1) << bit;
+					break;
+				}
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * Finds the colors of the references in each pixel of the fixed compare
+	 * order, and the bits a signature needs per pixel to tell them and any
+	 * other color apart.
+	 */
+	protected void prepareReferenceColors() {
+		int[] pixels = fixedCompareOrder;
+		referenceColors = new int[pixels.length][];
+		int[] colors = new int[charMap.size()];
+		int mostColors = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			int n = 0;
+			for (PixelBuffer refBmp : charMap.values()) {
+				int color = refBmp.getPixel(pixels[i] >>> 16,
+						pixels[i] & 0xffff);
+				int c = 0;
+				while (c < n && colors[c] != color) {
+					c++;
+				}
+				if (c == n) {
+					colors[n++] = color;
+				}
+			}
+			referenceColors[i] = new int[n];
+			System.arraycopy(colors, 0, referenceColors[i], 0, n);
+			mostColors = Math.max(mostColors, n);
+		}
+		signatureBits = 1;
+		while (1 << signatureBits <= mostColors) {
+			signatureBits *= 2;
+		}
+	}
+
+	/**
+	 * Compares a found character bitmap with a reference bitmap, pixel by
+	 * pixel in the order of {@link #getCompareOrder(PixelBuffer)}.
+	 * 
+	 * @param bmp
+	 *            The scaled and contrasted character bitmap.
+	 * @param refBmp
+	 *            The reference bitmap.
+	 * @param bestScore
+	 *            The comparison is abandoned as soon as the match percent
+	 *            falls below this.
+	 * @return The match percent, of the pixels compared until then if the
+	 *         comparison was abandoned.
+	 */
+	protected float compareBitmaps(PixelBuffer bmp, PixelBuffer refBmp,
+			float bestScore) {
+		templateComparisons++;
+		int[] order = getCompareOrder(refBmp);
+		int matching = matchTolerencePixels;
+		int nonmatching = 0;
+		for (int i = 0; i < order.length; i++) {
+			int x = order[i] >>> 16;
+			int y = order[i] & 0xffff;
+			/* Compare pixels between target and reference. */
+			if (refBmp.getPixel(x, y) == bmp.getPixel(x, y)) {
+				matching++;
+			} else {
+				nonmatching++;
+				/*
+				 * If current gets a lower match percent than best previous,
+				 * break the loop even if there are pixels left to compare.
+				 */
+				float percent = (float) matching / (matching + nonmatching)
+						* 100;
+				if (percent < bestScore) {
+					pixelComparisons += i + 1;
+					return percent;
+				}
+			}
+		}
+		pixelComparisons += order.length;
+		return (float) matching / (matching + nonmatching) * 100;
+	}
+
+	/**
+	 * @param refBmp
+	 *            A reference bitmap.
+	 * @return The pixels compared with the reference by
+	 *         {@link #compareBitmaps}, packed as x in the high and y in the
+	 *         low 16 bits. Every compareColSpacing:th column of the rows
+	 *         picked by the row spacing, those where the reference differs
+	 *         from the most other references first if discriminativeOrder is
+	 *         set.
+	 */
+	protected int[] getCompareOrder(PixelBuffer refBmp) {
+		prepareCompareOrders();
+		int[] order = compareOrders.get(refBmp);
+		return order != null ? order : fixedCompareOrder;
+	}
+
+	/**
+	 * Finds the pixels to compare with each reference bitmap, and the
+	 * features of the references, unless already found.
+	 */
+	protected void prepareCompareOrders() {
+		if (compareOrders == null) {
+			compareOrders = new IdentityHashMap<PixelBuffer, int[]>();
+			fixedCompareOrder = sampledPixels();
+			prepareReferenceColors();
+			referenceFeatures = new IdentityHashMap<PixelBuffer, GlyphFeatures>();
+			for (PixelBuffer bmp : charMap.values()) {
+				referenceFeatures.put(bmp, new GlyphFeatures(bmp,
+						fixedCompareOrder, white));
+			}
+			if (discriminativeOrder) {
+				int[] black = countBlackReferences(fixedCompareOrder);
+				for (PixelBuffer bmp : charMap.values()) {
+					compareOrders.put(bmp, rankPixels(bmp, fixedCompareOrder,
+							black));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lists the sampled pixels in the fixed order: rows alternating from the
+	 * top and the bottom towards the middle row, every compareColSpacing:th
+	 * pixel of each.
+	 */
+	protected int[] sampledPixels() {
+		int midCharRow = refCharHeight / 2;
+		boolean[] visited = new boolean[refCharHeight + 1];
+		int[] rows = new int[refCharHeight + 1];
+		int rowCount = 0;
+		for (int y = 0; y >= 0 && y < refCharHeight && !visited[y];) {
+			visited[y] = true;
+			rows[rowCount++] = y;
+			if (y == midCharRow) {
+				y = -1;
+			} else if (y < midCharRow) {
+				y += compareRowSpacing;
+				y = refCharHeight - y;
+			} else {
+				y = refCharHeight - y;
+			}
+		}
+		int columns = (refCharWidth + compareColSpacing - 1)
+				/ compareColSpacing;
+		int[] pixels = new int[rowCount * columns];
+		int n = 0;
+		for (int r = 0; r < rowCount; r++) {
+			for (int x = 0; x < refCharWidth; x += compareColSpacing) {
+				pixels[n++] = x << 16 | rows[r];
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * @return The number of reference bitmaps that are black in each of the
+	 *         pixels.
+	 */
+	protected int[] countBlackReferences(int[] pixels) {
+		int[] black = new int[pixels.length];
+		for (PixelBuffer refBmp : charMap.values()) {
+			for (int i = 0; i < pixels.length; i++) {
+				if (refBmp.getPixel(pixels[i] >>> 16, pixels[i] & 0xffff) != white) {
+					black[i]++;
+				}
+			}
+		}
+		return black;
+	}
+
+	/**
+	 * Orders the pixels for comparisons with a reference bitmap, those where
+	 * the most other references differ from it first. A glyph of another
+	 * character is then likely to differ from the reference in the first
+	 * pixels compared, so that the comparison is abandoned early. Pixels
+	 * where all references agree keep their order at the end.
+	 * 
+	 * @param black
+	 *            The number of references that are black in each pixel.
+	 */
+	protected int[] rankPixels(PixelBuffer refBmp, int[] pixels, int[] black) {
+		int references = charMap.size();
+		/*
+		 * Sort by the number of differing references, as a key in the high
+		 * bits, with the original index to keep the sort stable.
+		 */
+		long[] keys = new long[pixels.length];
+		for (int i = 0; i < pixels.length; i++) {
+			long differing = black[i];
+			if (refBmp.getPixel(pixels[i] >>> 16, pixels[i] & 0xffff) != white) {
+				differing = references - black[i];
+			}
+			keys[i] = -differing << 32 | i;
+		}
+		Arrays.sort(keys);
+		int[] ranked = new int[pixels.length];
+		for (int i = 0; i < pixels.length; i++) {
+			ranked[i] = pixels[(int) keys[i]];
+		}
+		return ranked;
+	}
+
 	/**
 	 * Sets the contrast for the bitmap to be scanned. To be replaced some day
 	 * with a histogram method.
@@ -952,37 +1884,23 @@ public class Scanner {
 	 * @param scaletrans
 	 *            The amount of contrast,
 	 */
-	public static Bitmap setContrast(Bitmap bmpOriginal, float scaleonly,
-			float scaletrans) {
-		int width, height;
-		height = bmpOriginal.getHeight();
-		width = bmpOriginal.getWidth();
-		Bitmap bmpGrayscale = Bitmap.createBitmap(width, height,
-				Bitmap.Config.RGB_565);
-		Canvas c = new Canvas(bmpGrayscale);
-		Paint paint = new Paint();
-		ColorMatrix cm1 = new ColorMatrix();
-		float scale1 = scaleonly + 1.f;
-		cm1.set(new float[] {
-			scale1, 0, 0, 0, 0,
-			0, scale1, 0, 0, 0,
-			0, 0, scale1, 0, 0,
-			0, 0, 0, 1, 0 });
-		ColorMatrixColorFilter f1 = new ColorMatrixColorFilter(cm1);
-		paint.setColorFilter(f1);
-		c.drawBitmap(bmpOriginal, 0, 0, paint);
-		ColorMatrix cm2 = new ColorMatrix();
+	public static PixelBuffer setContrast(PixelBuffer bmpOriginal,
+			float scaleonly, float scaletrans) {
+		/*
+		 * The brightness and the contrast are applied one after the other,
+		 * with the channels clamped in between, so they are combined into one
+		 * table.
+		 */
+		int[] brightness = new int[256];
+		Rasters.channelTable(brightness, scaleonly + 1.f, 0);
+		int[] contrast = new int[256];
 		float scale2 = scaletrans + 1.f;
 		float translate = (-.5f * scale2 + .5f) * 255.f;
-		cm2.set(new float[] {
-			scale2, 0, 0, 0, translate,
-			0, scale2, 0, 0, translate,
-			0, 0, scale2, 0, translate,
-			0, 0, 0, 1, 0 });
-		ColorMatrixColorFilter f2 = new ColorMatrixColorFilter(cm2);
-		paint.setColorFilter(f2);
-		c.drawBitmap(bmpGrayscale, 0, 0, paint);
-		return bmpGrayscale;
+		Rasters.channelTable(contrast, scale2, translate);
+		for (int i = 0; i < 256; i++) {
+			brightness[i] = contrast[brightness[i]];
+		}
+		return Rasters.map(bmpOriginal, brightness);
 	}
 
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * A set of values for the tunable parameters of the {@link Scanner}, which can
+ * be stored in and loaded from a properties file. Each value is the argument
+ * given to the setter of the parameter.
+ *
+ * The app applies the profile in assets/scanner.properties, if there is one.
+ * Parameters missing from a file keep their default values, which are those
+ * of the scanner.
+ */
+public final class ScannerProfile {
+
+	/*
+	 * The parameters, used as indexes into KEYS and DEFAULTS.
+	 */
+	public static final int COMPARE_ROW_SPACING = 0;
+	public static final int COMPARE_COLUMN_SPACING = 1;
+	public static final int MIN_INITIAL_MATCH_PERCENT = 2;
+	public static final int MATCH_TOLERENCE_ROWS = 3;
+	public static final int CHAR_MIN_WIDTH_FRACTION = 4;
+	public static final int CHAR_MAX_WIDTH_FRACTION = 5;
+	public static final int CHAR_MIN_HEIGHT_FRACTION = 6;
+	public static final int CHAR_MAX_HEIGHT_FRACTION = 7;
+
+	/**
+	 * The keys of the parameters in a properties file.
+	 */
+	public static final String[] KEYS = { "compareRowSpacing",
+			"compareColumnSpacing", "minInitialMatchPercent",
+			"matchTolerenceRows", "charMinWidthFraction",
+			"charMaxWidthFraction", "charMinHeightFraction",
+			"charMaxHeightFraction" };
+
+	public static final int PARAMETERS = KEYS.length;
+
+	private static final float[] DEFAULTS = { 1, 1, 50f, 3, 0.01f, 0.1f,
+			0.15f, 0.9f };
+
+	private final float[] values = new float[PARAMETERS];
+
+	/**
+	 * Creates a profile with the default values.
+	 */
+	public ScannerProfile() {
+		System.arraycopy(DEFAULTS, 0, values, 0, PARAMETERS);
+	}
+
+	public ScannerProfile(ScannerProfile profile) {
+		System.arraycopy(profile.values, 0, values, 0, PARAMETERS);
+	}
+
+	public float get(int parameter) {
+		return values[parameter];
+	}
+
+	public void set(int parameter, float value) {
+		values[parameter] = value;
+	}
+
+	/**
+	 * Sets the parameters of a scanner.
+	 */
+	public void applyTo(Scanner scanner) {
+		scanner.setCompareRowSpacing((int) values[COMPARE_ROW_SPACING]);
+		scanner.setCompareColumnSpacing((int) values[COMPARE_COLUMN_SPACING]);
+		scanner.setMinInitialMatchPercent(values[MIN_INITIAL_MATCH_PERCENT]);
+		scanner.setMatchTolerenceRows((int) values[MATCH_TOLERENCE_ROWS]);
+		scanner.setCharMinWidthFraction(values[CHAR_MIN_WIDTH_FRACTION]);
+		scanner.setCharMaxWidthFraction(values[CHAR_MAX_WIDTH_FRACTION]);
+		scanner.setCharMinHeightFraction(values[CHAR_MIN_HEIGHT_FRACTION]);
+		scanner.setCharMaxHeightFraction(values[CHAR_MAX_HEIGHT_FRACTION]);
+	}
+
+	/**
+	 * Reads the parameters found in a properties file.
+	 *
+	 * @throws IOException
+	 *             if the file could not be read or holds a value that is not
+	 *             a number.
+	 */
+	public void load(InputStream in) throws IOException {
+		Properties properties = new Properties();
+		properties.load(in);
+		for (int i = 0; i < PARAMETERS; i++) {
+			String value = properties.getProperty(KEYS[i]);
+			if (value != null) {
+				try {
+					values[i] = Float.parseFloat(value.trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad value of " + KEYS[i] + ": "
+							+ value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes all parameters as a properties file.
+	 */
+	public void store(OutputStream out, String comments) throws IOException {
+		Properties properties = new Properties();
+		for (int i = 0; i < PARAMETERS; i++) {
+			properties.setProperty(KEYS[i], format(i));
+		}
+		properties.store(out, comments);
+	}
+
+	/**
+	 * @return a value as text, without a fraction for whole numbers.
+	 */
+	private String format(int parameter) {
+		float value = values[parameter];
+		if (value == (int) value) {
+			return String.valueOf((int) value);
+		}
+		return String.valueOf(value);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ScannerProfile)) {
+			return false;
+		}
+		return Arrays.equals(values, ((ScannerProfile) o).values);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < PARAMETERS; i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append(KEYS[i]).append('=').append(format(i));
+		}
+		return sb.toString();
+	}
+
+}
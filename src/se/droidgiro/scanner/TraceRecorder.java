@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import android.os.Process;
+
+/**
+ * Records when the capture, decode and upload steps run, and on which thread,
+ * so that the gaps between them can be looked at on a timeline.
+ *
+ * Like {@link EventLog}, events are stored in preallocated arrays used as a
+ * ring buffer, and call sites check {@link #enabled} first. They read it once
+ * for both ends of a slice, so that turning tracing on or off in between does
+ * not leave a slice without its start or end, which would nest every later
+ * slice on the thread wrongly:
+ *
+ * <pre>
+ * boolean traced = TraceRecorder.enabled;
+ * if (traced)
+ * 	TraceRecorder.begin(TraceRecorder.DECODE);
+ * ...
+ * if (traced)
+ * 	TraceRecorder.end(TraceRecorder.DECODE);
+ * </pre>
+ *
+ * An event is the start or end of a slice on the calling thread, or the start
+ * or end of an asynchronous slice, such as waiting for a preview frame, which
+ * may begin and end on different threads. The buffer is exported in the Chrome
+ * Trace Event format, which chrome://tracing and Perfetto open.
+ */
+public final class TraceRecorder {
+
+	/**
+	 * Number of events kept.
+	 */
+	public static final int CAPACITY = 16384;
+
+	/*
+	 * Slice names, used as indexes into NAMES.
+	 */
+	public static final int PREVIEW_FRAME = 0;
+	public static final int DECODE = 1;
+	public static final int SCAN = 2;
+	public static final int AUTO_FOCUS_MESSAGE = 3;
+	public static final int RESTART_PREVIEW_MESSAGE = 4;
+	public static final int DECODE_SUCCEEDED_MESSAGE = 5;
+	public static final int DECODE_FAILED_MESSAGE = 6;
+	public static final int OTHER_MESSAGE = 7;
+	public static final int POST_FIELDS = 8;
+	/**
+	 * Asynchronous, from requesting a preview frame until it is delivered.
+	 */
+	public static final int WAIT_FOR_FRAME = 9;
+	/**
+	 * Asynchronous, from requesting an autofocus until it completes.
+	 */
+	public static final int AUTO_FOCUS = 10;
+
+	private static final String[] NAMES = { "onPreviewFrame", "decode",
+			"scan", "auto_focus message", "restart_preview message",
+			"decode_succeeded message", "decode_failed message", "message",
+			"postFields", "wait for frame", "autofocus" };
+
+	private static final char[] PHASES = { 'B', 'E', 'b', 'e' };
+	private static final int BEGIN = 0;
+	private static final int END = 1;
+	private static final int ASYNC_BEGIN = 2;
+	private static final int ASYNC_END = 3;
+
+	/**
+	 * Whether events are recorded. Checked by the call sites.
+	 */
+	public static volatile boolean enabled = false;
+
+	private static final long[] times = new long[CAPACITY];
+	private static final short[] names = new short[CAPACITY];
+	private static final byte[] phases = new byte[CAPACITY];
+	private static final int[] threads = new int[CAPACITY];
+	private static final int[] args = new int[CAPACITY];
+	private static int next;
+	private static int count;
+
+	private TraceRecorder() {
+	}
+
+	/**
+	 * Starts a slice on the calling thread.
+	 */
+	public static void begin(int name) {
+		record(name, BEGIN, 0);
+	}
+
+	/**
+	 * Starts a slice on the calling thread.
+	 *
+	 * @param arg
+	 *            a number shown with the slice.
+	 */
+	public static void begin(int name, int arg) {
+		record(name, BEGIN, arg);
+	}
+
+	/**
+	 * Ends the innermost slice of the calling thread.
+	 */
+	public static void end(int name) {
+		record(name, END, 0);
+	}
+
+	/**
+	 * Starts an asynchronous slice. Only one slice of each name is expected
+	 * to be open at a time.
+	 */
+	public static void beginAsync(int name) {
+		record(name, ASYNC_BEGIN, 0);
+	}
+
+	public static void endAsync(int name) {
+		record(name, ASYNC_END, 0);
+	}
+
+	private static synchronized void record(int name, int phase, int arg) {
+		int i = next;
+		times[i] = System.nanoTime();
+		names[i] = (short) name;
+		phases[i] = (byte) phase;
+		threads[i] = Process.myTid();
+		args[i] = arg;
+		next = (i + 1) % CAPACITY;
+		if (count < CAPACITY) {
+			count++;
+		}
+	}
+
+	/**
+	 * Forgets all events.
+	 */
+	public static synchronized void clear() {
+		next = 0;
+		count = 0;
+	}
+
+	/**
+	 * Writes the recorded events, oldest first, as a Chrome Trace Event JSON
+	 * file. The events are copied before writing, so recording is only held
+	 * up for the copy.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @return the number of events written.
+	 */
+	public static int export(File file) throws IOException {
+		long[] times;
+		short[] names;
+		byte[] phases;
+		int[] threads;
+		int[] args;
+		int count;
+		synchronized (TraceRecorder.class) {
+			count = TraceRecorder.count;
+			times = new long[count];
+			names = new short[count];
+			phases = new byte[count];
+			threads = new int[count];
+			args = new int[count];
+			int first = (next - count + CAPACITY) % CAPACITY;
+			for (int n = 0; n < count; n++) {
+				int i = (first + n) % CAPACITY;
+				times[n] = TraceRecorder.times[i];
+				names[n] = TraceRecorder.names[i];
+				phases[n] = TraceRecorder.phases[i];
+				threads[n] = TraceRecorder.threads[i];
+				args[n] = TraceRecorder.args[i];
+			}
+		}
+		long start = count == 0 ? 0 : times[0];
+		int pid = Process.myPid();
+		Writer out = new BufferedWriter(new FileWriter(file), 8192);
+		try {
+			out.write("{\"traceEvents\":[");
+			for (int n = 0; n < count; n++) {
+				int phase = phases[n];
+				if (n > 0) {
+					out.write(",\n");
+				}
+				out.write("{\"name\":\"");
+				out.write(NAMES[names[n]]);
+				out.write("\",\"cat\":\"droidgiro\",\"ph\":\"");
+				out.write(PHASES[phase]);
+				out.write("\",\"ts\":");
+				out.write(Long.toString((times[n] - start) / 1000));
+				out.write(",\"pid\":");
+				out.write(Integer.toString(pid));
+				out.write(",\"tid\":");
+				out.write(Integer.toString(threads[n]));
+				if (phase == ASYNC_BEGIN || phase == ASYNC_END) {
+					out.write(",\"id\":");
+					out.write(Integer.toString(names[n]));
+				} else if (phase == BEGIN && args[n] != 0) {
+					out.write(",\"args\":{\"value\":");
+					out.write(Integer.toString(args[n]));
+					out.write('}');
+				}
+				out.write('}');
+			}
+			out.write("],\"displayTimeUnit\":\"ms\"}\n");
+		} finally {
+			out.close();
+		}
+		return count;
+	}
+
+}
@@ -20,6 +20,7 @@ package se.droidgiro.scanner.camera;
 
 import java.io.IOException;
 
+import se.droidgiro.scanner.TraceRecorder;
 import android.content.Context;
 import android.graphics.PixelFormat;
 import android.graphics.Point;
@@ -84,6 +85,11 @@ public final class CameraManager {
 	 * requested them.
 	 */
 	private final AutoFocusCallback autoFocusCallback;
+	/**
+	 * Switches the torch and exposure compensation based on the brightness of
+	 * the preview frames.
+	 */
+	private final IlluminationController illuminationController;
 
 	/**
 	 * Initializes this static object with the Context of the calling Activity.
@@ -127,6 +133,7 @@ public final class CameraManager {
 		previewCallback = new PreviewCallback(configManager,
 				useOneShotPreviewCallback);
 		autoFocusCallback = new AutoFocusCallback();
+		illuminationController = new IlluminationController(this);
 	}
 
 	/**
@@ -158,21 +165,89 @@ public final class CameraManager {
 				configManager.initFromCameraParameters(camera);
 			}
 			configManager.setDesiredCameraParameters(camera);
+			illuminationController.reset();
 
 		}
 	}
 
+	/**
+	 * Switches between landscape and portrait capture. The framing rect and
+	 * camera parameters are recalculated the next time the driver is opened.
+	 * 
+	 * @param portrait
+	 *            True if the device is held upright while scanning.
+	 */
+	public void setPortrait(boolean portrait) {
+		if (portrait != configManager.isPortrait()) {
+			configManager.setPortrait(portrait);
+			initialized = false;
+			framingRect = null;
+			framingRectInPreview = null;
+		}
+	}
+
+	public boolean isPortrait() {
+		return configManager.isPortrait();
+	}
+
 	/**
 	 * Closes the camera driver if still in use.
 	 */
-	public void closeDriver() {
+	public synchronized void closeDriver() {
 		if (camera != null) {
+			Log.d(TAG, illuminationController.toString());
 			FlashlightManager.disableFlashlight();
 			camera.release();
 			camera = null;
 		}
 	}
 
+	/**
+	 * @return The controller deciding when to use the torch and exposure
+	 *         compensation.
+	 */
+	public IlluminationController getIlluminationController() {
+		return illuminationController;
+	}
+
+	/**
+	 * @return The number of preview frames per second the camera delivers, or
+	 *         0 before the camera has been opened.
+	 */
+	public int getPreviewFrameRate() {
+		return configManager.getPreviewFrameRate();
+	}
+
+	/**
+	 * Turns raised exposure compensation and the torch on or off. Devices
+	 * without a "torch" flash mode fall back to the hidden flashlight service.
+	 * 
+	 * @param raiseExposure
+	 *            True to use the highest exposure compensation available.
+	 * @param torch
+	 *            True to turn the torch on.
+	 */
+	synchronized void setIllumination(boolean raiseExposure, boolean torch) {
+		if (camera == null) {
+			return;
+		}
+		try {
+			Camera.Parameters parameters = camera.getParameters();
+			boolean torchSupported = configManager.setIllumination(
+					parameters, raiseExposure, torch);
+			camera.setParameters(parameters);
+			if (!torchSupported) {
+				if (torch) {
+					FlashlightManager.enableFlashlight();
+				} else {
+					FlashlightManager.disableFlashlight();
+				}
+			}
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Unexpected error setting illumination", e);
+		}
+	}
+
 	/**
 	 * Asks the camera hardware to begin drawing preview frames to the screen.
 	 */
@@ -210,6 +285,8 @@ public final class CameraManager {
 	 */
 	public void requestPreviewFrame(Handler handler, int message) {
 		if (camera != null && previewing) {
+			if (TraceRecorder.enabled)
+				TraceRecorder.beginAsync(TraceRecorder.WAIT_FOR_FRAME);
 			previewCallback.setHandler(handler, message);
 			if (useOneShotPreviewCallback) {
 				camera.setOneShotPreviewCallback(previewCallback);
@@ -232,6 +309,8 @@ public final class CameraManager {
 			try {
 				autoFocusCallback.setHandler(handler, message);
 				// Log.d(TAG, "Requesting auto-focus callback");
+				if (TraceRecorder.enabled)
+					TraceRecorder.beginAsync(TraceRecorder.AUTO_FOCUS);
 				camera.autoFocus(autoFocusCallback);
 			} catch (RuntimeException e) {
 				Log.e(TAG, e.getMessage());
@@ -281,13 +360,28 @@ public final class CameraManager {
 	 */
 	public Rect getFramingRectInPreview() {
 		if (framingRectInPreview == null) {
-			Rect rect = new Rect(getFramingRect());
+			Rect frame = getFramingRect();
+			Rect rect = new Rect(frame);
 			Point cameraResolution = configManager.getCameraResolution();
 			Point screenResolution = configManager.getScreenResolution();
-			rect.left = rect.left * cameraResolution.x / screenResolution.x;
-			rect.right = rect.right * cameraResolution.x / screenResolution.x;
-			rect.top = rect.top * cameraResolution.y / screenResolution.y;
-			rect.bottom = rect.bottom * cameraResolution.y / screenResolution.y;
+			if (configManager.isPortrait()) {
+				// The preview is displayed rotated 90 degrees clockwise, so
+				// screen x runs along the preview's y axis, backwards.
+				rect.left = frame.top * cameraResolution.x / screenResolution.y;
+				rect.right = frame.bottom * cameraResolution.x
+						/ screenResolution.y;
+				rect.top = cameraResolution.y - frame.right
+						* cameraResolution.y / screenResolution.x;
+				rect.bottom = cameraResolution.y - frame.left
+						* cameraResolution.y / screenResolution.x;
+			} else {
+				rect.left = rect.left * cameraResolution.x / screenResolution.x;
+				rect.right = rect.right * cameraResolution.x
+						/ screenResolution.x;
+				rect.top = rect.top * cameraResolution.y / screenResolution.y;
+				rect.bottom = rect.bottom * cameraResolution.y
+						/ screenResolution.y;
+			}
 			framingRectInPreview = rect;
 		}
 		return framingRectInPreview;
@@ -315,6 +409,8 @@ public final class CameraManager {
 	/**
 	 * A factory method to build the appropriate LuminanceSource object based on
 	 * the format of the preview buffers, as described by Camera.Parameters.
+	 * In portrait mode only the framing rect is rotated so the text reads left
+	 * to right, the rest of the frame is left alone.
 	 * 
 	 * @param data
 	 *            A preview frame.
@@ -326,6 +422,16 @@ public final class CameraManager {
 	 */
 	public PlanarYUVLuminanceSource buildLuminanceSource(byte[] data,
 			int width, int height) {
+		PlanarYUVLuminanceSource source = buildCroppedLuminanceSource(data,
+				width, height);
+		if (configManager.isPortrait()) {
+			return source.rotateClockwise();
+		}
+		return source;
+	}
+
+	private PlanarYUVLuminanceSource buildCroppedLuminanceSource(byte[] data,
+			int width, int height) {
 		Rect rect = getFramingRectInPreview();
 		int previewFormat = configManager.getPreviewFormat();
 		String previewFormatString = configManager.getPreviewFormatString();
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner.camera;
+
+import android.util.Log;
+
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Watches the brightness of the paper inside the framing rect and steps the
+ * camera between three illumination levels: normal, raised exposure
+ * compensation, and raised exposure compensation with the torch on.
+ *
+ * The brightness measure is the "paper level", a high percentile of the
+ * framing rect luminance histogram, which is what the background of the OCR
+ * line looks like regardless of how much ink there is. A level is only
+ * changed after the paper level has stayed past a threshold for a number of
+ * consecutive frames, and the thresholds for stepping down are well above the
+ * ones for stepping up, so the torch does not flicker.
+ *
+ * Frame and decode counts are kept per level so the effect of the switches on
+ * the decode success rate can be read from the log.
+ *
+ * All methods except {@link #setEnabled(boolean)} are called from the decode
+ * thread.
+ */
+public final class IlluminationController {
+
+	private static final String TAG = IlluminationController.class
+			.getSimpleName();
+
+	public static final int LEVEL_NORMAL = 0;
+	public static final int LEVEL_EXPOSURE = 1;
+	public static final int LEVEL_TORCH = 2;
+
+	private static final String[] LEVEL_NAMES = { "normal", "exposure",
+			"torch" };
+
+	/**
+	 * Percentile of the histogram taken as the paper level.
+	 */
+	private static final int PAPER_PERCENTILE = 90;
+	/**
+	 * Only every SAMPLE_STEP:th pixel in every SAMPLE_STEP:th row is counted.
+	 */
+	private static final int SAMPLE_STEP = 4;
+	/**
+	 * Step up a level when the paper level is below this, per level.
+	 */
+	private static final int[] DARK_LEVEL = { 80, 70, -1 };
+	/**
+	 * Step down a level when the paper level is above this, per level. The
+	 * torch lights up the paper a lot, so it is only switched off on glare.
+	 */
+	private static final int[] BRIGHT_LEVEL = { 256, 170, 235 };
+	/**
+	 * Consecutive frames past a threshold needed before switching.
+	 */
+	private static final int SWITCH_FRAMES = 4;
+	/**
+	 * Frames to ignore after a switch while the camera adjusts.
+	 */
+	private static final int SETTLE_FRAMES = 3;
+
+	private final CameraManager cameraManager;
+	private final int[] histogram = new int[256];
+	private final int[] frames = new int[LEVEL_NAMES.length];
+	private final int[] successes = new int[LEVEL_NAMES.length];
+
+	private volatile boolean enabled = true;
+	private int level = LEVEL_NORMAL;
+	private int paperLevel = -1;
+	private int darkFrames;
+	private int brightFrames;
+	private int settleFrames;
+	private int framesSinceSwitch;
+	private int successesSinceSwitch;
+
+	IlluminationController(CameraManager cameraManager) {
+		this.cameraManager = cameraManager;
+	}
+
+	/**
+	 * @param enabled
+	 *            False to keep the camera at the normal level.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Forgets the current level. Called when the camera is opened, since the
+	 * camera starts out with the torch off and no exposure compensation.
+	 */
+	void reset() {
+		level = LEVEL_NORMAL;
+		darkFrames = 0;
+		brightFrames = 0;
+		settleFrames = 0;
+		framesSinceSwitch = 0;
+		successesSinceSwitch = 0;
+	}
+
+	/**
+	 * Measures the paper level of a new frame and switches level if needed.
+	 *
+	 * @param source
+	 *            The framing rect of the frame about to be decoded.
+	 */
+	public void onFrame(PlanarYUVLuminanceSource source) {
+		int count = source.getHistogram(histogram, SAMPLE_STEP);
+		paperLevel = percentile(count, PAPER_PERCENTILE);
+		if (!enabled) {
+			if (level != LEVEL_NORMAL) {
+				switchTo(LEVEL_NORMAL);
+			}
+			return;
+		}
+		if (settleFrames > 0) {
+			settleFrames--;
+			return;
+		}
+		if (paperLevel < DARK_LEVEL[level]) {
+			darkFrames++;
+			brightFrames = 0;
+		} else if (paperLevel > BRIGHT_LEVEL[level]) {
+			brightFrames++;
+			darkFrames = 0;
+		} else {
+			darkFrames = 0;
+			brightFrames = 0;
+		}
+		if (darkFrames >= SWITCH_FRAMES) {
+			switchTo(level + 1);
+		} else if (brightFrames >= SWITCH_FRAMES) {
+			switchTo(level - 1);
+		}
+	}
+
+	/**
+	 * Records the outcome of decoding the last frame passed to
+	 * {@link #onFrame(PlanarYUVLuminanceSource)}.
+	 *
+	 * @param success
+	 *            True if the frame produced any invoice fields.
+	 */
+	public void onDecodeResult(boolean success) {
+		frames[level]++;
+		framesSinceSwitch++;
+		if (success) {
+			successes[level]++;
+			successesSinceSwitch++;
+		}
+	}
+
+	/**
+	 * @return The current illumination level, one of the LEVEL constants.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return The paper level of the last frame, 0-255.
+	 */
+	public int getPaperLevel() {
+		return paperLevel;
+	}
+
+	/**
+	 * @param level
+	 *            One of the LEVEL constants.
+	 * @return The share of frames decoded at the given level that produced
+	 *         any fields, or -1 if no frames have been decoded at that level.
+	 */
+	public float getSuccessRate(int level) {
+		if (frames[level] == 0) {
+			return -1;
+		}
+		return (float) successes[level] / frames[level];
+	}
+
+	private void switchTo(int newLevel) {
+		Log.d(TAG, "Switching from " + LEVEL_NAMES[level] + " to "
+				+ LEVEL_NAMES[newLevel] + " at paper level " + paperLevel
+				+ ", " + successesSinceSwitch + "/" + framesSinceSwitch
+				+ " frames decoded since last switch. " + this);
+		level = newLevel;
+		darkFrames = 0;
+		brightFrames = 0;
+		settleFrames = SETTLE_FRAMES;
+		framesSinceSwitch = 0;
+		successesSinceSwitch = 0;
+		cameraManager.setIllumination(level >= LEVEL_EXPOSURE,
+				level >= LEVEL_TORCH);
+	}
+
+	private int percentile(int count, int percent) {
+		int target = count * percent / 100;
+		int sum = 0;
+		for (int i = 0; i < 256; i++) {
+			sum += histogram[i];
+			if (sum > target) {
+				return i;
+			}
+		}
+		return 255;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Success rate per level:");
+		for (int i = 0; i < LEVEL_NAMES.length; i++) {
+			sb.append(' ').append(LEVEL_NAMES[i]).append(' ').append(
+					successes[i]).append('/').append(frames[i]);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner.raster;
+
+/**
+ * A {@link PixelBuffer} backed by an int array, one ARGB color per pixel, row
+ * by row.
+ */
+public final class IntPixelBuffer implements PixelBuffer {
+
+	private final int width;
+	private final int height;
+	private final int[] pixels;
+
+	/**
+	 * Creates a buffer of transparent black pixels.
+	 */
+	public IntPixelBuffer(int width, int height) {
+		this(new int[width * height], width, height);
+	}
+
+	/**
+	 * Wraps an array of pixels, which is not copied.
+	 */
+	public IntPixelBuffer(int[] pixels, int width, int height) {
+		if (pixels.length < width * height) {
+			throw new IllegalArgumentException(width + "x" + height
+					+ " pixels do not fit in " + pixels.length);
+		}
+		this.width = width;
+		this.height = height;
+		this.pixels = pixels;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the pixels, not copied.
+	 */
+	public int[] getData() {
+		return pixels;
+	}
+
+	public int getPixel(int x, int y) {
+		return pixels[y * width + x];
+	}
+
+	public void setPixel(int x, int y, int color) {
+		pixels[y * width + x] = color;
+	}
+
+	public void getPixels(int[] pixels, int offset, int stride, int x, int y,
+			int width, int height) {
+		int[] source = this.pixels;
+		int sourceOffset = y * this.width + x;
+		if (width == 1) {
+			for (int row = 0; row < height; row++) {
+				pixels[offset] = source[sourceOffset];
+				offset += stride;
+				sourceOffset += this.width;
+			}
+			return;
+		}
+		for (int row = 0; row < height; row++) {
+			System.arraycopy(source, sourceOffset, pixels, offset, width);
+			offset += stride;
+			sourceOffset += this.width;
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner.raster;
+
+/**
+ * A rectangular image of ARGB pixels, as read by the scanner. The methods
+ * have the same meaning as those of android.graphics.Bitmap, so the scanner
+ * does not depend on the platform it runs on.
+ */
+public interface PixelBuffer {
+
+	int getWidth();
+
+	int getHeight();
+
+	/**
+	 * @return the ARGB color of a pixel.
+	 */
+	int getPixel(int x, int y);
+
+	/**
+	 * Copies the ARGB colors of a rectangle of pixels into an array.
+	 *
+	 * @param pixels
+	 *            receives the colors.
+	 * @param offset
+	 *            the index of the first pixel written.
+	 * @param stride
+	 *            the distance between rows in the array.
+	 */
+	void getPixels(int[] pixels, int offset, int stride, int x, int y,
+			int width, int height);
+
+}
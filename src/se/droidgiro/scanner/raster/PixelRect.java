@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner.raster;
+
+/**
+ * A rectangle in pixel coordinates, with the same meaning as
+ * android.graphics.Rect: right and bottom are exclusive.
+ */
+public final class PixelRect {
+
+	public int left;
+	public int top;
+	public int right;
+	public int bottom;
+
+	public PixelRect(int left, int top, int right, int bottom) {
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+
+	public PixelRect(PixelRect rect) {
+		this(rect.left, rect.top, rect.right, rect.bottom);
+	}
+
+	public int width() {
+		return right - left;
+	}
+
+	public int height() {
+		return bottom - top;
+	}
+
+	public void offset(int dx, int dy) {
+		left += dx;
+		top += dy;
+		right += dx;
+		bottom += dy;
+	}
+
+	/**
+	 * Grows this rectangle to also contain another.
+	 */
+	public void union(PixelRect rect) {
+		left = Math.min(left, rect.left);
+		top = Math.min(top, rect.top);
+		right = Math.max(right, rect.right);
+		bottom = Math.max(bottom, rect.bottom);
+	}
+
+	public String toString() {
+		return "PixelRect(" + left + ", " + top + " - " + right + ", "
+				+ bottom + ")";
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.scanner.raster;
+
+import java.util.List;
+
+/**
+ * The image operations of the scanner, on {@link PixelBuffer}s, in plain Java.
+ */
+public final class Rasters {
+
+	private Rasters() {
+	}
+
+	/**
+	 * @return a copy of a rectangle of a buffer.
+	 */
+	public static IntPixelBuffer crop(PixelBuffer source, PixelRect rect) {
+		int width = rect.width();
+		int height = rect.height();
+		int[] pixels = new int[width * height];
+		source.getPixels(pixels, 0, width, rect.left, rect.top, width, height);
+		return new IntPixelBuffer(pixels, width, height);
+	}
+
+	/**
+	 * Scales a buffer with bilinear filtering, like
+	 * android.graphics.Bitmap.createScaledBitmap with filtering on.
+	 */
+	public static IntPixelBuffer scale(PixelBuffer source, int toWidth,
+			int toHeight) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		int[] from = new int[width * height];
+		source.getPixels(from, 0, width, 0, 0, width, height);
+		int[] to = new int[toWidth * toHeight];
+		float scaleX = (float) width / toWidth;
+		float scaleY = (float) height / toHeight;
+		for (int y = 0; y < toHeight; y++) {
+			float sy = Math.max(0f, (y + 0.5f) * scaleY - 0.5f);
+			int y0 = Math.min((int) sy, height - 1);
+			int y1 = Math.min(y0 + 1, height - 1);
+			int fy = (int) ((sy - y0) * 256);
+			for (int x = 0; x < toWidth; x++) {
+				float sx = Math.max(0f, (x + 0.5f) * scaleX - 0.5f);
+				int x0 = Math.min((int) sx, width - 1);
+				int x1 = Math.min(x0 + 1, width - 1);
+				int fx = (int) ((sx - x0) * 256);
+				to[y * toWidth + x] = blend(from[y0 * width + x0], from[y0
+						* width + x1], from[y1 * width + x0], from[y1 * width
+						+ x1], fx, fy);
+			}
+		}
+		return new IntPixelBuffer(to, toWidth, toHeight);
+	}
+
+	/**
+	 * Interpolates each channel of four colors.
+	 *
+	 * @param fx
+	 *            the weight of the right colors, 0-256.
+	 * @param fy
+	 *            the weight of the bottom colors, 0-256.
+	 */
+	private static int blend(int c00, int c10, int c01, int c11, int fx, int fy) {
+		int color = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			int top = ((c00 >>> shift) & 0xff) * (256 - fx)
+					+ ((c10 >>> shift) & 0xff) * fx;
+			int bottom = ((c01 >>> shift) & 0xff) * (256 - fx)
+					+ ((c11 >>> shift) & 0xff) * fx;
+			int value = (top * (256 - fy) + bottom * fy + (1 << 15)) >> 16;
+			color |= value << shift;
+		}
+		return color;
+	}
+
+	/**
+	 * Fills a table for {@link #map(PixelBuffer, int[])} that scales and
+	 * translates channel values, clamping the results, like a color matrix
+	 * with only those entries set.
+	 *
+	 * @param table
+	 *            receives the new value of each of the 256 channel values.
+	 */
+	public static void channelTable(int[] table, float scale, float translate) {
+		for (int i = 0; i < 256; i++) {
+			int value = Math.round(i * scale + translate);
+			table[i] = value < 0 ? 0 : value > 255 ? 255 : value;
+		}
+	}
+
+	/**
+	 * Maps the red, green and blue channels of every pixel through a table
+	 * made by {@link #channelTable(int[], float, float)}.
+	 */
+	public static IntPixelBuffer map(PixelBuffer source, int[] table) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		int[] pixels = new int[width * height];
+		source.getPixels(pixels, 0, width, 0, 0, width, height);
+		for (int i = 0; i < pixels.length; i++) {
+			int p = pixels[i];
+			pixels[i] = (p & 0xff000000) | (table[(p >> 16) & 0xff] << 16)
+					| (table[(p >> 8) & 0xff] << 8) | table[p & 0xff];
+		}
+		return new IntPixelBuffer(pixels, width, height);
+	}
+
+	/**
+	 * Places buffers next to or under each other in a new buffer the size of
+	 * the first buffer times the number of buffers. Buffers larger than the
+	 * first are clipped.
+	 *
+	 * @param vertical
+	 *            true to place the buffers under each other.
+	 */
+	public static IntPixelBuffer compose(List<? extends PixelBuffer> buffers,
+			boolean vertical) {
+		PixelBuffer measure = buffers.get(0);
+		int width = measure.getWidth();
+		int height = measure.getHeight();
+		IntPixelBuffer result = vertical ? new IntPixelBuffer(width, height
+				* buffers.size()) : new IntPixelBuffer(width * buffers.size(),
+				height);
+		int[] pixels = result.getData();
+		int stride = result.getWidth();
+		for (int i = 0; i < buffers.size(); i++) {
+			PixelBuffer buffer = buffers.get(i);
+			int offset = vertical ? i * height * stride : i * width;
+			buffer.getPixels(pixels, offset, stride, 0, 0, Math.min(width,
+					buffer.getWidth()), Math.min(height, buffer.getHeight()));
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import se.droidgiro.scanner.Invoice;
+import se.droidgiro.scanner.Scanner;
+import se.droidgiro.scanner.ScannerProfile;
+import se.droidgiro.scanner.raster.PixelBuffer;
+
+/**
+ * Searches the parameters of the scanner for the best trade-offs between
+ * recognition accuracy and time per frame on a labelled corpus, and exports
+ * one of them as a {@link ScannerProfile}.
+ *
+ * <pre>
+ * Autotune [-t threads] [-n images] [-e evaluations] [-seed n]
+ *       [-tolerance percent] [-o profile] templates corpus
+ * </pre>
+ *
+ * where templates is the directory of the reference character PNGs, normally
+ * res/drawable, and corpus a directory written by {@link LineGenerator}.
+ *
+ * The accuracy of a profile is the share of the fields of the corpus read
+ * right, and its cost the mean time of scanning and parsing an image. Each
+ * profile is run over the images on all threads, one scanner per thread. The
+ * search starts from the default profile and alternates between random
+ * profiles and changes of one or two parameters of profiles on the Pareto
+ * front, those that no other profile beats on both accuracy and cost. The
+ * front is printed, and the fastest profile on it within the tolerance of the
+ * best accuracy is written to the profile file, by default scanner.properties,
+ * to be copied to assets.
+ */
+public final class Autotune {
+
+	/**
+	 * The values tried for each parameter of the profile.
+	 */
+	private static final float[][] VALUES = {
+			{ 0, 1, 2, 3 },
+			{ 0, 1, 2, 3 },
+			{ 30, 40, 50, 60, 70 },
+			{ 0, 1, 2, 3, 4, 6 },
+			{ 0.005f, 0.01f, 0.02f },
+			{ 0.05f, 0.1f, 0.15f },
+			{ 0.1f, 0.15f, 0.2f, 0.3f },
+			{ 0.7f, 0.8f, 0.9f, 1f } };
+
+	/**
+	 * A profile and how it did.
+	 */
+	private static final class Point {
+
+		final ScannerProfile profile;
+		final double accuracy;
+		final double millis;
+
+		Point(ScannerProfile profile, double accuracy, double millis) {
+			this.profile = profile;
+			this.accuracy = accuracy;
+			this.millis = millis;
+		}
+
+		boolean dominates(Point p) {
+			return accuracy >= p.accuracy && millis <= p.millis
+					&& (accuracy > p.accuracy || millis < p.millis);
+		}
+
+		@Override
+		public String toString() {
+			return Math.round(accuracy * 1000) / 10.0 + "%\t"
+					+ Math.round(millis * 100) / 100.0 + " ms\t" + profile;
+		}
+	}
+
+	private final Map<Character, PixelBuffer> charMap;
+	private final Corpus corpus;
+	private final int threads;
+	private final ExecutorService executor;
+
+	private Autotune(Map<Character, PixelBuffer> charMap, Corpus corpus,
+			int threads) {
+		this.charMap = charMap;
+		this.corpus = corpus;
+		this.threads = threads;
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int images = 300;
+		int evaluations = 80;
+		long seed = 1;
+		float tolerance = 1f;
+		String output = "scanner.properties";
+		List<String> paths = new ArrayList<String>();
+		boolean usage = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				boolean hasValue = i + 1 < args.length;
+				if ("-t".equals(arg) && hasValue) {
+					threads = Integer.parseInt(args[++i]);
+				} else if ("-n".equals(arg) && hasValue) {
+					images = Integer.parseInt(args[++i]);
+				} else if ("-e".equals(arg) && hasValue) {
+					evaluations = Integer.parseInt(args[++i]);
+				} else if ("-seed".equals(arg) && hasValue) {
+					seed = Long.parseLong(args[++i]);
+				} else if ("-tolerance".equals(arg) && hasValue) {
+					tolerance = Float.parseFloat(args[++i]);
+				} else if ("-o".equals(arg) && hasValue) {
+					output = args[++i];
+				} else if (arg.startsWith("-")) {
+					usage = true;
+				} else {
+					paths.add(arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage = true;
+		}
+		if (usage || paths.size() != 2 || threads < 1) {
+			System.err.println("Usage: Autotune [-t threads] [-n images]"
+					+ " [-e evaluations] [-seed n] [-tolerance percent]"
+					+ " [-o profile] templates corpus");
+			System.exit(2);
+		}
+
+		Corpus corpus = Corpus.load(new File(paths.get(1)), images);
+		Autotune tune = new Autotune(ImageRasters.loadTemplates(new File(
+				paths.get(0))), corpus, threads);
+		try {
+			List<Point> front = tune.search(evaluations, new Random(seed));
+			System.out.println("Pareto front, " + corpus.size()
+					+ " images:");
+			for (Point point : front) {
+				System.out.println(point);
+			}
+			Point chosen = choose(front, tolerance / 100);
+			System.out.println("Chosen: " + chosen);
+			OutputStream out = new FileOutputStream(output);
+			try {
+				chosen.profile.store(out, "Accuracy " + chosen.accuracy
+						+ ", " + chosen.millis + " ms per frame, on "
+						+ corpus.size() + " images");
+			} finally {
+				out.close();
+			}
+			System.out.println("Profile written to " + output);
+		} finally {
+			tune.executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return the Pareto front, fastest first.
+	 */
+	private List<Point> search(int evaluations, Random random)
+			throws InterruptedException, ExecutionException {
+		List<Point> front = new ArrayList<Point>();
+		Set<ScannerProfile> tried = new HashSet<ScannerProfile>();
+
+		/* Warm up, so that the first profile is not measured cold. */
+		evaluate(new ScannerProfile());
+		ScannerProfile profile = new ScannerProfile();
+		for (int i = 0; i < evaluations; i++) {
+			if (i > 0) {
+				profile = next(front, random);
+				for (int retry = 0; retry < 100 && tried.contains(profile); retry++) {
+					profile = next(front, random);
+				}
+				if (tried.contains(profile)) {
+					break;
+				}
+			}
+			tried.add(profile);
+			Point point = evaluate(profile);
+			System.out.println((i + 1) + "/" + evaluations + "\t" + point);
+			addToFront(front, point);
+		}
+		Collections.sort(front, new Comparator<Point>() {
+			public int compare(Point a, Point b) {
+				return Double.compare(a.millis, b.millis);
+			}
+		});
+		return front;
+	}
+
+	/**
+	 * @return a random profile, or one from the front with one or two
+	 *         parameters moved to a neighbouring value.
+	 */
+	private static ScannerProfile next(List<Point> front, Random random) {
+		ScannerProfile profile;
+		if (front.isEmpty() || random.nextBoolean()) {
+			profile = new ScannerProfile();
+			for (int p = 0; p < ScannerProfile.PARAMETERS; p++) {
+				profile.set(p, VALUES[p][random.nextInt(VALUES[p].length)]);
+			}
+			return profile;
+		}
+		profile = new ScannerProfile(front.get(random.nextInt(front.size())).profile);
+		int changes = 1 + random.nextInt(2);
+		for (int c = 0; c < changes; c++) {
+			int p = random.nextInt(ScannerProfile.PARAMETERS);
+			float[] values = VALUES[p];
+			int index = 0;
+			while (index < values.length - 1 && values[index] < profile.get(p)) {
+				index++;
+			}
+			index += random.nextBoolean() ? 1 : -1;
+			profile.set(p, values[Math.max(0, Math.min(values.length - 1,
+					index))]);
+		}
+		return profile;
+	}
+
+	private static void addToFront(List<Point> front, Point point) {
+		for (Point p : front) {
+			if (p.dominates(point)) {
+				return;
+			}
+		}
+		for (int i = front.size() - 1; i >= 0; i--) {
+			if (point.dominates(front.get(i))) {
+				front.remove(i);
+			}
+		}
+		front.add(point);
+	}
+
+	/**
+	 * @return the fastest point within a tolerance of the best accuracy.
+	 */
+	private static Point choose(List<Point> front, double tolerance) {
+		double best = 0;
+		for (Point p : front) {
+			best = Math.max(best, p.accuracy);
+		}
+		for (Point p : front) {
+			if (p.accuracy >= best - tolerance) {
+				return p;
+			}
+		}
+		return front.get(front.size() - 1);
+	}
+
+	/**
+	 * Runs a profile over the corpus, the images split between the threads.
+	 */
+	private Point evaluate(final ScannerProfile profile)
+			throws InterruptedException, ExecutionException {
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		for (int t = 0; t < threads; t++) {
+			final int first = t;
+			results.add(executor.submit(new Callable<long[]>() {
+				public long[] call() {
+					return scan(profile, first, threads);
+				}
+			}));
+		}
+		long correct = 0;
+		long nanos = 0;
+		for (Future<long[]> result : results) {
+			long[] totals = result.get();
+			correct += totals[0];
+			nanos += totals[1];
+		}
+		int n = corpus.size();
+		return new Point(profile, (double) correct / (n * Corpus.FIELDS),
+				nanos / 1e6 / n);
+	}
+
+	/**
+	 * Scans every step:th image of the corpus from first.
+	 *
+	 * @return the fields read right and the nanoseconds taken.
+	 */
+	private long[] scan(ScannerProfile profile, int first, int step) {
+		Scanner scanner = new Scanner(charMap);
+		scanner.setMetrics(null);
+		profile.applyTo(scanner);
+		Invoice invoice = new Invoice();
+		long correct = 0;
+		long nanos = 0;
+		for (int i = first; i < corpus.size(); i += step) {
+			long start = System.nanoTime();
+			scanner.setTargetBitmap(corpus.images.get(i));
+			scanner.scan();
+			String line = scanner.getResultString();
+			invoice.initFields();
+			if (line != null) {
+				invoice.parse(line);
+			}
+			nanos += System.nanoTime() - start;
+			correct += corpus.score(i, invoice);
+		}
+		return new long[] { correct, nanos };
+	}
+
+}
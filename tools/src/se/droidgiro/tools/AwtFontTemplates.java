@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import se.droidgiro.scanner.FontTemplates;
+import se.droidgiro.scanner.raster.PixelBuffer;
+
+/**
+ * Draws the reference characters of the scanner with a TrueType font, as the
+ * app does with the OCR-B font in its assets.
+ */
+final class AwtFontTemplates extends FontTemplates {
+
+	private static final int MARGIN = 2;
+
+	private static final FontRenderContext RENDER_CONTEXT = new FontRenderContext(
+			null, true, true);
+
+	private final Font font;
+
+	AwtFontTemplates(File file) throws IOException {
+		font = LineGenerator.loadFont(file);
+	}
+
+	@Override
+	protected PixelBuffer renderCharacter(char c, int textSize) {
+		Font sized = font.deriveFont((float) textSize);
+		String text = String.valueOf(c);
+		Rectangle2D bounds = sized.createGlyphVector(RENDER_CONTEXT, text)
+				.getVisualBounds();
+		if (bounds.isEmpty()) {
+			return null;
+		}
+		int width = (int) Math.ceil(bounds.getWidth()) + 2 * MARGIN;
+		int height = (int) Math.ceil(bounds.getHeight()) + 2 * MARGIN;
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
+				RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+		g.setColor(Color.BLACK);
+		g.setFont(sized);
+		g.drawString(text, (float) (MARGIN - bounds.getX()),
+				(float) (MARGIN - bounds.getY()));
+		g.dispose();
+		return ImageRasters.fromImage(image);
+	}
+
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import se.droidgiro.scanner.FontTemplates;
+import se.droidgiro.scanner.FrameRecording;
+import se.droidgiro.scanner.Invoice;
+import se.droidgiro.scanner.PipelineMetrics;
+import se.droidgiro.scanner.Scanner;
+import se.droidgiro.scanner.raster.PixelBuffer;
+
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Scans directories of images and recordings made by the app on all cores,
+ * and writes what was found in each image or frame as a line of JSON.
+ *
+ * <pre>
+ * BatchScan [-t threads] [-q queue] [-font ttf] templates input...
+ * </pre>
+ *
+ * where templates is the directory of the reference character PNGs, normally
+ * res/drawable, and each input is an image, a recording (.rec) or a directory
+ * that is searched for them. The images should hold the payment line with
+ * some margin, as the framing rectangle of the app does. With a font, normally
+ * assets/fonts/ocrb10.ttf, the references are made from it at the size of
+ * the glyphs of each image instead, as in the app.
+ *
+ * One thread reads the inputs and hands them to the scanning threads, one per
+ * core by default, through a queue of a bounded length, so that no more than
+ * the queue length plus the number of threads images are held at once. Images
+ * are only decoded by the scanning threads. A line like
+ *
+ * <pre>
+ * {"source":"a/b.png","ms":3.1,"line":"# 123 #...","fields":15,
+ *  "reference":"123","amount":"1250,00","check":"0","account":"555-5666",
+ *  "type":"BG"}
+ * </pre>
+ *
+ * is written to standard output for each, in the order they are finished,
+ * with "frame" set for the frames of recordings and "error" for inputs that
+ * could not be read or scanned. The time is that of decoding, scanning and
+ * parsing. The throughput and the latency percentiles are written to standard
+ * error at the end.
+ */
+public final class BatchScan {
+
+	private static final String[] IMAGE_SUFFIXES = { ".png", ".jpg", ".jpeg",
+			".gif", ".bmp" };
+
+	private static final String RECORDING_SUFFIX = ".rec";
+
+	/**
+	 * An image to scan, either a file or a frame of a recording.
+	 */
+	private static final class Task {
+
+		/**
+		 * Tells a scanning thread to stop.
+		 */
+		static final Task END = new Task(null, -1, null);
+
+		final File file;
+		final int frame;
+		final PixelBuffer pixels;
+
+		Task(File file, int frame, PixelBuffer pixels) {
+			this.file = file;
+			this.frame = frame;
+			this.pixels = pixels;
+		}
+	}
+
+	private final Map<Character, PixelBuffer> charMap;
+	private FontTemplates fontTemplates;
+	private final BlockingQueue<Task> queue;
+	private final PrintStream out;
+	private Thread[] workers;
+
+	/**
+	 * The metrics of each thread's scanner.
+	 */
+	private final PipelineMetrics[] metrics;
+
+	/**
+	 * The time of each scan in microseconds, one array per thread.
+	 */
+	private final long[][] latencies;
+	private final int[] latencyCounts;
+
+	private BatchScan(Map<Character, PixelBuffer> charMap, int threads,
+			int queueLength, PrintStream out) {
+		this.charMap = charMap;
+		this.queue = new ArrayBlockingQueue<Task>(queueLength);
+		this.out = out;
+		latencies = new long[threads][1024];
+		latencyCounts = new int[threads];
+		metrics = new PipelineMetrics[threads];
+		for (int i = 0; i < threads; i++) {
+			metrics[i] = new PipelineMetrics();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int queueLength = -1;
+		String font = null;
+		List<String> paths = new ArrayList<String>();
+		boolean usage = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if ("-t".equals(arg) && i + 1 < args.length) {
+					threads = Integer.parseInt(args[++i]);
+				} else if ("-q".equals(arg) && i + 1 < args.length) {
+					queueLength = Integer.parseInt(args[++i]);
+				} else if ("-font".equals(arg) && i + 1 < args.length) {
+					font = args[++i];
+				} else if (arg.startsWith("-")) {
+					usage = true;
+				} else {
+					paths.add(arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage = true;
+		}
+		if (usage || paths.size() < 2 || threads < 1) {
+			System.err.println("Usage: BatchScan [-t threads] [-q queue]"
+					+ " [-font ttf] templates input...");
+			System.exit(2);
+		}
+		if (queueLength < 1) {
+			queueLength = 2 * threads;
+		}
+
+		BatchScan batch = new BatchScan(ImageRasters.loadTemplates(new File(
+				paths.get(0))), threads, queueLength, System.out);
+		if (font != null) {
+			batch.fontTemplates = new AwtFontTemplates(new File(font));
+		}
+		List<File> inputs = new ArrayList<File>();
+		for (String path : paths.subList(1, paths.size())) {
+			collect(new File(path), inputs);
+		}
+		batch.run(inputs, threads);
+	}
+
+	/**
+	 * Adds an input, or the images and recordings in a directory and its
+	 * subdirectories, in name order.
+	 */
+	private static void collect(File file, List<File> inputs) {
+		if (!file.isDirectory()) {
+			inputs.add(file);
+			return;
+		}
+		File[] files = file.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File f : files) {
+			String name = f.getName().toLowerCase();
+			if (f.isDirectory() || name.endsWith(RECORDING_SUFFIX)) {
+				collect(f, inputs);
+			} else {
+				for (String suffix : IMAGE_SUFFIXES) {
+					if (name.endsWith(suffix)) {
+						inputs.add(f);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private void run(List<File> inputs, int threads)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int index = i;
+			workers[i] = new Thread("BatchScan-" + i) {
+				@Override
+				public void run() {
+					scanAll(index);
+				}
+			};
+			workers[i].start();
+		}
+
+		for (File input : inputs) {
+			if (input.getName().toLowerCase().endsWith(RECORDING_SUFFIX)) {
+				readRecording(input);
+			} else {
+				put(new Task(input, -1, null));
+			}
+		}
+		for (int i = 0; i < threads; i++) {
+			put(Task.END);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		out.flush();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int count = 0;
+		for (int n : latencyCounts) {
+			count += n;
+		}
+		long[] all = new long[count];
+		int offset = 0;
+		for (int i = 0; i < threads; i++) {
+			System.arraycopy(latencies[i], 0, all, offset,
+					latencyCounts[i]);
+			offset += latencyCounts[i];
+		}
+		Arrays.sort(all);
+		PipelineMetrics total = new PipelineMetrics();
+		for (PipelineMetrics m : metrics) {
+			total.add(m);
+		}
+		System.err.println(count + " images in " + seconds + " s on "
+				+ threads + " threads, " + (count / seconds)
+				+ " images/s, latency p50 " + percentile(all, 50) / 1000.0
+				+ " ms, p95 " + percentile(all, 95) / 1000.0 + " ms, p99 "
+				+ percentile(all, 99) / 1000.0 + " ms, glyph cache hit rate "
+				+ total.snapshot().getGlyphCacheHitRate());
+	}
+
+	/**
+	 * Queues a task, waiting for room as long as any scanning thread is left
+	 * to make it.
+	 *
+	 * @throws IllegalStateException
+	 *             if the scanning threads have all stopped.
+	 */
+	private void put(Task task) throws InterruptedException {
+		while (!queue.offer(task, 100, TimeUnit.MILLISECONDS)) {
+			boolean alive = false;
+			for (Thread worker : workers) {
+				alive |= worker.isAlive();
+			}
+			if (!alive) {
+				throw new IllegalStateException(
+						"The scanning threads have stopped");
+			}
+		}
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, sorted.length * percent
+				/ 100)];
+	}
+
+	/**
+	 * Queues the frames of a recording, cropped as when they were scanned.
+	 */
+	private void readRecording(File file) throws InterruptedException {
+		FrameRecording recording;
+		try {
+			recording = new FrameRecording(file);
+		} catch (IOException e) {
+			print(file, -1, 0, null, 0, null, e.getMessage());
+			return;
+		}
+		for (int i = 0; i < recording.size(); i++) {
+			/* The frames are queued, so each needs its own buffer. */
+			FrameRecording.Frame frame = recording.read(i, null);
+			PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(
+					frame.data, frame.width, frame.height, frame.left,
+					frame.top, frame.right - frame.left, frame.bottom
+							- frame.top);
+			if ((frame.flags & FrameRecording.FLAG_PORTRAIT) != 0) {
+				source = source.rotateClockwise();
+			}
+			put(new Task(file, (int) frame.sequence, source
+					.renderCroppedGreyscale()));
+		}
+	}
+
+	/**
+	 * The loop of a scanning thread, which has its own scanner, metrics and
+	 * invoice. An input the scanner fails on is written as an error and the
+	 * thread goes on with the next.
+	 */
+	private void scanAll(int index) {
+		Scanner scanner = new Scanner(charMap);
+		scanner.setFontTemplates(fontTemplates);
+		scanner.setMetrics(metrics[index]);
+		Invoice invoice = new Invoice();
+		try {
+			for (Task task = queue.take(); task != Task.END; task = queue
+					.take()) {
+				long start = System.nanoTime();
+				PixelBuffer pixels = task.pixels;
+				if (pixels == null) {
+					try {
+						pixels = ImageRasters.readGreyscale(task.file);
+					} catch (IOException e) {
+						print(task.file, task.frame, 0, null, 0, null, e
+								.getMessage());
+						continue;
+					}
+				}
+				String line;
+				int fields;
+				try {
+					scanner.setTargetBitmap(pixels);
+					scanner.scan();
+					line = scanner.getResultString();
+					invoice.initFields();
+					fields = line != null ? invoice.parse(line) : 0;
+				} catch (RuntimeException e) {
+					print(task.file, task.frame, 0, null, 0, null, e
+							.toString());
+					continue;
+				}
+				long micros = (System.nanoTime() - start) / 1000;
+				addLatency(index, micros);
+				print(task.file, task.frame, micros, line, fields, invoice,
+						null);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void addLatency(int index, long micros) {
+		long[] list = latencies[index];
+		int n = latencyCounts[index];
+		if (n == list.length) {
+			list = new long[n * 2];
+			System.arraycopy(latencies[index], 0, list, 0, n);
+			latencies[index] = list;
+		}
+		list[n] = micros;
+		latencyCounts[index] = n + 1;
+	}
+
+	/**
+	 * Writes the result of a scan, or the error of an input that could not be
+	 * read.
+	 *
+	 * @param fields
+	 *            the fields found, as a combination of the Invoice field
+	 *            constants.
+	 */
+	private void print(File file, int frame, long micros, String line,
+			int fields, Invoice invoice, String error) {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"source\":");
+		quote(sb, file.getPath());
+		if (frame >= 0) {
+			sb.append(",\"frame\":").append(frame);
+		}
+		if (error != null) {
+			sb.append(",\"error\":");
+			quote(sb, error);
+		} else {
+			sb.append(",\"ms\":").append(micros / 1000.0);
+			sb.append(",\"line\":");
+			quote(sb, line);
+			sb.append(",\"fields\":").append(fields);
+			if ((fields & Invoice.REFERENCE_FIELD) != 0) {
+				sb.append(",\"reference\":");
+				quote(sb, invoice.getReference());
+			}
+			if ((fields & Invoice.AMOUNT_FIELD) != 0) {
+				sb.append(",\"amount\":");
+				quote(sb, invoice.getCompleteAmount());
+				sb.append(",\"check\":");
+				quote(sb, invoice.getCheckDigitAmount());
+			}
+			if ((fields & Invoice.GIRO_ACCOUNT_FIELD) != 0) {
+				sb.append(",\"account\":");
+				quote(sb, invoice.getGiroAccount());
+			}
+			if ((fields & Invoice.DOCUMENT_TYPE_FIELD) != 0) {
+				sb.append(",\"type\":");
+				quote(sb, invoice.getType());
+			}
+		}
+		sb.append('}');
+		synchronized (out) {
+			out.println(sb);
+		}
+	}
+
+	/**
+	 * Appends a string as a JSON string, or null.
+	 */
+	static void quote(StringBuilder sb, String s) {
+		if (s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				String hex = Integer.toHexString(c);
+				sb.append("\\u");
+				for (int n = hex.length(); n < 4; n++) {
+					sb.append('0');
+				}
+				sb.append(hex);
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+}
@@ -0,0 +1,638 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import se.droidgiro.scanner.FrameRecording;
+import se.droidgiro.scanner.Invoice;
+import se.droidgiro.scanner.Scanner;
+import se.droidgiro.scanner.raster.IntPixelBuffer;
+import se.droidgiro.scanner.raster.PixelBuffer;
+import se.droidgiro.scanner.raster.Rasters;
+
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Measures the stages of the recognition engine and the whole of it, on
+ * synthetic lines at several resolutions and on recorded frames.
+ *
+ * Each stage is run on inputs prepared by the stages before it, in a loop,
+ * for a number of warmup iterations that are thrown away and then a number of
+ * measured iterations of fixed length. For each stage and input the report
+ * holds the throughput with its error, the average time of an operation, the
+ * bytes allocated by an operation and the garbage collections per iteration.
+ *
+ * <pre>
+ * Bench [-w warmups] [-i iterations] [-t ms] [-r recording] [-o report]
+ *       [-c baseline] templates
+ * </pre>
+ *
+ * where templates is the directory of the reference character PNGs, normally
+ * res/drawable. The report is written as tab separated values, by default to
+ * bench-report.tsv, and a report from an earlier commit can be given with -c
+ * to print the change in time per operation. See the bench target of
+ * engine.xml.
+ */
+public final class Bench {
+
+	/**
+	 * A valid payment line: reference, amount and giro account.
+	 */
+	static final String SAMPLE_LINE = "# 47110815123452 # 1250 00 0 > 5555666#41#";
+
+	/**
+	 * The heights, in pixels, the synthetic lines are rendered at.
+	 */
+	private static final int[] SYNTHETIC_HEIGHTS = { 24, 36, 48 };
+
+	/**
+	 * The most recorded frames used as inputs.
+	 */
+	private static final int MAX_RECORDED_FRAMES = 64;
+
+	/*
+	 * The stages, used as indexes into STAGE_NAMES. CROP renders the crop of
+	 * a camera frame to the framing rectangle into the greyscale bitmap that
+	 * is scanned, and ROTATE rotates the crop first, as in portrait mode.
+	 * SCAN is the whole engine, from the greyscale frame to the parsed
+	 * fields. The stages run without
+	 * the glyph cache, since they run the same frames over and over, but for
+	 * CLASSIFICATION_CACHED, which finds every glyph in the cache, as when
+	 * the camera holds still over a line. PARSE parses a line into an empty
+	 * invoice, as the tools do, and PARSE_STEADY into one that already holds
+	 * its fields, as the app does on the frames after a line is first read,
+	 * which allocates nothing.
+	 */
+	private static final int CROP = 0;
+	private static final int ROTATE = 1;
+	private static final int CONTRAST = 2;
+	private static final int SEGMENTATION = 3;
+	private static final int SCALING = 4;
+	private static final int CLASSIFICATION = 5;
+	private static final int CLASSIFICATION_CACHED = 6;
+	private static final int PARSE = 7;
+	private static final int PARSE_STEADY = 8;
+	private static final int SCAN = 9;
+
+	private static final String[] STAGE_NAMES = { "crop", "rotate",
+			"contrast", "segmentation", "scaling", "classification",
+			"classification-cached", "parse", "parse-steady", "scan" };
+
+	/**
+	 * Results are folded into this, so that the work is not optimized away.
+	 */
+	static volatile int sink;
+
+	private int warmups = 3;
+	private int iterations = 5;
+	private long iterationMillis = 1000;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private boolean allocationSupported;
+
+	private Bench() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		Bench bench = new Bench();
+		String recording = null;
+		String report = "bench-report.tsv";
+		String baseline = null;
+		String templates = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i + 1 < args.length && "-w".equals(arg)) {
+				bench.warmups = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && "-i".equals(arg)) {
+				bench.iterations = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && "-t".equals(arg)) {
+				bench.iterationMillis = Long.parseLong(args[++i]);
+			} else if (i + 1 < args.length && "-r".equals(arg)) {
+				recording = args[++i];
+			} else if (i + 1 < args.length && "-o".equals(arg)) {
+				report = args[++i];
+			} else if (i + 1 < args.length && "-c".equals(arg)) {
+				baseline = args[++i];
+			} else if (templates == null && !arg.startsWith("-")) {
+				templates = arg;
+			} else {
+				templates = null;
+				break;
+			}
+		}
+		if (templates == null || bench.iterations < 1) {
+			System.err.println("Usage: Bench [-w warmups] [-i iterations]"
+					+ " [-t ms] [-r recording] [-o report] [-c baseline]"
+					+ " templates");
+			System.exit(2);
+		}
+		Map<Character, PixelBuffer> charMap = ImageRasters
+				.loadTemplates(new File(templates));
+
+		Map<String, List<PixelBuffer>> inputs = new LinkedHashMap<String, List<PixelBuffer>>();
+		Map<String, List<PlanarYUVLuminanceSource>> crops = new HashMap<String, List<PlanarYUVLuminanceSource>>();
+		for (int height : SYNTHETIC_HEIGHTS) {
+			List<PixelBuffer> frames = new ArrayList<PixelBuffer>();
+			frames.add(renderLine(charMap, SAMPLE_LINE, height, new Random(
+					height)));
+			List<PlanarYUVLuminanceSource> frameCrops = new ArrayList<PlanarYUVLuminanceSource>();
+			frameCrops.add(cameraCrop(frames.get(0)));
+			inputs.put("synthetic-" + height, frames);
+			crops.put("synthetic-" + height, frameCrops);
+		}
+		if (recording != null) {
+			List<PlanarYUVLuminanceSource> frameCrops = new ArrayList<PlanarYUVLuminanceSource>();
+			inputs.put("recorded", readFrames(new File(recording), frameCrops));
+			crops.put("recorded", frameCrops);
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		for (Map.Entry<String, List<PixelBuffer>> input : inputs.entrySet()) {
+			StageRunner runner = new StageRunner(charMap, input.getValue(),
+					crops.get(input.getKey()));
+			System.out.println("Per glyph in " + input.getKey()
+					+ ", in fixed order: "
+					+ runner.comparisonsPerGlyph(false, false)
+					+ "; in discriminative order: "
+					+ runner.comparisonsPerGlyph(true, false)
+					+ "; with prefilter: "
+					+ runner.comparisonsPerGlyph(true, true));
+			for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+				Result result = bench.measure(stage, input.getKey(), runner);
+				System.out.println(result.format());
+				results.add(result);
+			}
+		}
+
+		PrintWriter out = new PrintWriter(new FileWriter(report));
+		try {
+			out.println("# " + new Date() + ", java "
+					+ System.getProperty("java.version") + ", "
+					+ System.getProperty("os.arch") + ", " + bench.warmups
+					+ " warmups, " + bench.iterations + " iterations of "
+					+ bench.iterationMillis + " ms");
+			out.println(Result.HEADER);
+			for (Result result : results) {
+				out.println(result.format());
+			}
+		} finally {
+			out.close();
+		}
+		System.out.println("Report written to " + report);
+		if (baseline != null) {
+			compare(results, new File(baseline));
+		}
+	}
+
+	/**
+	 * The result of one stage on one input, a line of the report.
+	 */
+	private static final class Result {
+
+		static final String HEADER = "stage\tinput\tops/s\terror\tus/op\tB/op\tgc/iteration";
+
+		String stage;
+		String input;
+		double opsPerSecond;
+		double error;
+		double microsPerOp;
+		long bytesPerOp;
+		double gcPerIteration;
+
+		String format() {
+			return stage + "\t" + input + "\t" + round(opsPerSecond) + "\t"
+					+ round(error) + "\t" + round(microsPerOp) + "\t"
+					+ bytesPerOp + "\t" + round(gcPerIteration);
+		}
+
+		private static String round(double value) {
+			return String.valueOf(Math.round(value * 100) / 100.0);
+		}
+	}
+
+	/**
+	 * Runs a stage for the warmup and measured iterations.
+	 */
+	private Result measure(int stage, String input, StageRunner runner) {
+		allocationSupported = isAllocationSupported();
+		runner.prepare(stage);
+		long[] totals = new long[4];
+		for (int i = 0; i < warmups; i++) {
+			runIteration(stage, runner, totals);
+		}
+		double[] throughput = new double[iterations];
+		long ops = 0;
+		long nanos = 0;
+		long bytes = 0;
+		long gcs = 0;
+		for (int i = 0; i < iterations; i++) {
+			runIteration(stage, runner, totals);
+			throughput[i] = totals[0] * 1e9 / totals[1];
+			ops += totals[0];
+			nanos += totals[1];
+			bytes += totals[2];
+			gcs += totals[3];
+		}
+
+		Result result = new Result();
+		result.stage = STAGE_NAMES[stage];
+		result.input = input;
+		double mean = 0;
+		for (double t : throughput) {
+			mean += t;
+		}
+		mean /= iterations;
+		double variance = 0;
+		for (double t : throughput) {
+			variance += (t - mean) * (t - mean);
+		}
+		result.opsPerSecond = mean;
+		result.error = iterations > 1 ? Math.sqrt(variance / (iterations - 1))
+				: 0;
+		result.microsPerOp = nanos / 1000.0 / ops;
+		result.bytesPerOp = allocationSupported ? bytes / ops : -1;
+		result.gcPerIteration = (double) gcs / iterations;
+		return result;
+	}
+
+	/**
+	 * Runs a stage over and over for one iteration.
+	 *
+	 * @param totals
+	 *            receives the number of operations, the nanoseconds, the
+	 *            bytes allocated and the garbage collections.
+	 */
+	private void runIteration(int stage, StageRunner runner, long[] totals) {
+		long gcStart = gcCount();
+		long bytesStart = allocatedBytes();
+		long start = System.nanoTime();
+		long deadline = start + iterationMillis * 1000000;
+		long ops = 0;
+		long now;
+		int result = 0;
+		do {
+			/* Check the clock every few operations only. */
+			for (int i = 0; i < 8; i++) {
+				result += runner.run(stage);
+			}
+			ops += 8;
+			now = System.nanoTime();
+		} while (now < deadline);
+		sink += result;
+		totals[0] = ops;
+		totals[1] = now - start;
+		totals[2] = allocatedBytes() - bytesStart;
+		totals[3] = gcCount() - gcStart;
+	}
+
+	private boolean isAllocationSupported() {
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return false;
+		}
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+		if (!bean.isThreadAllocatedMemorySupported()) {
+			return false;
+		}
+		bean.setThreadAllocatedMemoryEnabled(true);
+		return bean.isThreadAllocatedMemoryEnabled();
+	}
+
+	private long allocatedBytes() {
+		if (!allocationSupported) {
+			return 0;
+		}
+		return ((com.sun.management.ThreadMXBean) threads)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Holds the inputs of every stage for a set of frames, each prepared by
+	 * running the stages before it once, and runs one stage on the next frame.
+	 */
+	private static final class StageRunner extends Scanner {
+
+		private final List<PixelBuffer> frames;
+		private final List<PlanarYUVLuminanceSource> crops;
+		private final PixelBuffer[] contrasted;
+		private final List<List<Section>> sections = new ArrayList<List<Section>>();
+		private final String[] lines;
+		private final Invoice invoice = new Invoice();
+		/**
+		 * An invoice per frame holding the fields of its line.
+		 */
+		private final Invoice[] readInvoices;
+		private final int cacheSize;
+		private int next;
+
+		/**
+		 * @param crops
+		 *            The camera frames cropped to the framing rectangle, not
+		 *            rotated, one per frame.
+		 */
+		StageRunner(Map<Character, PixelBuffer> charMap,
+				List<PixelBuffer> frames, List<PlanarYUVLuminanceSource> crops) {
+			super(charMap);
+			cacheSize = glyphCacheSize;
+			this.frames = frames;
+			this.crops = crops;
+			contrasted = new PixelBuffer[frames.size()];
+			lines = new String[frames.size()];
+			readInvoices = new Invoice[frames.size()];
+			for (int i = 0; i < frames.size(); i++) {
+				PixelBuffer frame = frames.get(i);
+				setTargetBitmap(frame);
+				contrasted[i] = setContrast(frame, colorScale,
+						colorScaleTranslate);
+				List<Section> frameSections = getSections(contrasted[i]);
+				if (frameSections != null) {
+					uniformBitmapList(frame, frameSections, refCharWidth,
+							refCharHeight);
+				}
+				sections.add(frameSections);
+				scan();
+				lines[i] = getResultString() != null ? getResultString()
+						: SAMPLE_LINE;
+				readInvoices[i] = new Invoice();
+				readInvoices[i].initFields();
+				readInvoices[i].parse(lines[i]);
+			}
+			System.out.println("Read " + lines[0]);
+		}
+
+		/**
+		 * Classifies the glyphs of every frame once, without the glyph
+		 * cache. The discriminative order and the prefilter are set again
+		 * after.
+		 *
+		 * @param discriminative
+		 *            whether to compare the pixels in the discriminative
+		 *            order.
+		 * @param prefilter
+		 *            whether to reject references on their features first.
+		 * @return the pixels compared per glyph, and the references
+		 *         compared and rejected on their features per glyph.
+		 */
+		String comparisonsPerGlyph(boolean discriminative, boolean prefilter) {
+			setDiscriminativeOrder(discriminative);
+			setPrefiltering(prefilter);
+			setGlyphCacheSize(0);
+			long pixels = 0;
+			long compared = 0;
+			long rejected = 0;
+			long glyphs = 0;
+			for (int i = 0; i < frames.size(); i++) {
+				List<Section> frameSections = sections.get(i);
+				if (frameSections == null) {
+					continue;
+				}
+				setTargetBitmap(frames.get(i));
+				bitmapSectionComparison(frameSections, charMap);
+				pixels += getPixelComparisons();
+				compared += getTemplateComparisons();
+				rejected += getPrefilterRejections();
+				for (Section section : frameSections) {
+					if (!section.whitespace && section.valid) {
+						glyphs++;
+					}
+				}
+			}
+			setDiscriminativeOrder(true);
+			setPrefiltering(true);
+			glyphs = Math.max(1, glyphs);
+			return perGlyph(pixels, glyphs) + " pixels, "
+					+ perGlyph(compared, glyphs) + " compared, "
+					+ perGlyph(rejected, glyphs) + " rejected";
+		}
+
+		private static double perGlyph(long count, long glyphs) {
+			return Math.round(count * 10.0 / glyphs) / 10.0;
+		}
+
+		/**
+		 * Turns the glyph cache on for the cached stage and off for the
+		 * others, emptying it.
+		 */
+		void prepare(int stage) {
+			setGlyphCacheSize(stage == CLASSIFICATION_CACHED ? cacheSize : 0);
+		}
+
+		/**
+		 * @return something derived from the result of the stage.
+		 */
+		int run(int stage) {
+			int i = next;
+			next = (i + 1) % frames.size();
+			PixelBuffer frame = frames.get(i);
+			if (frames.size() > 1) {
+				setTargetBitmap(frame);
+			}
+			List<Section> frameSections = sections.get(i);
+			switch (stage) {
+			case CROP:
+				return crops.get(i).renderCroppedGreyscale().getPixel(0, 0);
+			case ROTATE:
+				return crops.get(i).rotateClockwise().getHeight();
+			case CONTRAST:
+				return setContrast(frame, colorScale, colorScaleTranslate)
+						.getPixel(0, 0);
+			case SEGMENTATION: {
+				List<Section> found = getSections(contrasted[i]);
+				return found == null ? 0 : found.size();
+			}
+			case SCALING:
+				if (frameSections == null) {
+					return 0;
+				}
+				return uniformBitmapList(frame, frameSections, refCharWidth,
+						refCharHeight).size();
+			case CLASSIFICATION:
+			case CLASSIFICATION_CACHED:
+				if (frameSections == null) {
+					return 0;
+				}
+				return bitmapSectionComparison(frameSections, charMap)
+						.length();
+			case PARSE:
+				invoice.initFields();
+				return invoice.parse(lines[i]);
+			case PARSE_STEADY:
+				return readInvoices[i].parse(lines[i])
+						+ readInvoices[i].getAmount();
+			case SCAN: {
+				scan();
+				String line = getResultString();
+				if (line == null) {
+					return 0;
+				}
+				invoice.initFields();
+				return invoice.parse(line);
+			}
+			default:
+				throw new IllegalArgumentException("Unknown stage " + stage);
+			}
+		}
+	}
+
+	/**
+	 * Renders a line with the reference characters, scaled to a height and
+	 * with some pixels of each character flipped, so that characters do not
+	 * match their references exactly.
+	 */
+	static PixelBuffer renderLine(Map<Character, PixelBuffer> charMap,
+			String line, int height, Random random) {
+		PixelBuffer measure = charMap.values().iterator().next();
+		int charWidth = measure.getWidth();
+		int charHeight = measure.getHeight();
+		int pitch = charWidth + charWidth / 4;
+		int margin = charHeight;
+		int width = line.length() * pitch + 2 * margin;
+		IntPixelBuffer image = new IntPixelBuffer(width, charHeight + 2
+				* margin);
+		int[] pixels = image.getData();
+		Arrays.fill(pixels, 0xffffffff);
+		for (int i = 0; i < line.length(); i++) {
+			PixelBuffer c = charMap.get(Character.valueOf(line.charAt(i)));
+			if (c == null) {
+				continue;
+			}
+			int offset = margin * width + margin + i * pitch;
+			c.getPixels(pixels, offset, width, 0, 0, charWidth, charHeight);
+			for (int n = 0; n < charWidth * charHeight / 50; n++) {
+				int x = 1 + random.nextInt(charWidth - 2);
+				int y = 1 + random.nextInt(charHeight - 2);
+				pixels[offset + y * width + x] ^= 0x00ffffff;
+			}
+		}
+		int scaledHeight = height * image.getHeight() / charHeight;
+		int scaledWidth = width * scaledHeight / image.getHeight();
+		return Rasters.scale(image, scaledWidth, scaledHeight);
+	}
+
+	/**
+	 * @return A camera frame holding a rendered line, with a margin as wide
+	 *         and as high as the line around it, cropped to the line as to
+	 *         the framing rectangle.
+	 */
+	static PlanarYUVLuminanceSource cameraCrop(PixelBuffer line) {
+		int width = line.getWidth();
+		int height = line.getHeight();
+		int dataWidth = 3 * width;
+		byte[] data = new byte[dataWidth * 3 * height];
+		Arrays.fill(data, (byte) 0xff);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				data[(height + y) * dataWidth + width + x] = (byte) line
+						.getPixel(x, y);
+			}
+		}
+		return new PlanarYUVLuminanceSource(data, dataWidth, 3 * height,
+				width, height, width, height);
+	}
+
+	/**
+	 * Reads the first frames of a recording, cropped and rotated as when they
+	 * were scanned.
+	 * 
+	 * @param crops
+	 *            Receives the crops of the frames, not rotated.
+	 */
+	private static List<PixelBuffer> readFrames(File file,
+			List<PlanarYUVLuminanceSource> crops) throws IOException {
+		FrameRecording recording = new FrameRecording(file);
+		List<PixelBuffer> frames = new ArrayList<PixelBuffer>();
+		int count = Math.min(recording.size(), MAX_RECORDED_FRAMES);
+		for (int i = 0; i < count; i++) {
+			/* The crops are kept, so each frame needs its own buffer. */
+			FrameRecording.Frame frame = recording.read(i, null);
+			PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(
+					frame.data, frame.width, frame.height, frame.left,
+					frame.top, frame.right - frame.left, frame.bottom
+							- frame.top);
+			crops.add(source);
+			if ((frame.flags & FrameRecording.FLAG_PORTRAIT) != 0) {
+				source = source.rotateClockwise();
+			}
+			frames.add(source.renderCroppedGreyscale());
+		}
+		if (frames.isEmpty()) {
+			throw new IOException("No frames in " + file);
+		}
+		return frames;
+	}
+
+	/**
+	 * Prints the change in time per operation from a baseline report.
+	 */
+	private static void compare(List<Result> results, File baseline)
+			throws IOException {
+		Map<String, Double> before = new HashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new FileReader(baseline));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] columns = line.split("\t");
+				if (line.startsWith("#") || columns.length < 5
+						|| columns[0].equals("stage")) {
+					continue;
+				}
+				before.put(columns[0] + "\t" + columns[1], Double
+						.valueOf(columns[4]));
+			}
+		} finally {
+			in.close();
+		}
+		System.out.println("Compared to " + baseline + ":");
+		for (Result result : results) {
+			Double old = before.get(result.stage + "\t" + result.input);
+			if (old == null || old.doubleValue() == 0) {
+				continue;
+			}
+			double change = (result.microsPerOp / old.doubleValue() - 1) * 100;
+			System.out.println(result.stage + "\t" + result.input + "\t"
+					+ old + " -> " + Result.round(result.microsPerOp)
+					+ " us/op\t" + (change > 0 ? "+" : "")
+					+ Result.round(change) + "%");
+		}
+	}
+
+}
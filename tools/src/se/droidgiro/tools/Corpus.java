@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.droidgiro.scanner.Invoice;
+import se.droidgiro.scanner.raster.PixelBuffer;
+
+/**
+ * A labelled set of images of payment lines, as written by
+ * {@link LineGenerator}, held in memory.
+ */
+final class Corpus {
+
+	/**
+	 * The fields each image is scored on.
+	 */
+	static final int FIELDS = 4;
+
+	final List<PixelBuffer> images = new ArrayList<PixelBuffer>();
+	final List<String[]> labels = new ArrayList<String[]>();
+
+	/*
+	 * Columns of labels.tsv.
+	 */
+	private static final int FILE = 0;
+	private static final int REFERENCE = 2;
+	private static final int AMOUNT = 3;
+	private static final int ACCOUNT = 5;
+	private static final int TYPE = 6;
+
+	/**
+	 * Reads the first images of a corpus.
+	 *
+	 * @param max
+	 *            the most images read.
+	 */
+	static Corpus load(File dir, int max) throws IOException {
+		Corpus corpus = new Corpus();
+		BufferedReader in = new BufferedReader(new FileReader(new File(dir,
+				LineGenerator.LABELS_FILE)));
+		try {
+			String line = in.readLine();
+			if (!LineGenerator.LABELS_HEADER.equals(line)) {
+				throw new IOException("Not a corpus: " + dir);
+			}
+			while ((line = in.readLine()) != null
+					&& corpus.images.size() < max) {
+				String[] label = line.split("\t");
+				if (label.length <= TYPE) {
+					throw new IOException("Bad label: " + line);
+				}
+				corpus.images.add(ImageRasters.readGreyscale(new File(dir,
+						label[FILE])));
+				corpus.labels.add(label);
+			}
+		} finally {
+			in.close();
+		}
+		if (corpus.images.isEmpty()) {
+			throw new IOException("No images in " + dir);
+		}
+		return corpus;
+	}
+
+	int size() {
+		return images.size();
+	}
+
+	/**
+	 * @return the number of fields read right from an image, out of
+	 *         {@link #FIELDS}.
+	 */
+	int score(int index, Invoice invoice) {
+		String[] label = labels.get(index);
+		int correct = 0;
+		if (label[REFERENCE].equals(invoice.getReference())) {
+			correct++;
+		}
+		if (invoice.isAmountDefined()
+				&& label[AMOUNT].replace('.', ',').equals(
+						invoice.getCompleteAmount())) {
+			correct++;
+		}
+		if (label[ACCOUNT].equals(invoice.getRawGiroAccount())) {
+			correct++;
+		}
+		if (invoice.isDocumentTypeDefined()
+				&& Short.parseShort(label[TYPE]) == invoice
+						.getInternalDocumentType()) {
+			correct++;
+		}
+		return correct;
+	}
+
+}
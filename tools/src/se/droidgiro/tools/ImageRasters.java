@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import se.droidgiro.scanner.raster.IntPixelBuffer;
+import se.droidgiro.scanner.raster.PixelBuffer;
+
+/**
+ * Reads and writes the pixel buffers of the scanner as image files, for the
+ * tools that run the scanner on a desktop JVM.
+ */
+public final class ImageRasters {
+
+	/**
+	 * The names of the reference character images, as in res/drawable:
+	 * char, the character code, an underscore and the size.
+	 */
+	private static final Pattern TEMPLATE_NAME = Pattern
+			.compile("char(\\d+)_\\d+x\\d+\\.png");
+
+	private ImageRasters() {
+	}
+
+	public static IntPixelBuffer read(File file) throws IOException {
+		BufferedImage image = ImageIO.read(file);
+		if (image == null) {
+			throw new IOException("Not an image: " + file);
+		}
+		return fromImage(image);
+	}
+
+	/**
+	 * Reads an image as shades of grey, like the luminance of the camera
+	 * frames the scanner is given on a device.
+	 */
+	public static IntPixelBuffer readGreyscale(File file) throws IOException {
+		BufferedImage image = ImageIO.read(file);
+		if (image == null) {
+			throw new IOException("Not an image: " + file);
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels;
+		if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+			/*
+			 * Read the samples as they are, since getRGB would convert them
+			 * from a linear grey color space.
+			 */
+			pixels = image.getRaster().getSamples(0, 0, width, height, 0,
+					(int[]) null);
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = 0xff000000 | pixels[i] * 0x00010101;
+			}
+		} else {
+			pixels = image.getRGB(0, 0, width, height, null, 0, width);
+			for (int i = 0; i < pixels.length; i++) {
+				int p = pixels[i];
+				int grey = (((p >> 16) & 0xff) * 77 + ((p >> 8) & 0xff) * 150
+						+ (p & 0xff) * 29) >> 8;
+				pixels[i] = 0xff000000 | grey * 0x00010101;
+			}
+		}
+		return new IntPixelBuffer(pixels, width, height);
+	}
+
+	public static void write(PixelBuffer buffer, File file) throws IOException {
+		ImageIO.write(toImage(buffer), "png", file);
+	}
+
+	public static IntPixelBuffer fromImage(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+		return new IntPixelBuffer(pixels, width, height);
+	}
+
+	public static BufferedImage toImage(PixelBuffer buffer) {
+		int width = buffer.getWidth();
+		int height = buffer.getHeight();
+		int[] pixels = new int[width * height];
+		buffer.getPixels(pixels, 0, width, 0, 0, width, height);
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, width, height, pixels, 0, width);
+		return image;
+	}
+
+	/**
+	 * Loads the reference characters of the scanner from a directory of
+	 * images named as those in res/drawable.
+	 *
+	 * @return the character map to give to the scanner.
+	 */
+	public static Map<Character, PixelBuffer> loadTemplates(File dir)
+			throws IOException {
+		Map<Character, PixelBuffer> charMap = new HashMap<Character, PixelBuffer>();
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("Not a directory: " + dir);
+		}
+		for (File file : files) {
+			Matcher matcher = TEMPLATE_NAME.matcher(file.getName());
+			if (matcher.matches()) {
+				char c = (char) Integer.parseInt(matcher.group(1));
+				charMap.put(Character.valueOf(c), read(file));
+			}
+		}
+		if (charMap.isEmpty()) {
+			throw new IOException("No reference characters in " + dir);
+		}
+		return charMap;
+	}
+
+}
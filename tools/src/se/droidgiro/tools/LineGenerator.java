@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import se.droidgiro.scanner.Invoice;
+
+/**
+ * Generates labelled images of random, valid payment lines in the OCR-B font,
+ * degraded like photos taken with a phone, for measuring the accuracy and the
+ * speed of the scanner without real photos.
+ *
+ * <pre>
+ * LineGenerator [-n count] [-seed n] [-height min max] [-blur sigma]
+ *       [-noise sigma] [-skew degrees] [-gradient fraction] [-jpeg quality]
+ *       [-font ttf] out
+ * </pre>
+ *
+ * Each image gets a random amount of each degradation, up to the given
+ * maximum, so a corpus spans from clean to hard lines:
+ * <ul>
+ * <li>height - the height of the characters in pixels, default 20 to 40</li>
+ * <li>blur - the standard deviation of a gaussian blur in pixels, default 1</li>
+ * <li>noise - the standard deviation of gaussian noise in grey levels,
+ * default 12</li>
+ * <li>skew - the rotation of the line in degrees, either way, default 2</li>
+ * <li>gradient - the fraction the light falls to across the image, default
+ * 0.5</li>
+ * <li>jpeg - the lowest JPEG quality the image is compressed with, 1 to 100,
+ * or 0 for no compression, default 60</li>
+ * </ul>
+ *
+ * The images are written to the out directory as line-NNNNNN.png, with
+ * labels.tsv listing for each image the line and the fields it holds: the
+ * reference, the amount, its check digit, the giro account and the document
+ * type. The same seed gives the same corpus.
+ */
+public final class LineGenerator {
+
+	/**
+	 * The header of labels.tsv.
+	 */
+	static final String LABELS_HEADER = "file\tline\treference\tamount\tcheck\taccount\ttype";
+
+	static final String LABELS_FILE = "labels.tsv";
+
+	/**
+	 * The internal document types written after the giro account.
+	 */
+	private static final String[] DOCUMENT_TYPES = { "41", "42" };
+
+	private Random random = new Random(1);
+	private Font font;
+
+	private int minHeight = 20;
+	private int maxHeight = 40;
+	private float maxBlur = 1f;
+	private float maxNoise = 12f;
+	private float maxSkew = 2f;
+	private float maxGradient = 0.5f;
+	private int minJpegQuality = 60;
+
+	private final Invoice invoice = new Invoice();
+
+	private LineGenerator() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		LineGenerator generator = new LineGenerator();
+		int count = 1000;
+		String fontFile = "assets/fonts/ocrb10.ttf";
+		String out = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				boolean hasValue = i + 1 < args.length;
+				if ("-n".equals(arg) && hasValue) {
+					count = Integer.parseInt(args[++i]);
+				} else if ("-seed".equals(arg) && hasValue) {
+					generator.random = new Random(Long.parseLong(args[++i]));
+				} else if ("-height".equals(arg) && i + 2 < args.length) {
+					generator.minHeight = Integer.parseInt(args[++i]);
+					generator.maxHeight = Math.max(generator.minHeight,
+							Integer.parseInt(args[++i]));
+				} else if ("-blur".equals(arg) && hasValue) {
+					generator.maxBlur = Float.parseFloat(args[++i]);
+				} else if ("-noise".equals(arg) && hasValue) {
+					generator.maxNoise = Float.parseFloat(args[++i]);
+				} else if ("-skew".equals(arg) && hasValue) {
+					generator.maxSkew = Float.parseFloat(args[++i]);
+				} else if ("-gradient".equals(arg) && hasValue) {
+					generator.maxGradient = Float.parseFloat(args[++i]);
+				} else if ("-jpeg".equals(arg) && hasValue) {
+					generator.minJpegQuality = Integer.parseInt(args[++i]);
+				} else if ("-font".equals(arg) && hasValue) {
+					fontFile = args[++i];
+				} else if (out == null && !arg.startsWith("-")) {
+					out = arg;
+				} else {
+					out = null;
+					break;
+				}
+			}
+		} catch (NumberFormatException e) {
+			out = null;
+		}
+		if (out == null) {
+			System.err.println("Usage: LineGenerator [-n count] [-seed n]"
+					+ " [-height min max] [-blur sigma] [-noise sigma]"
+					+ " [-skew degrees] [-gradient fraction]"
+					+ " [-jpeg quality] [-font ttf] out");
+			System.exit(2);
+		}
+
+		generator.font = loadFont(new File(fontFile));
+		File dir = new File(out);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		PrintWriter labels = new PrintWriter(new FileWriter(new File(dir,
+				LABELS_FILE)));
+		try {
+			labels.println(LABELS_HEADER);
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				String name = "line-" + pad(i, 6) + ".png";
+				String label = generator.generate(new File(dir, name));
+				labels.println(name + "\t" + label);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(count + " lines written to " + dir + " in "
+					+ seconds + " s");
+		} finally {
+			labels.close();
+		}
+	}
+
+	static Font loadFont(File file) throws IOException {
+		try {
+			return Font.createFont(Font.TRUETYPE_FONT, file);
+		} catch (FontFormatException e) {
+			IOException ioe = new IOException("Not a TrueType font: " + file);
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Generates a line and writes its image.
+	 *
+	 * @return the label of the image, the line and its fields separated by
+	 *         tabs.
+	 */
+	String generate(File file) throws IOException {
+		String reference = randomNumber(2 + random.nextInt(24));
+		String amount = String.valueOf(random.nextInt(100000));
+		String fractional = pad(random.nextInt(100), 2);
+		String check = checkDigit(amount + fractional);
+		String account = randomNumber(7 + random.nextInt(2));
+		String type = DOCUMENT_TYPES[random.nextInt(DOCUMENT_TYPES.length)];
+		String line = "#" + spaces(1, 2) + reference + spaces(1, 3) + "#"
+				+ spaces(2, 3) + amount + spaces(1, 1) + fractional
+				+ spaces(1, 3) + check + " >" + spaces(1, 2) + account + "#"
+				+ type + "#";
+
+		/* The labels must be right, or the corpus is worthless. */
+		invoice.initFields();
+		int fields = invoice.parse(line);
+		if (fields != Invoice.REFERENCE_FIELD + Invoice.AMOUNT_FIELD
+				+ Invoice.GIRO_ACCOUNT_FIELD + Invoice.DOCUMENT_TYPE_FIELD) {
+			throw new IllegalStateException("Generated an invalid line, "
+					+ fields + ": " + line);
+		}
+
+		ImageIO.write(render(line), "png", file);
+		return line + "\t" + reference + "\t" + amount + "." + fractional
+				+ "\t" + check + "\t" + account + "\t" + type;
+	}
+
+	/**
+	 * @return a random number of a number of digits, the last of which is a
+	 *         mod 10 check digit.
+	 */
+	private String randomNumber(int digits) {
+		StringBuilder sb = new StringBuilder(digits);
+		for (int i = 0; i < digits - 1; i++) {
+			sb.append((char) ('0' + random.nextInt(10)));
+		}
+		return sb.append(checkDigit(sb)).toString();
+	}
+
+	private String spaces(int min, int max) {
+		int n = min + random.nextInt(max - min + 1);
+		StringBuilder sb = new StringBuilder(n);
+		for (int i = 0; i < n; i++) {
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the mod 10 (Luhn) check digit of a number.
+	 */
+	static String checkDigit(CharSequence digits) {
+		int sum = 0;
+		boolean doubled = true;
+		for (int i = digits.length() - 1; i >= 0; i--) {
+			int digit = digits.charAt(i) - '0';
+			if (doubled) {
+				digit *= 2;
+				if (digit > 9) {
+					digit -= 9;
+				}
+			}
+			sum += digit;
+			doubled = !doubled;
+		}
+		return String.valueOf((10 - sum % 10) % 10);
+	}
+
+	private static String pad(int value, int digits) {
+		String s = String.valueOf(value);
+		while (s.length() < digits) {
+			s = "0" + s;
+		}
+		return s;
+	}
+
+	/**
+	 * Renders a line, with a margin of half a character around it, and
+	 * degrades it.
+	 */
+	BufferedImage render(String line) throws IOException {
+		int height = minHeight + random.nextInt(maxHeight - minHeight + 1);
+		/* OCR-B digits are about 0.7 of the font size high. */
+		Font sized = font.deriveFont(height / 0.7f);
+		BufferedImage measure = new BufferedImage(1, 1,
+				BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = measure.createGraphics();
+		FontMetrics metrics = g.getFontMetrics(sized);
+		int textWidth = metrics.stringWidth(line);
+		g.dispose();
+
+		int margin = height;
+		int width = textWidth + 2 * margin;
+		int imageHeight = height + 2 * margin;
+		BufferedImage image = new BufferedImage(width, imageHeight,
+				BufferedImage.TYPE_BYTE_GRAY);
+		g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, imageHeight);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_RENDERING,
+				RenderingHints.VALUE_RENDER_QUALITY);
+		g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
+				RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+		g.rotate(Math.toRadians((random.nextFloat() * 2 - 1) * maxSkew),
+				width / 2.0, imageHeight / 2.0);
+		g.setColor(Color.BLACK);
+		g.setFont(sized);
+		g.drawString(line, margin, margin + height);
+		g.dispose();
+
+		float[] grey = new float[width * imageHeight];
+		image.getRaster().getSamples(0, 0, width, imageHeight, 0, grey);
+		gradient(grey, width, imageHeight, random.nextFloat() * maxGradient);
+		blur(grey, width, imageHeight, random.nextFloat() * maxBlur);
+		float noise = random.nextFloat() * maxNoise;
+		for (int i = 0; i < grey.length; i++) {
+			grey[i] += (float) random.nextGaussian() * noise;
+		}
+		for (int i = 0; i < grey.length; i++) {
+			grey[i] = Math.max(0, Math.min(255, Math.round(grey[i])));
+		}
+		image.getRaster().setSamples(0, 0, width, imageHeight, 0, grey);
+
+		if (minJpegQuality > 0) {
+			int quality = minJpegQuality
+					+ random.nextInt(101 - Math.min(100, minJpegQuality));
+			image = jpeg(image, quality / 100f);
+		}
+		return image;
+	}
+
+	/**
+	 * Darkens the image linearly in a random direction, so that the light
+	 * falls from 1 to 1 - fraction across it.
+	 */
+	private void gradient(float[] grey, int width, int height, float fraction) {
+		double angle = random.nextDouble() * 2 * Math.PI;
+		float dx = (float) Math.cos(angle);
+		float dy = (float) Math.sin(angle);
+		float min = Math.min(0, dx * width) + Math.min(0, dy * height);
+		float range = Math.abs(dx * width) + Math.abs(dy * height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				float t = (x * dx + y * dy - min) / range;
+				grey[y * width + x] *= 1 - fraction * t;
+			}
+		}
+	}
+
+	/**
+	 * Blurs with a gaussian kernel, one direction at a time.
+	 */
+	private static void blur(float[] grey, int width, int height, float sigma) {
+		if (sigma < 0.1f) {
+			return;
+		}
+		int radius = (int) Math.ceil(sigma * 3);
+		float[] kernel = new float[2 * radius + 1];
+		float sum = 0;
+		for (int i = -radius; i <= radius; i++) {
+			kernel[i + radius] = (float) Math.exp(-i * i / (2 * sigma * sigma));
+			sum += kernel[i + radius];
+		}
+		for (int i = 0; i < kernel.length; i++) {
+			kernel[i] /= sum;
+		}
+		float[] tmp = new float[grey.length];
+		convolve(grey, tmp, width, height, 1, width, kernel);
+		convolve(tmp, grey, height, width, width, 1, kernel);
+	}
+
+	/**
+	 * Convolves the lines of an image in one direction, clamping at the
+	 * edges.
+	 *
+	 * @param length
+	 *            the number of pixels of a line.
+	 * @param step
+	 *            the distance between the pixels of a line.
+	 * @param lineStep
+	 *            the distance between lines.
+	 */
+	private static void convolve(float[] from, float[] to, int length,
+			int lines, int step, int lineStep, float[] kernel) {
+		int radius = kernel.length / 2;
+		for (int line = 0; line < lines; line++) {
+			int base = line * lineStep;
+			for (int i = 0; i < length; i++) {
+				float value = 0;
+				for (int k = -radius; k <= radius; k++) {
+					int j = Math.max(0, Math.min(length - 1, i + k));
+					value += from[base + j * step] * kernel[k + radius];
+				}
+				to[base + i * step] = value;
+			}
+		}
+	}
+
+	/**
+	 * @return the image after compressing it as a JPEG and reading it back.
+	 */
+	private static BufferedImage jpeg(BufferedImage image, float quality)
+			throws IOException {
+		Iterator<ImageWriter> writers = ImageIO
+				.getImageWritersByFormatName("jpeg");
+		ImageWriter writer = writers.next();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(
+				bytes);
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			stream.close();
+			writer.dispose();
+		}
+		return ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.util.Random;
+
+import se.droidgiro.scanner.Invoice;
+
+/**
+ * Checks that {@link Invoice#parse(String)} finds the same fields as the
+ * regular expressions it used before, see {@link RegexInvoice}, on random
+ * lines.
+ *
+ * <pre>
+ * ParseCheck [-n count] [-seed n]
+ * </pre>
+ *
+ * Most lines are payment lines with random fields, half of them with valid
+ * check digits, and random spacing, which are then often cut off at either
+ * end, as when the camera sees part of the line, or corrupted by characters
+ * left out, added or replaced, as by misreads. The rest are random strings.
+ * Lines are drawn from digits, separators, whitespace, including whitespace
+ * and digits outside ASCII, and a few other characters. Each line is parsed
+ * by both into invoices that are only cleared now and then, and sometimes
+ * parsed twice, so that fields already read are covered too.
+ *
+ * The first line the two differ on is printed, with the fields each found,
+ * and the exit status is then 1. Otherwise the number of lines in which each
+ * field was found is printed. The same seed gives the same lines. See the
+ * parse-check target of engine.xml.
+ */
+public final class ParseCheck {
+
+	/**
+	 * Whitespace other than the space, the first of it matched by \s.
+	 */
+	private static final String WHITESPACE = "\t\n\r\u000b\f\u0085\u00a0\u2028";
+
+	/**
+	 * The characters misreads and random lines are made of, two digits
+	 * outside ASCII last.
+	 */
+	private static final String ALPHABET = "0123456789   #>#>HX-," + WHITESPACE
+			+ "\u0663\uff15";
+
+	private Random random = new Random(0);
+
+	private ParseCheck() {
+	}
+
+	public static void main(String[] args) {
+		ParseCheck check = new ParseCheck();
+		int count = 1000000;
+		boolean usage = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				boolean hasValue = i + 1 < args.length;
+				if ("-n".equals(arg) && hasValue) {
+					count = Integer.parseInt(args[++i]);
+				} else if ("-seed".equals(arg) && hasValue) {
+					check.random = new Random(Long.parseLong(args[++i]));
+				} else {
+					usage = true;
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage = true;
+		}
+		if (usage) {
+			System.err.println("Usage: ParseCheck [-n count] [-seed n]");
+			System.exit(2);
+		}
+		System.exit(check.run(count) ? 0 : 1);
+	}
+
+	/**
+	 * @return false if the parses differed on a line.
+	 */
+	private boolean run(int count) {
+		Invoice invoice = new Invoice();
+		RegexInvoice expected = new RegexInvoice();
+		invoice.initFields();
+		expected.initFields();
+		int[] found = new int[3];
+		String line = null;
+		for (int i = 0; i < count; i++) {
+			if (random.nextInt(50) == 0) {
+				invoice.initFields();
+				expected.initFields();
+			}
+			if (line == null || random.nextInt(20) != 0) {
+				line = line();
+			}
+			int fields = invoice.parse(line);
+			int expectedFields = expected.parse(line);
+			if (fields != expectedFields || !same(invoice, expected)) {
+				System.out.println("Differs on line " + i + ": \""
+						+ escape(line) + "\"");
+				System.out.println("regex:     " + expectedFields + " "
+						+ format(expected.reference, expected.amount,
+								expected.amountFractional,
+								expected.checkDigitAmount,
+								expected.giroAccount,
+								expected.internalDocumentType));
+				System.out.println("tokenizer: " + fields + " "
+						+ format(invoice.getReference(), invoice.getAmount(),
+								invoice.getAmountFractional(), invoice
+										.getCheckDigitAmount(), invoice
+										.getRawGiroAccount(), invoice
+										.getInternalDocumentType()));
+				return false;
+			}
+			for (int f = 0; f < found.length; f++) {
+				if ((fields & 1 << f) != 0) {
+					found[f]++;
+				}
+			}
+		}
+		System.out.println(count + " lines parsed the same, found "
+				+ found[0] + " references, " + found[1] + " amounts, "
+				+ found[2] + " accounts");
+		return true;
+	}
+
+	private static boolean same(Invoice invoice, RegexInvoice expected) {
+		return equal(invoice.getReference(), expected.reference)
+				&& invoice.getAmount() == expected.amount
+				&& invoice.getAmountFractional() == expected.amountFractional
+				&& equal(invoice.getCheckDigitAmount(),
+						expected.checkDigitAmount)
+				&& equal(invoice.getRawGiroAccount(), expected.giroAccount)
+				&& invoice.getInternalDocumentType() == expected.internalDocumentType;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static String format(String reference, int amount,
+			short fractional, String check, String account, short type) {
+		return "reference " + reference + ", amount " + amount + " "
+				+ fractional + " " + check + ", account " + account + " "
+				+ type;
+	}
+
+	/**
+	 * @return a line with the characters outside printable ASCII escaped.
+	 */
+	private static String escape(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x20 || c > 0x7e) {
+				String hex = Integer.toHexString(c);
+				sb.append("\\u");
+				for (int n = hex.length(); n < 4; n++) {
+					sb.append('0');
+				}
+				sb.append(hex);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return a random line.
+	 */
+	private String line() {
+		if (random.nextInt(5) == 0) {
+			StringBuilder sb = new StringBuilder();
+			for (int n = random.nextInt(50); n > 0; n--) {
+				sb.append(randomChar());
+			}
+			return sb.toString();
+		}
+		StringBuilder sb = new StringBuilder(paymentLine());
+		switch (random.nextInt(4)) {
+		case 0:
+			/* As read. */
+			break;
+		case 1:
+			/* Cut off at either end or both. */
+			int start = random.nextInt(sb.length() / 2 + 1);
+			int end = sb.length() - random.nextInt(sb.length() / 2 + 1);
+			sb = new StringBuilder(sb.substring(start, Math.max(start, end)));
+			break;
+		default:
+			/* Misread. */
+			for (int n = 1 + random.nextInt(3); n > 0 && sb.length() > 0; n--) {
+				int i = random.nextInt(sb.length());
+				switch (random.nextInt(3)) {
+				case 0:
+					sb.deleteCharAt(i);
+					break;
+				case 1:
+					sb.insert(i, randomChar());
+					break;
+				default:
+					sb.setCharAt(i, randomChar());
+					break;
+				}
+			}
+			break;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return a payment line with random fields, about the lengths they have
+	 *         and a few outside, and random spacing.
+	 */
+	private String paymentLine() {
+		String reference = number(1 + random.nextInt(27));
+		String amount = digits(random.nextInt(10));
+		String fractional = digits(1 + random.nextInt(3));
+		String check;
+		if (random.nextBoolean() && fractional.length() == 2) {
+			check = LineGenerator.checkDigit(amount + fractional);
+		} else {
+			check = digits(random.nextInt(3));
+		}
+		String account = digits(6 + random.nextInt(4));
+		String type = digits(1 + random.nextInt(3));
+		return (random.nextInt(4) == 0 ? "H" : "#") + spaces(0, 3)
+				+ reference + spaces(0, 4) + "#" + spaces(0, 3) + amount
+				+ spaces(0, 2) + fractional + spaces(0, 4) + check
+				+ spaces(0, 2) + ">" + spaces(0, 3) + account + spaces(0, 1)
+				+ "#" + type + "#" + spaces(0, 2);
+	}
+
+	/**
+	 * @return random digits, the last a valid mod 10 check digit half the
+	 *         time.
+	 */
+	private String number(int length) {
+		String digits = digits(length - 1);
+		if (random.nextBoolean()) {
+			return digits + LineGenerator.checkDigit(digits);
+		}
+		return digits + digits(1);
+	}
+
+	private String digits(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append((char) ('0' + random.nextInt(10)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return mostly spaces, sometimes other whitespace.
+	 */
+	private String spaces(int min, int max) {
+		StringBuilder sb = new StringBuilder();
+		for (int n = min + random.nextInt(max - min + 1); n > 0; n--) {
+			sb.append(random.nextInt(10) == 0 ? WHITESPACE.charAt(random
+					.nextInt(WHITESPACE.length())) : ' ');
+		}
+		return sb.toString();
+	}
+
+	private char randomChar() {
+		return ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+	}
+
+}
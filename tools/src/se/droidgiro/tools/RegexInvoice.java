@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import se.droidgiro.scanner.Invoice;
+
+/**
+ * The parse of {@link Invoice} as it was before it used the
+ * InvoiceTokenizer, on regular expressions. It is kept, unchanged but for the
+ * logging, for {@link ParseCheck} to check the tokenizer against. See the
+ * history of Invoice for the documentation of the patterns.
+ */
+final class RegexInvoice {
+
+	private static final Pattern OCR_PATTERN = Pattern
+			.compile("^(H\\s+#|#?\\s+)(\\d{1,24}(\\d))\\s{1,3}#\\s+(?!\\d{2}#)");
+
+	private static final Pattern AMOUNT_PATTERN = Pattern
+			.compile("(^\\s*|#\\s+)(\\d{1,8})\\s+(\\d{2})\\s{1,3}(\\d)\\s>");
+
+	private static final Pattern ACCOUNT_PATTERN = Pattern
+			.compile("(^\\s*|>\\s+)(\\d{7,8})\\s?#(\\d{2})#\\s*$");
+
+	String reference;
+
+	int amount = -1;
+
+	short amountFractional = -1;
+
+	String checkDigitAmount;
+
+	String giroAccount;
+
+	short internalDocumentType;
+
+	void initFields() {
+		reference = null;
+		amount = -1;
+		amountFractional = -1;
+		giroAccount = null;
+		internalDocumentType = -1;
+	}
+
+	int parse(String input) {
+		int fieldsDecoded = 0;
+		/* Look for reference number */
+		Matcher m = OCR_PATTERN.matcher(input);
+		if (m.find()) {
+			if (isValidCC(m.group(2))) {
+				if (!m.group(2).equals(reference)) {
+					reference = m.group(2);
+					fieldsDecoded += Invoice.REFERENCE_FIELD;
+				}
+			}
+		}
+
+		/* Look for amount */
+		m = AMOUNT_PATTERN.matcher(input);
+		if (m.find()) {
+			if (isValidCC(m.group(2) + m.group(3) + m.group(4))) {
+				if (!(Integer.parseInt(m.group(2)) == amount
+						&& Short.parseShort(m.group(3)) == amountFractional && m
+						.group(4).equals(checkDigitAmount))) {
+					amount = Integer.parseInt(m.group(2));
+					amountFractional = Short.parseShort(m.group(3));
+					checkDigitAmount = m.group(4);
+					fieldsDecoded += Invoice.AMOUNT_FIELD;
+				}
+			}
+		}
+
+		/* Look for BG/PG number */
+		m = ACCOUNT_PATTERN.matcher(input);
+		if (m.find()) {
+			if (!(m.group(2).equals(giroAccount) && Short
+					.parseShort(m.group(3)) == internalDocumentType)) {
+				giroAccount = m.group(2);
+				internalDocumentType = Short.parseShort(m.group(3));
+				fieldsDecoded += Invoice.GIRO_ACCOUNT_FIELD
+						+ Invoice.DOCUMENT_TYPE_FIELD;
+			}
+		}
+		return fieldsDecoded;
+	}
+
+	private static boolean isValidCC(String num) {
+
+		final int[][] sumTable = { { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
+				{ 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 } };
+		int sum = 0, flip = 0;
+
+		for (int i = num.length() - 1; i >= 0; i--)
+			sum += sumTable[flip++ & 0x1][Character.digit(num.charAt(i), 10)];
+		return sum % 10 == 0;
+	}
+
+}
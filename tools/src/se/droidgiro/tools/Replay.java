@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011 DroidGiro authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.droidgiro.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+import se.droidgiro.scanner.FrameRecording;
+import se.droidgiro.scanner.Invoice;
+import se.droidgiro.scanner.Scanner;
+import se.droidgiro.scanner.raster.PixelBuffer;
+
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Feeds the frames of a recording made by the app through the decode pipeline
+ * as fast as possible, and prints the outcome of each frame and the
+ * throughput.
+ *
+ * Each frame is cropped to the framing rectangle it was recorded with, rotated
+ * if it was scanned in portrait mode, scanned and parsed. Frame fusion and the
+ * region of interest tracking are left out, since they depend on the frames
+ * around it, so the fields found may differ from those found on the device,
+ * which are printed alongside.
+ *
+ * <pre>
+ * Replay [-q] recording templates
+ * </pre>
+ *
+ * where templates is the directory of the reference character PNGs, normally
+ * res/drawable. With -q only the summary is printed. It runs on a desktop JVM,
+ * see the replay target of engine.xml.
+ */
+public final class Replay {
+
+	private Replay() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean quiet = args.length > 0 && "-q".equals(args[0]);
+		int first = quiet ? 1 : 0;
+		if (args.length - first != 2) {
+			System.err.println("Usage: Replay [-q] recording templates");
+			System.exit(2);
+		}
+		FrameRecording recording = new FrameRecording(new File(args[first]));
+		Scanner scanner = new Scanner(ImageRasters.loadTemplates(new File(
+				args[first + 1])));
+		Invoice invoice = new Invoice();
+		FrameRecording.Frame frame = null;
+
+		int scanned = 0;
+		int withFields = 0;
+		int differing = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < recording.size(); i++) {
+			frame = recording.read(i, frame);
+			long frameStart = System.nanoTime();
+			PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(
+					frame.data, frame.width, frame.height, frame.left,
+					frame.top, frame.right - frame.left, frame.bottom
+							- frame.top);
+			if ((frame.flags & FrameRecording.FLAG_PORTRAIT) != 0) {
+				source = source.rotateClockwise();
+			}
+			PixelBuffer bmp = source.renderCroppedGreyscale();
+			scanner.setTargetBitmap(bmp, source.getWidth(), source
+					.getHeight());
+			scanner.scan();
+			String result = scanner.getResultString();
+			int fields = 0;
+			if (result != null) {
+				scanned++;
+				invoice.parse(result);
+				fields = invoice.getLastFieldsDecoded();
+				if (fields != 0) {
+					withFields++;
+				}
+			}
+			long micros = (System.nanoTime() - frameStart) / 1000;
+			if (fields != frame.fields) {
+				differing++;
+			}
+			if (!quiet) {
+				System.out.println(frame.sequence + "\t" + micros + " us\t"
+						+ "device " + frame.fields + "\treplay " + fields
+						+ "\t" + (result == null ? "-" : result));
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int frames = recording.size();
+		System.out.println(frames + " frames in " + seconds + " s, "
+				+ (frames / seconds) + " frames/s, " + scanned
+				+ " with a line, " + withFields + " with fields, "
+				+ differing + " differing from the device");
+	}
+
+}